@@ -96,11 +96,11 @@ public class Animator extends MouseAdapter {
 				imp_.setSlice(curFrame_);
 			}
 
-			if (trajectory_.get(curIndex_).frame == curFrame_) {
+			if (trajectory_.getFrame(curIndex_) == curFrame_) {
 				GeneralPath path = new GeneralPath();
-				path.moveTo(trajectory_.get(0).x,trajectory_.get(0).y);
+				path.moveTo(trajectory_.getX(0),trajectory_.getY(0));
 				for (int i = 1; i <curIndex_; i++) {
-					path.lineTo(trajectory_.get(i).x, trajectory_.get(i).y);
+					path.lineTo(trajectory_.getX(i), trajectory_.getY(i));
 				}
 				imp_.setOverlay(path, Color.yellow, new BasicStroke(1f));
 				curIndex_ += increment_;
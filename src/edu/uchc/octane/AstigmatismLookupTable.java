@@ -0,0 +1,219 @@
+//FILE:          AstigmatismLookupTable.java
+//PROJECT:       Octane
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ji Yu, jyu@uchc.edu
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package edu.uchc.octane;
+
+import java.util.Arrays;
+
+import org.apache.commons.math3.analysis.UnivariateFunction;
+import org.apache.commons.math3.optim.MaxEval;
+import org.apache.commons.math3.optim.nonlinear.scalar.GoalType;
+import org.apache.commons.math3.optim.univariate.BrentOptimizer;
+import org.apache.commons.math3.optim.univariate.SearchInterval;
+import org.apache.commons.math3.optim.univariate.UnivariateObjectiveFunction;
+
+/**
+ * A precomputed (sigmaX, sigmaY) -> Z table for the astigmatism calibration.
+ * Z values are tabulated on a regular grid by the same Brent minimization used previously,
+ * interpolated bilinearly and then polished with a few Newton steps on the exact objective.
+ * Cells where the interpolation does not reproduce the Brent result (e.g. where the
+ * minimizer jumps between two branches) are flagged and solved directly.
+ *
+ * Tables are immutable and the last one built is cached, because the calibration
+ * normally stays the same for a whole run while fitting modules are created per frame.
+ *
+ */
+final class AstigmatismLookupTable {
+
+	final static int SIZE = 256;
+	final static int MAX_NEWTON_ITERATIONS = 10;
+
+	private static AstigmatismLookupTable lastTable_ = null;
+
+	private final double [] c_;
+	private final double errTol_;
+	private final double zMin_, zMax_;
+	private final double sxMin_, syMin_;
+	private final double invStepX_, invStepY_;
+	private final double [] z_;
+	private final boolean [] exact_;
+
+	/**
+	 * Get a table for the calibration, reusing the last one if the parameters are the same
+	 * @param c Six calibration parameters
+	 * @param errTol The largest acceptable residual
+	 * @return The lookup table
+	 */
+	static synchronized AstigmatismLookupTable getTable(double [] c, double errTol) {
+		if (lastTable_ == null || ! Arrays.equals(lastTable_.c_, c) || lastTable_.errTol_ != errTol) {
+			lastTable_ = new AstigmatismLookupTable(c, errTol);
+		}
+		return lastTable_;
+	}
+
+	private AstigmatismLookupTable(double [] c, double errTol) {
+
+		c_ = c.clone();
+		errTol_ = errTol;
+
+		double z0min = Math.min(c[1], c[4]);
+		double z0max = Math.max(c[1], c[4]);
+		zMin_ = 2 * z0min - z0max;
+		zMax_ = 2 * z0max - z0min;
+
+		// outside of these ranges every z in the search interval gives a residual above errTol
+		double margin = Math.sqrt(errTol) * 1.01;
+		double sxMax = Math.max(sigmaX(zMin_), sigmaX(zMax_)) + margin;
+		double syMax = Math.max(sigmaY(zMin_), sigmaY(zMax_)) + margin;
+		sxMin_ = Math.max(0, c[0] - margin);
+		syMin_ = Math.max(0, c[3] - margin);
+		double stepX = (sxMax - sxMin_) / (SIZE - 1);
+		double stepY = (syMax - syMin_) / (SIZE - 1);
+		invStepX_ = 1.0 / stepX;
+		invStepY_ = 1.0 / stepY;
+
+		z_ = new double[SIZE * SIZE];
+		for (int j = 0; j < SIZE; j++) {
+			for (int i = 0; i < SIZE; i++) {
+				z_[i + j * SIZE] = solve(sxMin_ + i * stepX, syMin_ + j * stepY);
+			}
+		}
+
+		double zSpread = (zMax_ - zMin_) / 32;
+		exact_ = new boolean[(SIZE - 1) * (SIZE - 1)];
+		for (int j = 0; j < SIZE - 1; j++) {
+			for (int i = 0; i < SIZE - 1; i++) {
+				int k = i + j * SIZE;
+				double z00 = z_[k], z10 = z_[k + 1], z01 = z_[k + SIZE], z11 = z_[k + SIZE + 1];
+				double lo = Math.min(Math.min(z00, z10), Math.min(z01, z11));
+				double hi = Math.max(Math.max(z00, z10), Math.max(z01, z11));
+				boolean exact = hi - lo > zSpread;
+				if (! exact) {
+					double sx = sxMin_ + (i + 0.5) * stepX;
+					double sy = syMin_ + (j + 0.5) * stepY;
+					double zb = solve(sx, sy);
+					double zl = polish((z00 + z10 + z01 + z11) / 4, sx, sy);
+					exact = Double.isNaN(zl) || Math.abs(zl - zb) > 4e-4 * (1 + Math.abs(zb));
+				}
+				exact_[i + j * (SIZE - 1)] = exact;
+			}
+		}
+	}
+
+	private double sigmaX(double z) {
+		return c_[0] + (z - c_[1]) * (z - c_[1]) * c_[2];
+	}
+
+	private double sigmaY(double z) {
+		return c_[3] + (z - c_[4]) * (z - c_[4]) * c_[5];
+	}
+
+	/**
+	 * The squared distance between the measured sigmas and the calibration curve at z
+	 * @param z The Z position
+	 * @param sx SigmaX
+	 * @param sy SigmaY
+	 * @return The residual
+	 */
+	double residual(double z, double sx, double sy) {
+		double vx = sigmaX(z) - sx;
+		double vy = sigmaY(z) - sy;
+		return vx * vx + vy * vy;
+	}
+
+	/**
+	 * Find Z by Brent minimization of the residual over the search interval
+	 * @param sx SigmaX
+	 * @param sy SigmaY
+	 * @return The Z position
+	 */
+	double solve(final double sx, final double sy) {
+		if (zMax_ <= zMin_) {
+			return zMin_;
+		}
+
+		UnivariateFunction func = new UnivariateFunction() {
+			@Override
+			public double value(double z) {
+				return residual(z, sx, sy);
+			}
+		};
+
+		BrentOptimizer optimizer = new BrentOptimizer(1e-4, 1e-4);
+
+		return optimizer.optimize(new UnivariateObjectiveFunction(func),
+				GoalType.MINIMIZE,
+				MaxEval.unlimited(),
+				new SearchInterval(zMin_, zMax_)).getPoint();
+	}
+
+	/**
+	 * Newton iterations on the derivative of the residual
+	 * @return The local minimum, or NaN if the iteration fails or leaves the search interval
+	 */
+	private double polish(double z, double sx, double sy) {
+		for (int iter = 0; iter < MAX_NEWTON_ITERATIONS; iter ++) {
+			double dx = z - c_[1];
+			double dy = z - c_[4];
+			double vx = c_[0] + dx * dx * c_[2] - sx;
+			double vy = c_[3] + dy * dy * c_[5] - sy;
+			double gx = 2 * c_[2] * dx;
+			double gy = 2 * c_[5] * dy;
+			double g = vx * gx + vy * gy;
+			double h = gx * gx + gy * gy + 2 * c_[2] * vx + 2 * c_[5] * vy;
+			if (h <= 0) {
+				return Double.NaN;
+			}
+			double step = g / h;
+			z -= step;
+			if (Math.abs(step) < 1e-9 * (1 + Math.abs(z))) {
+				return (z >= zMin_ && z <= zMax_) ? z : Double.NaN;
+			}
+		}
+		return Double.NaN;
+	}
+
+	/**
+	 * Look up the Z position
+	 * @param sx SigmaX
+	 * @param sy SigmaY
+	 * @return The Z position, or NaN if the sigmas are outside the table, in which case
+	 * the residual is above the tolerance for any Z.
+	 */
+	double lookup(double sx, double sy) {
+		double gx = (sx - sxMin_) * invStepX_;
+		double gy = (sy - syMin_) * invStepY_;
+		if (! (gx >= 0 && gy >= 0 && gx <= SIZE - 1 && gy <= SIZE - 1)) {
+			return Double.NaN;
+		}
+
+		int i = Math.min((int) gx, SIZE - 2);
+		int j = Math.min((int) gy, SIZE - 2);
+		if (exact_[i + j * (SIZE - 1)]) {
+			return solve(sx, sy);
+		}
+
+		double fx = gx - i;
+		double fy = gy - j;
+		int k = i + j * SIZE;
+		double z = (z_[k] * (1 - fx) + z_[k + 1] * fx) * (1 - fy)
+				+ (z_[k + SIZE] * (1 - fx) + z_[k + SIZE + 1] * fx) * fy;
+
+		double zp = polish(z, sx, sy);
+		return Double.isNaN(zp) ? solve(sx, sy) : zp;
+	}
+}
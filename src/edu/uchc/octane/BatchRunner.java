@@ -0,0 +1,500 @@
+//FILE:          BatchRunner.java
+//PROJECT:       Octane
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ji Yu, jyu@uchc.edu
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package edu.uchc.octane;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileSaver;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Headless batch analysis. Runs particle analysis, tracking and optional PALM rendering on a list
+ * of image files using the settings in a parameter file, without any dialogs or windows.
+ * The dataset is saved next to each input file as &lt;filename&gt;.dataset, the PALM image as
+ * PALM-&lt;filename&gt;.tif.
+ *
+ * Usage: java -Djava.awt.headless=true edu.uchc.octane.BatchRunner params.properties file|directory ...
+ *
+ * Recognized keys of the parameter file (java.util.Properties format) and their defaults:
+ * <pre>
+ * threads = number of processors      total number of threads, see processFiles()
+ * concurrentFiles = 1                 number of files analyzed at the same time, at most threads / 3
+ * pixelSize = 160                     nm
+ * mask = x,y,width,height             region of interest, whole frame by default
+ * watershed.threshold = noise         lowest intensity to be analyzed
+ * watershed.noise = 100
+ * fitting.mode = 2d                   2d, astigmatism or none
+ * fitting.resolution = 300            nm, 2d mode only
+ * fitting.calibrationX = 0.8, 0, 0.18 astigmatism mode only
+ * fitting.calibrationY = 0.8, 6, 0.18
+ * fitting.preprocessBackground = false
+ * fitting.deflation = true
+ * fitting.batch = false               fit the spots of a frame concurrently, with the same results
+ * fitting.engine = POWELL             POWELL or LEVENBERG_MARQUARDT
+ * fitting.noiseModel = GAUSSIAN       GAUSSIAN, POISSON or EMCCD
+ * fitting.countsPerPhoton = 1
+ * fitting.heightMin = 0
+ * fitting.qualityMin = 0
+ * tracking.maxDisplacement = 400      nm
+ * tracking.maxBlinking = 0
+ * tracking.errorThreshold = -1
+ * tracking.optimizer = EXHAUSTIVE     EXHAUSTIVE or LAP (linear assignment)
+ * drift.file =                        drift data to import, {name} is replaced by the input file name
+ * drift.estimate = false              estimate the drift from all trajectories
+ * drift.compensate = false            compensate the drift in the PALM image
+ * palm.type =                         HEAD, TAIL, AVERAGE, ALLPOINTS or TIMELAPSE; no PALM image by default
+ * palm.pixelSize = 16                 nm
+ * palm.resolution = 0                 nm, 0 for the localization error of each particle
+ * palm.zMin, palm.zMax = 0            nm, Z range of the pseudo-color rendering
+ * </pre>
+ * The defaults of the pixel size, the fitting engine, the noise model, counts per photon and the
+ * astigmatism calibration are taken from the Octane preferences, as in the plugin.
+ *
+ */
+public class BatchRunner {
+
+	final private Properties params_;
+	final private int nThreads_;
+	final private int nConcurrentFiles_;
+	final private double pixelSize_;
+	final private TrackingParameters trackingParams_;
+	final private PalmParameters palmParams_;
+	final private GaussianFitBase.FittingEngine engine_;
+	final private GaussianFitBase.NoiseModel noiseModel_;
+	final private double countsPerPhoton_;
+
+	/**
+	 * Constructor
+	 * @param params The analysis settings
+	 */
+	public BatchRunner(Properties params) {
+		params_ = params;
+		nThreads_ = Math.max(1, getInt("threads", Runtime.getRuntime().availableProcessors()));
+		nConcurrentFiles_ = Math.min(Math.max(1, nThreads_ / 3), Math.max(1, getInt("concurrentFiles", 1)));
+		pixelSize_ = getDouble("pixelSize", GlobalPrefs.defaultPixelSize_);
+
+		TrackingParameters defaults = TrackingParameters.getDefault();
+		trackingParams_ = new TrackingParameters(
+				getDouble("tracking.maxDisplacement", defaults.getMaxDisplacement() * pixelSize_) / pixelSize_,
+				getInt("tracking.maxBlinking", defaults.getMaxBlinking()),
+				getDouble("tracking.errorThreshold", defaults.getErrorThreshold()),
+				defaults.getLowerBound(),
+				TrackingParameters.Optimizer.valueOf(getString("tracking.optimizer", defaults.getOptimizer().name()).toUpperCase()));
+
+		engine_ = GaussianFitBase.FittingEngine.valueOf(getString("fitting.engine", GlobalPrefs.getFittingEngine().name()).toUpperCase());
+		noiseModel_ = GaussianFitBase.NoiseModel.valueOf(getString("fitting.noiseModel", GlobalPrefs.getNoiseModel().name()).toUpperCase());
+		countsPerPhoton_ = getDouble("fitting.countsPerPhoton", GlobalPrefs.getCountsPerPhoton());
+		if (! (countsPerPhoton_ > 0)) {
+			throw new IllegalArgumentException("fitting.countsPerPhoton: must be positive");
+		}
+
+		String type = getString("palm.type", null);
+		if (type != null) {
+			palmParams_ = new PalmParameters(Palm.PalmType.valueOf(type.toUpperCase()),
+					pixelSize_,
+					getDouble("palm.pixelSize", 16),
+					getDouble("palm.resolution", 0),
+					true,
+					getDouble("palm.zMin", 0),
+					getDouble("palm.zMax", 0),
+					false, 0, 0, 0,
+					getBoolean("drift.compensate", false));
+		} else {
+			palmParams_ = null;
+		}
+	}
+
+	String getString(String key, String defaultValue) {
+		String v = params_.getProperty(key);
+		return (v == null || v.trim().isEmpty()) ? defaultValue : v.trim();
+	}
+
+	int getInt(String key, int defaultValue) {
+		String v = getString(key, null);
+		return v == null ? defaultValue : Integer.parseInt(v);
+	}
+
+	double getDouble(String key, double defaultValue) {
+		String v = getString(key, null);
+		return v == null ? defaultValue : Double.parseDouble(v);
+	}
+
+	boolean getBoolean(String key, boolean defaultValue) {
+		String v = getString(key, null);
+		return v == null ? defaultValue : Boolean.parseBoolean(v);
+	}
+
+	double [] getDoubles(String key, String defaultValue, int n) {
+		String [] substrs = getString(key, defaultValue).split(",");
+		if (substrs.length != n) {
+			throw new IllegalArgumentException(key + ": " + n + " values expected");
+		}
+		double [] v = new double[n];
+		for (int i = 0; i < n; i++) {
+			v[i] = Double.parseDouble(substrs[i].trim());
+		}
+		return v;
+	}
+
+	/**
+	 * Particle analysis settings of one file, read from the parameter file
+	 */
+	class FileAnalysis implements LocalizationPipeline.FrameAnalysis {
+
+		final String mode_ = getString("fitting.mode", "2d").toLowerCase();
+		final int watershedNoise_ = getInt("watershed.noise", 100);
+		final int watershedThreshold_ = getInt("watershed.threshold", watershedNoise_);
+		final boolean preProcessBackground_ = getBoolean("fitting.preprocessBackground", false);
+		final boolean deflation_ = getBoolean("fitting.deflation", true);
+		final boolean batchFitting_ = getBoolean("fitting.batch", false);
+		final double heightMin_ = getDouble("fitting.heightMin", 0);
+		final double fittingQualityMin_ = getDouble("fitting.qualityMin", 0);
+		final double [] calibration_ = new double[6];
+		final double sigma_;
+		final Rectangle mask_;
+		ForkJoinPool batchPool_ = null;
+
+		FileAnalysis(int width, int height) {
+
+			if (mode_.equals("astigmatism")) {
+				System.arraycopy(getDoubles("fitting.calibrationX", GlobalPrefs.calibrationStrX_, 3), 0, calibration_, 0, 3);
+				System.arraycopy(getDoubles("fitting.calibrationY", GlobalPrefs.calibrationStrY_, 3), 0, calibration_, 3, 3);
+				sigma_ = (calibration_[0] + calibration_[3]) / 2;
+			} else if (mode_.equals("2d") || mode_.equals("none")) {
+				sigma_ = getDouble("fitting.resolution", 300) / 2.355 / pixelSize_;
+			} else {
+				throw new IllegalArgumentException("fitting.mode: unknown mode " + mode_);
+			}
+			if (sigma_ <= 0) {
+				throw new IllegalArgumentException("fitting: PSF size must be positive");
+			}
+
+			String maskStr = getString("mask", null);
+			if (maskStr == null) {
+				mask_ = new Rectangle(0, 0, width, height);
+			} else {
+				double [] r = getDoubles("mask", null, 4);
+				mask_ = new Rectangle((int) r[0], (int) r[1], (int) r[2], (int) r[3]).intersection(new Rectangle(0, 0, width, height));
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see edu.uchc.octane.LocalizationPipeline.FrameAnalysis#configureModule(edu.uchc.octane.ParticleAnalysis)
+		 */
+		@Override
+		public void configureModule(ParticleAnalysis module) {
+
+			GaussianFitBase fittingModule = module.getGaussianFitModule();
+			if (mode_.equals("astigmatism")) {
+				if (! (fittingModule instanceof GaussianFitAstigmatism)) {
+					fittingModule = new GaussianFitAstigmatism();
+				}
+				((GaussianFitAstigmatism) fittingModule).setCalibration(calibration_);
+				((GaussianFitAstigmatism) fittingModule).setPreferredSigmaValue(sigma_);
+			} else if (mode_.equals("2d")) {
+				if (! (fittingModule instanceof GaussianFit2D)) {
+					fittingModule = new GaussianFit2D();
+				}
+				((GaussianFit2D) fittingModule).setPreferredSigmaValue(sigma_);
+			} else {
+				module.setGaussianFitModule(null);
+				module.setHeightMin(heightMin_);
+				return;
+			}
+
+			fittingModule.setWindowSize((int) Math.round(sigma_ * 2.5));
+			fittingModule.setPreprocessBackground(preProcessBackground_);
+			fittingModule.setDeflation(deflation_);
+			fittingModule.setFittingEngine(engine_);
+			fittingModule.setNoiseModel(noiseModel_);
+			fittingModule.setCountsPerPhoton(countsPerPhoton_);
+
+			module.setGaussianFitModule(fittingModule);
+			module.setBatchFitting(batchPool_);
+			module.setFittingQualityMin(fittingQualityMin_);
+			module.setHeightMin(heightMin_);
+		}
+
+		/* (non-Javadoc)
+		 * @see edu.uchc.octane.LocalizationPipeline.FrameAnalysis#getMask()
+		 */
+		@Override
+		public Rectangle getMask() {
+			return mask_;
+		}
+
+		/* (non-Javadoc)
+		 * @see edu.uchc.octane.LocalizationPipeline.FrameAnalysis#getWatershedThreshold()
+		 */
+		@Override
+		public int getWatershedThreshold() {
+			return watershedThreshold_;
+		}
+
+		/* (non-Javadoc)
+		 * @see edu.uchc.octane.LocalizationPipeline.FrameAnalysis#getWatershedNoise()
+		 */
+		@Override
+		public int getWatershedNoise() {
+			return watershedNoise_;
+		}
+	}
+
+	/**
+	 * Analyze one file and save the results next to it.
+	 * Two of the threads decode the frames and collect the results. The collecting thread also tracks
+	 * the frames. The other threads detect and fit the particles.
+	 * @param file The image file
+	 * @param nThreads Number of threads for this file. At least 3 threads are used.
+	 * @throws IOException
+	 */
+	public void processFile(File file, int nThreads) throws IOException {
+
+		String name = file.getName();
+		long start = System.currentTimeMillis();
+
+		FrameSource source;
+		try {
+			source = MappedFrameSource.openTiff(file.getPath());
+		} catch (IOException e) {
+			ImagePlus imp = IJ.openImage(file.getPath());
+			if (imp == null) {
+				throw new IOException("Can't open " + file.getPath());
+			}
+			source = new StackFrameSource(imp.getStack());
+		}
+
+		FileAnalysis analysis = new FileAnalysis(source.getWidth(), source.getHeight());
+		int nCompute = Math.max(1, nThreads - 2);
+		LocalizationPipeline pipeline = new LocalizationPipeline(source, analysis, nCompute);
+		if (analysis.batchFitting_) {
+			// one frame at a time is fitted, its spots by the threads of the pool while the fitting thread waits
+			int nFit = pipeline.getStageThreads(LocalizationPipeline.Stage.FIT);
+			pipeline.setStageThreads(LocalizationPipeline.Stage.FIT, 1);
+			analysis.batchPool_ = new ForkJoinPool(nFit);
+		}
+
+		// track while the frames are analyzed
+		final ArrayList<Trajectory> trajectories = new ArrayList<Trajectory>();
+		TrackingModule tracker = new TrackingModule(trackingParams_, new TrackingModule.TrajectorySink() {
+			@Override
+			public void trajectoryFinished(Trajectory trajectory) {
+				trajectories.add(trajectory);
+			}
+		});
+		tracker.setNumThreads(1);
+		pipeline.setTracker(tracker);
+
+		SmNode [][] nodes;
+		try {
+			nodes = pipeline.run();
+		} finally {
+			source.close();
+			if (analysis.batchPool_ != null) {
+				analysis.batchPool_.shutdown();
+			}
+		}
+		tracker.finish();
+		if (nodes == null) {
+			Throwable e = pipeline.getError();
+			throw new IOException(name + ": analysis failed" + (e == null ? "" : ": " + e), e);
+		}
+		IJ.log(name + ": " + pipeline.getNumParticles() + " particles. " + pipeline.reportUtilization());
+
+		TrajDataset data = TrajDataset.createDatasetFromTrajectories(trajectories);
+		data.setPixelSize(pixelSize_);
+
+		String driftFile = getString("drift.file", null);
+		if (driftFile != null) {
+			File f = new File(driftFile.replace("{name}", name));
+			if (! f.isAbsolute()) {
+				f = new File(file.getAbsoluteFile().getParentFile(), f.getPath());
+			}
+			data.importDriftData(f);
+		} else if (getBoolean("drift.estimate", false)) {
+			int [] all = new int[data.getSize()];
+			for (int i = 0; i < all.length; i++) {
+				all[i] = i;
+			}
+			data.estimateDrift(all);
+		}
+
+		File datasetFile = new File(file.getAbsoluteFile().getParentFile(), name + ".dataset");
+		backupFile(datasetFile);
+		data.saveDataset(datasetFile);
+
+		if (palmParams_ != null) {
+			int [] selected = new int[data.getSize()];
+			for (int i = 0; i < selected.length; i++) {
+				selected[i] = i;
+			}
+			Palm palm = new Palm(data, palmParams_);
+			ImagePlus imp = palm.constructPalm(analysis.getMask(), source.getSize(), name, selected);
+			String palmName = imp.getTitle();
+			if (! palmName.toLowerCase().endsWith(".tif")) {
+				palmName = palmName + ".tif";
+			}
+			File palmFile = new File(file.getAbsoluteFile().getParentFile(), palmName);
+			FileSaver saver = new FileSaver(imp);
+			if (! (imp.getStackSize() > 1 ? saver.saveAsTiffStack(palmFile.getPath()) : saver.saveAsTiff(palmFile.getPath()))) {
+				throw new IOException("Can't save " + palmFile.getPath());
+			}
+		}
+
+		IJ.log(name + ": " + data.getSize() + " trajectories saved in " + (System.currentTimeMillis() - start) / 1000.0 + " s.");
+	}
+
+	/**
+	 * Rename an existing file to filename.bN, so it is not overwritten
+	 * @param file The file
+	 * @throws IOException
+	 */
+	static void backupFile(File file) throws IOException {
+		if (! file.exists()) {
+			return;
+		}
+		int idx = 1;
+		File newFile;
+		do {
+			newFile = new File(file.getPath() + ".b" + idx);
+			idx ++;
+		} while (newFile.exists());
+		if (! file.renameTo(newFile)) {
+			throw new IOException("Can't rename " + file.getPath());
+		}
+	}
+
+	/**
+	 * Analyze all files. Up to concurrentFiles files are analyzed at the same time. The files share the
+	 * thread budget, which counts every thread of processFile(), so threads / concurrentFiles threads 
+	 * are used per file, but no less than 3.
+	 * @param files The image files
+	 * @return Number of files that failed
+	 */
+	public int processFiles(List<File> files) {
+
+		final int nPerFile = Math.max(1, nThreads_ / nConcurrentFiles_);
+		ExecutorService executor = Executors.newFixedThreadPool(nConcurrentFiles_);
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+
+		for (final File file : files) {
+			futures.add(executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						processFile(file, nPerFile);
+					} catch (IOException e) {
+						throw new RuntimeException(e.getMessage(), e);
+					}
+				}
+			}));
+		}
+		executor.shutdown();
+
+		int nFailed = 0;
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				futures.get(i).get();
+			} catch (ExecutionException e) {
+				IJ.log(files.get(i).getName() + ": " + e.getCause().getMessage());
+				nFailed ++;
+			} catch (InterruptedException e) {
+				executor.shutdownNow();
+				Thread.currentThread().interrupt();
+				return files.size() - i;
+			}
+		}
+		return nFailed;
+	}
+
+	/**
+	 * List the input files. Directories are expanded to the TIFF files they contain.
+	 * @param paths Files and directories
+	 * @return The files
+	 * @throws IOException if a directory can not be read
+	 */
+	static List<File> listInputFiles(String [] paths) throws IOException {
+		List<File> files = new ArrayList<File>();
+		for (String p : paths) {
+			File f = new File(p);
+			if (f.isDirectory()) {
+				File [] children = f.listFiles();
+				if (children == null) {
+					throw new IOException(p + ": directory can not be read");
+				}
+				Arrays.sort(children);
+				for (File c : children) {
+					String n = c.getName().toLowerCase();
+					if (c.isFile() && (n.endsWith(".tif") || n.endsWith(".tiff"))) {
+						files.add(c);
+					}
+				}
+			} else {
+				files.add(f);
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * The command line entry
+	 * @param args Parameter file followed by image files or directories
+	 */
+	public static void main(String [] args) {
+
+		if (args.length < 2) {
+			System.err.println("Usage: BatchRunner params.properties file|directory ...");
+			System.exit(2);
+		}
+
+		Properties params = new Properties();
+		int nFailed;
+		try {
+			InputStream in = new FileInputStream(args[0]);
+			try {
+				params.load(in);
+			} finally {
+				in.close();
+			}
+			BatchRunner runner = new BatchRunner(params);
+			nFailed = runner.processFiles(listInputFiles(Arrays.copyOfRange(args, 1, args.length)));
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+			nFailed = 1;
+		} catch (IllegalArgumentException e) {
+			System.err.println("Parameter error: " + e.getMessage());
+			nFailed = 1;
+		}
+
+		System.exit(nFailed > 0 ? 1 : 0);
+	}
+}
@@ -82,10 +82,18 @@ public class CalibrationDialogAstigmatism extends ParticleAnalysisDialogBase {
 	}
 	
 	@Override
-	public void processCurrentFrame(ImageProcessor ip, ParticleAnalysis module) throws InterruptedException {
-		
-		module.process(ip, rect_, watershedNoise_, watershedNoise_);
+	public void configureModule(ParticleAnalysis module) {
+		module.setGaussianFitModule(null);
+	}
+
+	@Override
+	public int getWatershedThreshold() {
+		return watershedNoise_;
+	}
 
+	@Override
+	public int getWatershedNoise() {
+		return watershedNoise_;
 	}
 
 	/* (non-Javadoc)
@@ -124,6 +132,7 @@ public class CalibrationDialogAstigmatism extends ParticleAnalysisDialogBase {
 		fittingModule.setPreprocessBackground(true);
 		fittingModule.setDeflation(true);
 		fittingModule.setPreferredSigmaValue(sigma);
+		fittingModule.setFittingEngine(fittingEngine_);
 		fittingModule.setCalibration(null);
 
 		double [] sigmax = new double[stack.getSize()];
@@ -0,0 +1,557 @@
+//FILE:          CsvReader.java
+//PROJECT:       Octane
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ji Yu, jyu@uchc.edu
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package edu.uchc.octane;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reads comma separated localization files: frame, x, y[, z[, height]][, ..., trace ID].
+ * Lines starting with # or // and blank lines are ignored.
+ *
+ * The file is split at line boundaries into chunks that are memory mapped and parsed in
+ * parallel. Numbers are parsed directly from the bytes. The result is the same as parsing
+ * each line with SmNode(String).
+ */
+public class CsvReader {
+
+	private static final int MIN_CHUNK_SIZE = 1 << 20;
+	private static final int MAX_CHUNK_SIZE = 1 << 28;
+
+	private static final double [] POW10 = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+	private static final long [] LONG_POW10 = new long[19];
+	static {
+		LONG_POW10[0] = 1;
+		for (int i = 1; i < LONG_POW10.length; i++) {
+			LONG_POW10[i] = LONG_POW10[i - 1] * 10;
+		}
+	}
+
+	private static final Charset ASCII = Charset.forName("ISO-8859-1");
+
+	final private File file_;
+	final private int nThreads_;
+
+	/**
+	 * The rows parsed from one chunk of the file
+	 */
+	static class Chunk {
+		final long start;
+		final long end;
+		int n = 0;
+		int maxFrame = 0;
+		int [] frame;
+		double [] x;
+		double [] y;
+		double [] z;
+		int [] height;
+		int [] id;
+		int [] comma = new int[8];
+
+		Chunk(long start, long end, boolean withId) {
+			this.start = start;
+			this.end = end;
+			int capacity = (int) Math.max(16, (end - start) / 40);
+			frame = new int[capacity];
+			x = new double[capacity];
+			y = new double[capacity];
+			z = new double[capacity];
+			height = new int[capacity];
+			id = withId ? new int[capacity] : null;
+		}
+
+		void grow() {
+			int capacity = frame.length + (frame.length >> 1);
+			frame = Arrays.copyOf(frame, capacity);
+			x = Arrays.copyOf(x, capacity);
+			y = Arrays.copyOf(y, capacity);
+			z = Arrays.copyOf(z, capacity);
+			height = Arrays.copyOf(height, capacity);
+			if (id != null) {
+				id = Arrays.copyOf(id, capacity);
+			}
+		}
+	}
+
+	/**
+	 * Constructor
+	 * @param file The text file
+	 * @param nThreads Number of threads
+	 */
+	public CsvReader(File file, int nThreads) {
+		file_ = file;
+		nThreads_ = Math.max(1, nThreads);
+	}
+
+	/**
+	 * Read a file of localizations without trace IDs
+	 * @return The nodes grouped by frame, nodes[frame - 1][offset], in the order of the file
+	 * @throws IOException
+	 * @throws NumberFormatException if a line can't be parsed
+	 */
+	public SmNode [][] readPositions() throws IOException {
+		final List<Chunk> chunks = parse(false);
+
+		int maxFrame = 0;
+		for (Chunk c : chunks) {
+			maxFrame = Math.max(maxFrame, c.maxFrame);
+		}
+
+		// position of each chunk's first node within each frame
+		final int [][] offsets = new int[chunks.size()][];
+		int [] count = new int[maxFrame + 1];
+		for (int k = 0; k < chunks.size(); k++) {
+			offsets[k] = Arrays.copyOf(count, count.length);
+			Chunk c = chunks.get(k);
+			for (int i = 0; i < c.n; i++) {
+				count[c.frame[i]] ++;
+			}
+		}
+		final SmNode [][] nodes = new SmNode[maxFrame][];
+		for (int f = 1; f <= maxFrame; f++) {
+			nodes[f - 1] = new SmNode[count[f]];
+		}
+
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int k = 0; k < chunks.size(); k++) {
+			final Chunk c = chunks.get(k);
+			final int [] pos = offsets[k];
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					for (int i = 0; i < c.n; i++) {
+						int f = c.frame[i];
+						nodes[f - 1][pos[f]++] = new SmNode(c.x[i], c.y[i], c.z[i], f, c.height[i], 0.0);
+					}
+					return null;
+				}
+			});
+		}
+		runAll(tasks);
+
+		return nodes;
+	}
+
+	/**
+	 * Read a file of trajectories. The last value of each line is the trace ID, which
+	 * starts from 0 and increases by one from one trajectory to the next.
+	 * @return A new dataset, or null if the trace IDs are not continuous
+	 * @throws IOException
+	 * @throws NumberFormatException if a line can't be parsed or has no trace ID
+	 */
+	public TrajDataset readTrajectories() throws IOException {
+		final List<Chunk> chunks = parse(true);
+
+		int n = 0;
+		int cur = -1;
+		int [] start = new int[16];
+		final int [] chunkOffset = new int[chunks.size()];
+		for (int k = 0; k < chunks.size(); k++) {
+			Chunk c = chunks.get(k);
+			chunkOffset[k] = n;
+			for (int i = 0; i < c.n; i++, n++) {
+				if (c.id[i] == cur + 1) {
+					cur ++;
+					if (cur == start.length) {
+						start = Arrays.copyOf(start, cur * 2);
+					}
+					start[cur] = n;
+				} else if (c.id[i] != cur) {
+					return null;
+				}
+			}
+		}
+
+		final double [] x = new double[n];
+		final double [] y = new double[n];
+		final float [] z = new float[n];
+		final int [] frame = new int[n];
+		final int [] height = new int[n];
+
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int k = 0; k < chunks.size(); k++) {
+			final Chunk c = chunks.get(k);
+			final int offset = chunkOffset[k];
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					System.arraycopy(c.x, 0, x, offset, c.n);
+					System.arraycopy(c.y, 0, y, offset, c.n);
+					System.arraycopy(c.frame, 0, frame, offset, c.n);
+					System.arraycopy(c.height, 0, height, offset, c.n);
+					for (int i = 0; i < c.n; i++) {
+						z[offset + i] = (float) c.z[i];
+					}
+					return null;
+				}
+			});
+		}
+		runAll(tasks);
+
+		int nTraj = cur + 1;
+		LocalizationTable table = LocalizationTable.fromColumns(x, y, z, new float[n], frame, height, Arrays.copyOf(start, nTraj));
+		TrajDataset dataset = new TrajDataset();
+		dataset.setTrajectories(table, new byte[nTraj], new HashMap<Integer, String>());
+		return dataset;
+	}
+
+	private void runAll(List<Callable<Void>> tasks) throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(nThreads_, Math.max(1, tasks.size())));
+		try {
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			for (Callable<Void> task : tasks) {
+				futures.add(executor.submit(task));
+			}
+			for (Future<Void> f : futures) {
+				f.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException(cause.getMessage());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private List<Chunk> parse(final boolean withId) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file_, "r");
+		final FileChannel channel = raf.getChannel();
+		try {
+			long size = channel.size();
+			long chunkSize = Math.min(MAX_CHUNK_SIZE, Math.max(MIN_CHUNK_SIZE, size / (4 * nThreads_) + 1));
+
+			final List<Chunk> chunks = new ArrayList<Chunk>();
+			long start = 0;
+			while (start < size) {
+				long end = nextLine(channel, Math.min(size, start + chunkSize));
+				chunks.add(new Chunk(start, end, withId));
+				start = end;
+			}
+
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+			for (final Chunk c : chunks) {
+				tasks.add(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, c.start, c.end - c.start);
+						parseChunk(buf, c);
+						return null;
+					}
+				});
+			}
+			runAll(tasks);
+			return chunks;
+		} finally {
+			channel.close();
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return The start of the first line at or after pos, or the file size
+	 */
+	private static long nextLine(FileChannel channel, long pos) throws IOException {
+		if (pos == 0 || pos >= channel.size()) {
+			return pos;
+		}
+		ByteBuffer buf = ByteBuffer.allocate(4096);
+		pos --;
+		while (true) {
+			buf.clear();
+			int n = channel.read(buf, pos);
+			if (n <= 0) {
+				return channel.size();
+			}
+			for (int i = 0; i < n; i++) {
+				if (buf.get(i) == '\n') {
+					return pos + i + 1;
+				}
+			}
+			pos += n;
+		}
+	}
+
+	static void parseChunk(ByteBuffer buf, Chunk c) {
+		int limit = buf.limit();
+		int pos = 0;
+		while (pos < limit) {
+			int eol = pos;
+			while (eol < limit && buf.get(eol) != '\n') {
+				eol ++;
+			}
+			parseLine(buf, pos, eol, c);
+			pos = eol + 1;
+		}
+	}
+
+	static void parseLine(ByteBuffer buf, int start, int end, Chunk c) {
+		if (end > start && buf.get(end - 1) == '\r') {
+			end --;
+		}
+		if (start == end) {
+			return;
+		}
+		byte b = buf.get(start);
+		if (b == '#' || (b == '/' && start + 1 < end && buf.get(start + 1) == '/')) {
+			return;
+		}
+		boolean blank = true;
+		for (int i = start; i < end && blank; i++) {
+			blank = (buf.get(i) & 0xff) <= ' ';
+		}
+		if (blank) {
+			return;
+		}
+
+		// comma[k] is the end of field k, comma[-1] is start - 1
+		int nFields = 0;
+		for (int i = start; i <= end; i++) {
+			if (i == end || buf.get(i) == ',') {
+				if (nFields == c.comma.length) {
+					c.comma = Arrays.copyOf(c.comma, nFields * 2);
+				}
+				c.comma[nFields++] = i;
+			}
+		}
+		int nValues = c.id != null ? nFields - 1 : nFields;
+		// like String.split(), ignore empty trailing fields
+		while (nValues > 1 && c.comma[nValues - 1] == c.comma[nValues - 2] + 1) {
+			nValues --;
+		}
+		if (nValues < 3) {
+			throw new NumberFormatException("Too few values at position " + (c.start + start));
+		}
+
+		if (c.n == c.frame.length) {
+			c.grow();
+		}
+		int n = c.n;
+		int f = parseInt(buf, start, c.comma[0]);
+		if (f < 1) {
+			throw new NumberFormatException("Invalid frame number " + f + " at position " + (c.start + start));
+		}
+		c.frame[n] = f;
+		c.x[n] = parseDouble(buf, c.comma[0] + 1, c.comma[1]);
+		c.y[n] = parseDouble(buf, c.comma[1] + 1, c.comma[2]);
+		c.z[n] = nValues > 3 ? parseDouble(buf, c.comma[2] + 1, c.comma[3]) : 0;
+		c.height[n] = nValues > 4 ? (int) parseDouble(buf, c.comma[3] + 1, c.comma[4]) : 0;
+		if (c.id != null) {
+			c.id[n] = parseInt(buf, c.comma[nFields - 2] + 1, c.comma[nFields - 1]);
+		}
+		c.maxFrame = Math.max(c.maxFrame, f);
+		c.n ++;
+	}
+
+	private static String toString(ByteBuffer buf, int start, int end) {
+		byte [] b = new byte[end - start];
+		for (int i = start; i < end; i++) {
+			b[i - start] = buf.get(i);
+		}
+		return new String(b, ASCII);
+	}
+
+	/**
+	 * Parse an integer like Integer.parseInt(s.trim())
+	 */
+	static int parseInt(ByteBuffer buf, int start, int end) {
+		while (start < end && (buf.get(start) & 0xff) <= ' ') {
+			start ++;
+		}
+		while (end > start && (buf.get(end - 1) & 0xff) <= ' ') {
+			end --;
+		}
+		int i = start;
+		boolean negative = false;
+		if (i < end && (buf.get(i) == '-' || buf.get(i) == '+')) {
+			negative = buf.get(i) == '-';
+			i ++;
+		}
+		if (i == end) {
+			throw new NumberFormatException("For input string: \"" + toString(buf, start, end) + "\"");
+		}
+		long v = 0;
+		for (; i < end; i++) {
+			int d = buf.get(i) - '0';
+			if (d < 0 || d > 9 || v > Integer.MAX_VALUE + 1L) {
+				throw new NumberFormatException("For input string: \"" + toString(buf, start, end) + "\"");
+			}
+			v = v * 10 + d;
+		}
+		v = negative ? -v : v;
+		if (v > Integer.MAX_VALUE || v < Integer.MIN_VALUE) {
+			throw new NumberFormatException("For input string: \"" + toString(buf, start, end) + "\"");
+		}
+		return (int) v;
+	}
+
+	/**
+	 * Parse a double like Double.parseDouble(). Plain decimal numbers with up to 18 significant
+	 * digits are converted with correct rounding without creating a String. Anything else
+	 * is handed to Double.parseDouble().
+	 * @param buf The text
+	 * @param start Position of the first character
+	 * @param end Position after the last character
+	 * @return The value
+	 * @throws NumberFormatException if the text is not a number
+	 */
+	public static double parseDouble(ByteBuffer buf, int start, int end) {
+		while (start < end && (buf.get(start) & 0xff) <= ' ') {
+			start ++;
+		}
+		while (end > start && (buf.get(end - 1) & 0xff) <= ' ') {
+			end --;
+		}
+		int i = start;
+		boolean negative = false;
+		if (i < end && (buf.get(i) == '-' || buf.get(i) == '+')) {
+			negative = buf.get(i) == '-';
+			i ++;
+		}
+
+		long m = 0;
+		int nDigits = 0;
+		int exp = 0;
+		boolean anyDigit = false;
+		boolean point = false;
+		for (; i < end; i++) {
+			byte b = buf.get(i);
+			if (b >= '0' && b <= '9') {
+				anyDigit = true;
+				if (m != 0 || b != '0') {
+					if (nDigits == 18) {
+						return Double.parseDouble(toString(buf, start, end));
+					}
+					m = m * 10 + (b - '0');
+					nDigits ++;
+				}
+				if (point) {
+					exp --;
+				}
+			} else if (b == '.' && !point) {
+				point = true;
+			} else {
+				break;
+			}
+		}
+		if (!anyDigit) {
+			return Double.parseDouble(toString(buf, start, end));
+		}
+		if (i < end && (buf.get(i) == 'e' || buf.get(i) == 'E')) {
+			i ++;
+			boolean negativeExp = false;
+			if (i < end && (buf.get(i) == '-' || buf.get(i) == '+')) {
+				negativeExp = buf.get(i) == '-';
+				i ++;
+			}
+			int e = 0;
+			int expStart = i;
+			for (; i < end; i++) {
+				int d = buf.get(i) - '0';
+				if (d < 0 || d > 9 || e > 100000) {
+					break;
+				}
+				e = e * 10 + d;
+			}
+			if (i == expStart) {
+				return Double.parseDouble(toString(buf, start, end));
+			}
+			exp += negativeExp ? -e : e;
+		}
+		if (i != end) {
+			return Double.parseDouble(toString(buf, start, end));
+		}
+
+		double v = decimalToDouble(m, exp);
+		if (Double.isNaN(v)) {
+			return Double.parseDouble(toString(buf, start, end));
+		}
+		return negative ? -v : v;
+	}
+
+	/**
+	 * Correctly rounded m * 10^exp, for 0 <= m < 10^18
+	 * @return The value, or NaN if it can't be computed exactly here
+	 */
+	static double decimalToDouble(long m, int exp) {
+		if (m == 0) {
+			return 0.0;
+		}
+		if (exp == 0) {
+			return m;
+		}
+		if (m < (1L << 53) && exp > 0 && exp < POW10.length) {
+			return m * POW10[exp];
+		}
+		if (m < (1L << 53) && exp < 0 && -exp < POW10.length) {
+			return m / POW10[-exp];
+		}
+		if (exp > 0 && exp < LONG_POW10.length && m <= Long.MAX_VALUE / LONG_POW10[exp]) {
+			return (double) (m * LONG_POW10[exp]);
+		}
+		if (exp < 0 && -exp < LONG_POW10.length) {
+			// long division of m by 10^-exp, as many bits at a time as the remainder allows,
+			// until there are at least 55 significant bits. Then round half to even,
+			// using the remainder as sticky bit.
+			long d = LONG_POW10[-exp];
+			int step = Long.numberOfLeadingZeros(d) - 1;
+			long q = m / d;
+			long r = m % d;
+			int shift = 0;
+			int bits;
+			while ((bits = 64 - Long.numberOfLeadingZeros(q)) < 55) {
+				int s = Math.min(step, 55 - bits);
+				r <<= s;
+				q = (q << s) | (r / d);
+				r = r % d;
+				shift += s;
+			}
+			int extra = 64 - Long.numberOfLeadingZeros(q) - 53;
+			long mantissa = q >>> extra;
+			long rest = q & ((1L << extra) - 1);
+			long half = 1L << (extra - 1);
+			if (rest > half || (rest == half && (r != 0 || (mantissa & 1) != 0))) {
+				mantissa ++;
+			}
+			return Math.scalb((double) mantissa, extra - shift);
+		}
+		return Double.NaN;
+	}
+}
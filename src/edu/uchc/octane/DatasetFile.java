@@ -0,0 +1,724 @@
+//FILE:          DatasetFile.java
+//PROJECT:       Octane
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ji Yu, jyu@uchc.edu
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package edu.uchc.octane;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Binary container of a dataset, replacing the serialized Vector&lt;Trajectory&gt; of older versions.
+ *
+ * The file starts with a fixed header, followed by a block directory and the data blocks.
+ * All numbers are little endian and every block starts at a multiple of 8 bytes, so a block
+ * can be memory mapped and read as a primitive buffer directly.
+ *
+ * <pre>
+ * header     magic "OCTDSET\0", int version, int number of blocks,
+ *            int number of localizations, int number of trajectories,
+ *            int number of drift frames, int reserved, double pixel size
+ * directory  per block: int block id, int reserved, long offset, long length in bytes
+ * blocks     X, Y (double), Z, RESIDUE (float), FRAME, HEIGHT (int) per localization,
+ *            TRAJECTORY_START (int) and FLAGS (byte, bit 0 marked, bit 1 deleted) per trajectory,
+ *            DRIFT_X, DRIFT_Y, DRIFT_Z (double) per frame,
+ *            NOTES as a list of (int trajectory, int length, UTF-8 bytes)
+ * </pre>
+ *
+ * Readers skip blocks they don't know. The version is only increased for changes that
+ * older readers can't handle.
+ *
+ * A dataset is opened by mapping the localization columns, so only the pages that are
+ * accessed are read from disk.
+ */
+public class DatasetFile {
+
+	static final byte [] MAGIC = {'O', 'C', 'T', 'D', 'S', 'E', 'T', 0};
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 40;
+	static final int DIRECTORY_ENTRY_SIZE = 24;
+
+	static final int X = 1;
+	static final int Y = 2;
+	static final int Z = 3;
+	static final int RESIDUE = 4;
+	static final int FRAME = 5;
+	static final int HEIGHT = 6;
+	static final int TRAJECTORY_START = 7;
+	static final int FLAGS = 8;
+	static final int DRIFT_X = 9;
+	static final int DRIFT_Y = 10;
+	static final int DRIFT_Z = 11;
+	static final int NOTES = 12;
+
+	static final byte FLAG_MARKED = 1;
+	static final byte FLAG_DELETED = 2;
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * Test whether a file is in this format, as opposed to the old serialized format.
+	 * @param file The file
+	 * @return True if the file starts with the magic number
+	 * @throws IOException
+	 */
+	public static boolean isDatasetFile(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			byte [] b = new byte[MAGIC.length];
+			int n = 0;
+			int r;
+			while (n < b.length && (r = in.read(b, n, b.length - n)) > 0) {
+				n += r;
+			}
+			return n == b.length && Arrays.equals(b, MAGIC);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static long align(long pos) {
+		return (pos + 7) & ~7L;
+	}
+
+	private static byte [][] encodeNotes(TrajDataset dataset) {
+		byte [][] notes = new byte[dataset.getSize()][];
+		for (int i = 0; i < notes.length; i++) {
+			String note = dataset.getNote(i);
+			if (note != null) {
+				notes[i] = note.getBytes(UTF8);
+			}
+		}
+		return notes;
+	}
+
+	/**
+	 * Write a dataset. The data are written to a temporary file which then replaces the file,
+	 * so a dataset opened from the same file stays readable while it is saved.
+	 * If the file can't be replaced, the temporary file is kept unless the original file still exists.
+	 *
+	 * A dataset that is memory mapped from the file itself is not written again, because a
+	 * mapped file can't be replaced on all systems. Only the blocks that can change after the
+	 * dataset is opened (flags, notes, drift data and pixel size) are updated in the file.
+	 * @param dataset The dataset
+	 * @param file The file
+	 * @throws IOException
+	 */
+	public static void write(TrajDataset dataset, File file) throws IOException {
+		if (isMappedFrom(dataset.getLocalizations(), file) && update(dataset, file)) {
+			return;
+		}
+		File tmp = new File(file.getPath() + ".tmp");
+		writeFile(dataset, tmp);
+		try {
+			try {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			if (file.exists()) {
+				tmp.delete();
+				throw new IOException("Can't replace " + file.getPath() + ": " + e.getMessage());
+			}
+			throw new IOException("Can't replace " + file.getPath() + ", the data are kept in " + tmp.getPath());
+		}
+	}
+
+	private static Object fileKey(File file) throws IOException {
+		return Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+	}
+
+	/**
+	 * Test whether a table is memory mapped from a file, which has not been replaced since.
+	 * @param table The table
+	 * @param file The file
+	 * @return True if the table is mapped from the file
+	 * @throws IOException
+	 */
+	static boolean isMappedFrom(LocalizationTable table, File file) throws IOException {
+		LocalizationTable.MappedColumns columns = table.getMappedColumns();
+		if (columns == null || columns.file == null || ! file.exists()) {
+			return false;
+		}
+		if (! columns.file.equals(file.getCanonicalFile())) {
+			return false;
+		}
+		Object key = fileKey(file);
+		return key == null || key.equals(columns.fileKey);
+	}
+
+	/**
+	 * Update the flags, notes, drift data and pixel size of a dataset in the file it is mapped from.
+	 * A block that has grown is appended to the file, and the block directory is written last.
+	 * @param dataset The dataset
+	 * @param file The file
+	 * @return False if the file doesn't have the blocks of the dataset and has to be rewritten
+	 * @throws IOException
+	 */
+	private static boolean update(TrajDataset dataset, File file) throws IOException {
+
+		int nTraj = dataset.getSize();
+		double [] driftX = dataset.dcm_.hasDriftCorrectionData_ ? dataset.getDriftX() : null;
+		int nDrift = driftX == null ? 0 : driftX.length;
+		byte [][] notes = encodeNotes(dataset);
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		FileChannel channel = raf.getChannel();
+		try {
+			Header h = new Header(channel);
+			if (h.nTrajectories != nTraj || h.nRows != dataset.getLocalizations().size()) {
+				return false;
+			}
+			int [] ids = {FLAGS, DRIFT_X, DRIFT_Y, DRIFT_Z, NOTES};
+			for (int id : ids) {
+				if (h.offsets[id] < 0) {
+					return false;
+				}
+			}
+
+			ByteBuffer [] blocks = new ByteBuffer[ids.length];
+			blocks[0] = ByteBuffer.allocate(nTraj);
+			for (int i = 0; i < nTraj; i++) {
+				blocks[0].put((byte) ((dataset.isMarked(i) ? FLAG_MARKED : 0) | (dataset.isDeleted(i) ? FLAG_DELETED : 0)));
+			}
+			for (int k = 1; k <= 3; k++) {
+				double [] drift = k == 1 ? driftX : (k == 2 ? dataset.getDriftY() : dataset.getDriftZ());
+				blocks[k] = ByteBuffer.allocate(8 * nDrift).order(ByteOrder.LITTLE_ENDIAN);
+				for (int i = 0; i < nDrift; i++) {
+					blocks[k].putDouble(drift[i]);
+				}
+			}
+			int notesLength = 0;
+			for (byte [] note : notes) {
+				if (note != null) {
+					notesLength += 8 + note.length;
+				}
+			}
+			blocks[4] = ByteBuffer.allocate(notesLength).order(ByteOrder.LITTLE_ENDIAN);
+			for (int i = 0; i < nTraj; i++) {
+				if (notes[i] != null) {
+					blocks[4].putInt(i);
+					blocks[4].putInt(notes[i].length);
+					blocks[4].put(notes[i]);
+				}
+			}
+
+			long end = align(channel.size());
+			for (int k = 0; k < ids.length; k++) {
+				int id = ids[k];
+				blocks[k].flip();
+				if (blocks[k].remaining() > h.lengths[id]) {
+					h.offsets[id] = end;
+					end = align(end + blocks[k].remaining());
+				}
+				h.lengths[id] = blocks[k].remaining();
+				writeFully(channel, blocks[k], h.offsets[id]);
+			}
+			channel.force(false);
+
+			ByteBuffer buf = ByteBuffer.allocate(DIRECTORY_ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			for (int id : ids) {
+				buf.clear();
+				buf.putInt(id);
+				buf.putInt(0);
+				buf.putLong(h.offsets[id]);
+				buf.putLong(h.lengths[id]);
+				buf.flip();
+				writeFully(channel, buf, HEADER_SIZE + (long) DIRECTORY_ENTRY_SIZE * h.entries[id]);
+			}
+			buf.clear();
+			buf.putInt(nDrift);
+			buf.putInt(0);
+			buf.putDouble(dataset.getPixelSize());
+			buf.flip();
+			writeFully(channel, buf, HEADER_SIZE - 16);
+			channel.force(false);
+		} finally {
+			channel.close();
+			raf.close();
+		}
+		return true;
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+		while (buf.hasRemaining()) {
+			pos += channel.write(buf, pos);
+		}
+	}
+
+	private static void writeFile(TrajDataset dataset, File file) throws IOException {
+
+		LocalizationTable table = dataset.getLocalizations();
+		int nRows = table.size();
+		int nTraj = dataset.getSize();
+		double [] driftX = dataset.dcm_.hasDriftCorrectionData_ ? dataset.getDriftX() : null;
+		int nDrift = driftX == null ? 0 : driftX.length;
+		byte [][] notes = encodeNotes(dataset);
+
+		long notesLength = 0;
+		for (byte [] note : notes) {
+			if (note != null) {
+				notesLength += 8 + note.length;
+			}
+		}
+
+		int [] ids = {X, Y, Z, RESIDUE, FRAME, HEIGHT, TRAJECTORY_START, FLAGS, DRIFT_X, DRIFT_Y, DRIFT_Z, NOTES};
+		long [] lengths = {8L * nRows, 8L * nRows, 4L * nRows, 4L * nRows, 4L * nRows, 4L * nRows,
+				4L * nTraj, nTraj, 8L * nDrift, 8L * nDrift, 8L * nDrift, notesLength};
+		long [] offsets = new long[ids.length];
+		long pos = align(HEADER_SIZE + DIRECTORY_ENTRY_SIZE * ids.length);
+		for (int k = 0; k < ids.length; k++) {
+			offsets[k] = pos;
+			pos = align(pos + lengths[k]);
+		}
+
+		FileOutputStream out = new FileOutputStream(file);
+		FileChannel channel = out.getChannel();
+		BlockWriter w = new BlockWriter(channel);
+		try {
+			w.buf.put(MAGIC);
+			w.buf.putInt(VERSION);
+			w.buf.putInt(ids.length);
+			w.buf.putInt(nRows);
+			w.buf.putInt(nTraj);
+			w.buf.putInt(nDrift);
+			w.buf.putInt(0);
+			w.buf.putDouble(dataset.getPixelSize());
+			for (int k = 0; k < ids.length; k++) {
+				w.ensure(DIRECTORY_ENTRY_SIZE);
+				w.buf.putInt(ids[k]);
+				w.buf.putInt(0);
+				w.buf.putLong(offsets[k]);
+				w.buf.putLong(lengths[k]);
+			}
+
+			for (int k = 0; k < ids.length; k++) {
+				w.padTo(offsets[k]);
+				switch (ids[k]) {
+				case X:
+					for (int i = 0; i < nRows; i++) {
+						w.ensure(8);
+						w.buf.putDouble(table.getX(i));
+					}
+					break;
+				case Y:
+					for (int i = 0; i < nRows; i++) {
+						w.ensure(8);
+						w.buf.putDouble(table.getY(i));
+					}
+					break;
+				case Z:
+					for (int i = 0; i < nRows; i++) {
+						w.ensure(4);
+						w.buf.putFloat((float) table.getZ(i));
+					}
+					break;
+				case RESIDUE:
+					for (int i = 0; i < nRows; i++) {
+						w.ensure(4);
+						w.buf.putFloat((float) table.getResidue(i));
+					}
+					break;
+				case FRAME:
+					for (int i = 0; i < nRows; i++) {
+						w.ensure(4);
+						w.buf.putInt(table.getFrame(i));
+					}
+					break;
+				case HEIGHT:
+					for (int i = 0; i < nRows; i++) {
+						w.ensure(4);
+						w.buf.putInt(table.getHeight(i));
+					}
+					break;
+				case TRAJECTORY_START:
+					for (int i = 0; i < nTraj; i++) {
+						w.ensure(4);
+						w.buf.putInt(table.getTrajectoryStart(i));
+					}
+					break;
+				case FLAGS:
+					for (int i = 0; i < nTraj; i++) {
+						w.ensure(1);
+						w.buf.put((byte) ((dataset.isMarked(i) ? FLAG_MARKED : 0) | (dataset.isDeleted(i) ? FLAG_DELETED : 0)));
+					}
+					break;
+				case DRIFT_X:
+				case DRIFT_Y:
+				case DRIFT_Z:
+					double [] drift = ids[k] == DRIFT_X ? driftX : (ids[k] == DRIFT_Y ? dataset.getDriftY() : dataset.getDriftZ());
+					for (int i = 0; i < nDrift; i++) {
+						w.ensure(8);
+						w.buf.putDouble(drift[i]);
+					}
+					break;
+				case NOTES:
+					for (int i = 0; i < nTraj; i++) {
+						if (notes[i] != null) {
+							w.ensure(8);
+							w.buf.putInt(i);
+							w.buf.putInt(notes[i].length);
+							w.put(notes[i]);
+						}
+					}
+					break;
+				}
+			}
+			w.padTo(pos);
+			w.flush();
+		} finally {
+			channel.close();
+			out.close();
+		}
+	}
+
+	/**
+	 * Buffered writing of little endian primitives to a channel
+	 */
+	static class BlockWriter {
+		final FileChannel channel;
+		final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		long written = 0;
+
+		BlockWriter(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		void ensure(int n) throws IOException {
+			if (buf.remaining() < n) {
+				flush();
+			}
+		}
+
+		void flush() throws IOException {
+			buf.flip();
+			while (buf.hasRemaining()) {
+				written += channel.write(buf);
+			}
+			buf.clear();
+		}
+
+		long position() {
+			return written + buf.position();
+		}
+
+		void padTo(long pos) throws IOException {
+			while (position() < pos) {
+				ensure(1);
+				buf.put((byte) 0);
+			}
+		}
+
+		void put(byte [] b) throws IOException {
+			int off = 0;
+			while (off < b.length) {
+				ensure(1);
+				int n = Math.min(buf.remaining(), b.length - off);
+				buf.put(b, off, n);
+				off += n;
+			}
+		}
+	}
+
+	/**
+	 * The header and block directory of a dataset file
+	 */
+	static class Header {
+		int version;
+		int nRows;
+		int nTrajectories;
+		int nDriftFrames;
+		double pixelSize;
+		long [] offsets = new long[NOTES + 1];
+		long [] lengths = new long[NOTES + 1];
+		int [] entries = new int[NOTES + 1];
+
+		/**
+		 * Read the header
+		 * @param channel The file
+		 * @throws IOException if the file is not a dataset file, has a newer version or a bad header
+		 */
+		Header(FileChannel channel) throws IOException {
+			ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(channel, buf, 0);
+			byte [] magic = new byte[MAGIC.length];
+			buf.get(magic);
+			if (!Arrays.equals(magic, MAGIC)) {
+				throw new IOException("Not an Octane dataset file");
+			}
+			version = buf.getInt();
+			if (version > VERSION) {
+				throw new IOException("Dataset file version " + version + " is not supported. Please update Octane.");
+			}
+			int nBlocks = buf.getInt();
+			nRows = buf.getInt();
+			nTrajectories = buf.getInt();
+			nDriftFrames = buf.getInt();
+			buf.getInt();
+			pixelSize = buf.getDouble();
+			if (nBlocks < 0 || nRows < 0 || nTrajectories < 0 || nDriftFrames < 0) {
+				throw new IOException("Dataset file is corrupted: bad header");
+			}
+			if (HEADER_SIZE + (long) DIRECTORY_ENTRY_SIZE * nBlocks > channel.size()) {
+				throw new IOException("Dataset file is truncated");
+			}
+
+			Arrays.fill(offsets, -1);
+			ByteBuffer dir = ByteBuffer.allocate(DIRECTORY_ENTRY_SIZE * nBlocks).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(channel, dir, HEADER_SIZE);
+			for (int k = 0; k < nBlocks; k++) {
+				int id = dir.getInt();
+				dir.getInt();
+				long offset = dir.getLong();
+				long length = dir.getLong();
+				if (offset < 0 || length < 0) {
+					throw new IOException("Dataset file is corrupted: bad block directory");
+				}
+				if (id > 0 && id < offsets.length) {
+					offsets[id] = offset;
+					lengths[id] = length;
+					entries[id] = k;
+				}
+			}
+		}
+
+		/**
+		 * Check that a block is present and complete
+		 * @param channel The file
+		 * @param id The block id
+		 * @param expectedLength The length the block must have
+		 * @return False if the block is absent
+		 * @throws IOException if a required block is missing or truncated
+		 */
+		boolean check(FileChannel channel, int id, long expectedLength) throws IOException {
+			if (offsets[id] < 0) {
+				if (expectedLength > 0 && id <= FLAGS) {
+					throw new IOException("Dataset file is missing block " + id);
+				}
+				return false;
+			}
+			if (lengths[id] < expectedLength || offsets[id] + lengths[id] > channel.size()) {
+				throw new IOException("Dataset file is truncated");
+			}
+			return true;
+		}
+
+		/**
+		 * Map a block
+		 * @param channel The file
+		 * @param id The block id
+		 * @param expectedLength The length the block must have
+		 * @return The block, or null if it is absent
+		 * @throws IOException
+		 */
+		ByteBuffer map(FileChannel channel, int id, long expectedLength) throws IOException {
+			if (! check(channel, id, expectedLength)) {
+				return null;
+			}
+			MappedByteBuffer b = channel.map(FileChannel.MapMode.READ_ONLY, offsets[id], lengths[id]);
+			return b.order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		/**
+		 * Map a column block in segments of 2^LocalizationTable.MappedColumns.SHIFT elements
+		 * @param channel The file
+		 * @param id The block id
+		 * @param elementSize Bytes per element
+		 * @return The segments
+		 * @throws IOException
+		 */
+		ByteBuffer [] mapSegments(FileChannel channel, int id, int elementSize) throws IOException {
+			check(channel, id, (long) elementSize * nRows);
+			long segmentLength = (long) elementSize << LocalizationTable.MappedColumns.SHIFT;
+			int nSegments = (int) (((long) elementSize * nRows + segmentLength - 1) / segmentLength);
+			ByteBuffer [] segments = new ByteBuffer[nSegments];
+			for (int k = 0; k < nSegments; k++) {
+				long offset = segmentLength * k;
+				long length = Math.min(segmentLength, (long) elementSize * nRows - offset);
+				segments[k] = channel.map(FileChannel.MapMode.READ_ONLY, offsets[id] + offset, length).order(ByteOrder.LITTLE_ENDIAN);
+			}
+			return segments;
+		}
+	}
+
+	static void readFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+		while (buf.hasRemaining()) {
+			int n = channel.read(buf, pos);
+			if (n < 0) {
+				throw new IOException("Dataset file is truncated");
+			}
+			pos += n;
+		}
+		buf.flip();
+	}
+
+	/**
+	 * Open a dataset. The localization columns stay memory mapped, and trajectory
+	 * objects are created when requested.
+	 * @param file The file
+	 * @return A new dataset
+	 * @throws IOException
+	 */
+	public static TrajDataset open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		FileChannel channel = raf.getChannel();
+		try {
+			Header h = new Header(channel);
+			int nTraj = h.nTrajectories;
+
+			LocalizationTable.MappedColumns columns = new LocalizationTable.MappedColumns();
+			columns.file = file.getCanonicalFile();
+			columns.fileKey = fileKey(file);
+			ByteBuffer [] b = h.mapSegments(channel, X, 8);
+			columns.x = new DoubleBuffer[b.length];
+			for (int k = 0; k < b.length; k++) {
+				columns.x[k] = b[k].asDoubleBuffer();
+			}
+			b = h.mapSegments(channel, Y, 8);
+			columns.y = new DoubleBuffer[b.length];
+			for (int k = 0; k < b.length; k++) {
+				columns.y[k] = b[k].asDoubleBuffer();
+			}
+			b = h.mapSegments(channel, Z, 4);
+			columns.z = new FloatBuffer[b.length];
+			for (int k = 0; k < b.length; k++) {
+				columns.z[k] = b[k].asFloatBuffer();
+			}
+			b = h.mapSegments(channel, RESIDUE, 4);
+			columns.residue = new FloatBuffer[b.length];
+			for (int k = 0; k < b.length; k++) {
+				columns.residue[k] = b[k].asFloatBuffer();
+			}
+			b = h.mapSegments(channel, FRAME, 4);
+			columns.frame = new IntBuffer[b.length];
+			for (int k = 0; k < b.length; k++) {
+				columns.frame[k] = b[k].asIntBuffer();
+			}
+			b = h.mapSegments(channel, HEIGHT, 4);
+			columns.height = new IntBuffer[b.length];
+			for (int k = 0; k < b.length; k++) {
+				columns.height[k] = b[k].asIntBuffer();
+			}
+
+			int [] start = new int[nTraj];
+			byte [] flags = new byte[nTraj];
+			h.map(channel, TRAJECTORY_START, 4L * nTraj).asIntBuffer().get(start);
+			h.map(channel, FLAGS, nTraj).get(flags);
+
+			HashMap<Integer, String> notes = new HashMap<Integer, String>();
+			ByteBuffer buf = h.map(channel, NOTES, 0);
+			if (buf != null) {
+				while (buf.remaining() >= 8) {
+					int i = buf.getInt();
+					int len = buf.getInt();
+					if (i < 0 || i >= nTraj || len < 0 || len > buf.remaining()) {
+						throw new IOException("Dataset file is corrupted: bad note entry");
+					}
+					byte [] note = new byte[len];
+					buf.get(note);
+					notes.put(i, new String(note, UTF8));
+				}
+			}
+
+			TrajDataset dataset = new TrajDataset();
+			dataset.setTrajectories(LocalizationTable.fromMapped(columns, h.nRows, start), flags, notes);
+			dataset.setPixelSize(h.pixelSize);
+
+			if (h.nDriftFrames > 0) {
+				double [][] drift = new double[3][h.nDriftFrames];
+				int [] ids = {DRIFT_X, DRIFT_Y, DRIFT_Z};
+				for (int k = 0; k < 3; k++) {
+					h.map(channel, ids[k], 8L * h.nDriftFrames).asDoubleBuffer().get(drift[k]);
+				}
+				try {
+					dataset.dcm_.setDriftData(drift[0], drift[1], drift[2]);
+				} catch (OctaneException e) {
+					throw new IOException(e.getMessage());
+				}
+			}
+
+			return dataset;
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Dataset file is corrupted: " + e.getMessage());
+		} finally {
+			// the mappings stay valid after the channel is closed
+			channel.close();
+			raf.close();
+		}
+	}
+
+	/**
+	 * Convert a dataset file in the old serialized format. The old file is kept as filename.bN.
+	 * @param file The file
+	 * @return False if the file is already in the current format
+	 * @throws IOException
+	 * @throws ClassNotFoundException if the old file can't be deserialized
+	 */
+	public static boolean migrate(File file) throws IOException, ClassNotFoundException {
+		if (isDatasetFile(file)) {
+			return false;
+		}
+		TrajDataset dataset = TrajDataset.loadLegacyDataset(file);
+		BatchRunner.backupFile(file);
+		write(dataset, file);
+		return true;
+	}
+
+	/**
+	 * Convert old dataset files from the command line
+	 * @param args Dataset files
+	 */
+	public static void main(String [] args) {
+		if (args.length < 1) {
+			System.err.println("Usage: DatasetFile file.dataset ...");
+			System.exit(2);
+		}
+		int nFailed = 0;
+		for (String name : args) {
+			try {
+				if (migrate(new File(name))) {
+					System.out.println(name + ": converted");
+				} else {
+					System.out.println(name + ": already in the current format");
+				}
+			} catch (Exception e) {
+				System.err.println(name + ": " + e.getMessage());
+				nFailed ++;
+			}
+		}
+		System.exit(nFailed > 0 ? 1 : 0);
+	}
+}
@@ -162,11 +162,11 @@ public class DriftCorrectionModule {
 		for ( int i = 0; i < selection.length; i++) {
 			Trajectory t =  dataset_.getTrajectoryByIndex(selection[i]);
 			for (int j = 0; j < t.size() - 1; j++) {
-				int frame = t.get(j + 1).frame;
-				if (t.get(j).frame == frame - 1) {
-					drift_x_[frame-1] += -t.get(j).x + t.get(j+1).x;
-					drift_y_[frame-1] += -t.get(j).y + t.get(j+1).y;
-					drift_z_[frame-1] += -t.get(j).z + t.get(j+1).z;
+				int frame = t.getFrame(j + 1);
+				if (t.getFrame(j) == frame - 1) {
+					drift_x_[frame-1] += -t.getX(j) + t.getX(j+1);
+					drift_y_[frame-1] += -t.getY(j) + t.getY(j+1);
+					drift_z_[frame-1] += -t.getZ(j) + t.getZ(j+1);
 					npoints[frame-1]++;
 				}
 			}
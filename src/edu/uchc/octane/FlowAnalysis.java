@@ -71,14 +71,14 @@ public class FlowAnalysis {
 		for (i =0; i < selected.length; i++) {
 			Trajectory t = dataset_.getTrajectoryByIndex(selected[i]);
 			for (j = 1; j < t.size(); j++) {
-				int df = t.get(j).frame - t.get(j-1).frame;
-				if ( df == 1 && rect.contains(t.get(j-1).x, t.get(j-1).y)) {
-					int x = (int) ((t.get(j-1).x - rect.x) / renderingResolution_);
-					int y = (int) ((t.get(j-1).y - rect.y) / renderingResolution_) ;
+				int df = t.getFrame(j) - t.getFrame(j-1);
+				if ( df == 1 && rect.contains(t.getX(j-1), t.getY(j-1))) {
+					int x = (int) ((t.getX(j-1) - rect.x) / renderingResolution_);
+					int y = (int) ((t.getY(j-1) - rect.y) / renderingResolution_) ;
 					n[x][y] += 1.0f;
-					m[x][y] += t.get(j).distance2(t.get(j-1));
-					fx[x][y] += (t.get(j).x - t.get(j-1).x);
-					fy[x][y] += (t.get(j).y - t.get(j-1).y);
+					m[x][y] += t.distance2(j, j-1);
+					fx[x][y] += (t.getX(j) - t.getX(j-1));
+					fy[x][y] += (t.getY(j) - t.getY(j-1));
 				}
 			}
 		}
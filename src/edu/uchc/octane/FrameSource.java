@@ -0,0 +1,61 @@
+//FILE:          FrameSource.java
+//PROJECT:       Octane
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ji Yu, jyu@uchc.edu
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package edu.uchc.octane;
+
+import ij.process.ImageProcessor;
+
+import java.io.IOException;
+
+/**
+ * A sequence of image frames that can be read one at a time, without holding the whole movie in memory.
+ *
+ */
+public interface FrameSource {
+
+	/**
+	 * @return Number of frames
+	 */
+	int getSize();
+
+	/**
+	 * @return Frame width
+	 */
+	int getWidth();
+
+	/**
+	 * @return Frame height
+	 */
+	int getHeight();
+
+	/**
+	 * Read a frame.
+	 * Implementations may decode into the pixel buffer of the processor passed in, so a processor 
+	 * returned earlier should not be used after it is passed back.
+	 * @param n Frame number, 1 based as in ImageStack
+	 * @param reuse A processor returned by an earlier call whose buffer can be reused, or null
+	 * @return The image data of the frame
+	 * @throws IOException
+	 */
+	ImageProcessor getProcessor(int n, ImageProcessor reuse) throws IOException;
+
+	/**
+	 * Release the resources held by the source
+	 * @throws IOException
+	 */
+	void close() throws IOException;
+}
@@ -18,14 +18,6 @@
 package edu.uchc.octane;
 
 import org.apache.commons.math3.util.FastMath;
-import org.apache.commons.math3.analysis.MultivariateFunction;
-import org.apache.commons.math3.exception.TooManyEvaluationsException;
-import org.apache.commons.math3.optim.InitialGuess;
-import org.apache.commons.math3.optim.MaxEval;
-import org.apache.commons.math3.optim.PointValuePair;
-import org.apache.commons.math3.optim.nonlinear.scalar.GoalType;
-import org.apache.commons.math3.optim.nonlinear.scalar.ObjectiveFunction;
-import org.apache.commons.math3.optim.nonlinear.scalar.noderiv.PowellOptimizer;
 
 /**
  * A simple 2D Gaussian fitting module
@@ -61,6 +53,21 @@ public class GaussianFit2D extends GaussianFitBase {
 	@Override
 	public double [] doFit() {
 		
+		pvp_ = optimize(initialParameters());
+
+		if (! finishFit()) {
+			return null;
+		}
+
+		return pvp_.getPoint();
+	}
+
+	/* (non-Javadoc)
+	 * @see edu.uchc.octane.GaussianFitBase#initialParameters()
+	 */
+	@Override
+	protected double [] initialParameters() {
+		
 		double [] initParameters;
 		
 		if (floatingSigma_) {
@@ -77,34 +84,7 @@ public class GaussianFit2D extends GaussianFitBase {
 			}
 		}
 
-		PowellOptimizer optimizer = new PowellOptimizer(1e-4, 1e-1);
-		
-		MultivariateFunction func = new MultivariateFunction() {
-			@Override
-			public double value(double[] point) {
-				
-				//initParameters = point;
-				double bg = bPreprocessBg_ ? 0 : point[3]; 
-
-				double v = 0;
-				
-				for (int xi = - windowSize_; xi < windowSize_; xi ++) {
-					for (int yi = - windowSize_; yi < windowSize_; yi ++) {
-						double delta = getValueExcludingBackground(xi, yi, point) + bg - pixelValue(xi, yi);
-						v += delta * delta;
-					}
-				}
-				return v;
-			}
-		};
-
-		pvp_ = optimizer.optimize(
-				new ObjectiveFunction(func),
-				new InitialGuess(initParameters),
-				new MaxEval(10000),
-				GoalType.MINIMIZE);
-
-		return pvp_.getPoint();
+		return initParameters;
 	}
 
 	/* (non-Javadoc)
@@ -117,4 +97,30 @@ public class GaussianFit2D extends GaussianFitBase {
 		
 		return  FastMath.exp(- (x*x + y*y) / (floatingSigma_ ? p[p.length - 1]:sigma2_)) * p[2];
 	}
+
+	/* (non-Javadoc)
+	 * @see edu.uchc.octane.GaussianFitBase#evaluateFactors(double[])
+	 */
+	@Override
+	protected void evaluateFactors(double [] p) {
+		double s2 = floatingSigma_ ? p[p.length - 1] : sigma2_;
+		gaussianFactors(p[0], s2, fx_, dfx_, sfx_);
+		gaussianFactors(p[1], s2, fy_, dfy_, sfy_);
+	}
+
+	/* (non-Javadoc)
+	 * @see edu.uchc.octane.GaussianFitBase#getSigmaXIndex(double[])
+	 */
+	@Override
+	protected int getSigmaXIndex(double [] p) {
+		return floatingSigma_ ? p.length - 1 : -1;
+	}
+
+	/* (non-Javadoc)
+	 * @see edu.uchc.octane.GaussianFitBase#getSigmaYIndex(double[])
+	 */
+	@Override
+	protected int getSigmaYIndex(double [] p) {
+		return floatingSigma_ ? p.length - 1 : -1;
+	}
 }
@@ -65,28 +65,28 @@ public class GaussianFit3DSimple extends GaussianFit2D {
 	}
 	
 	/* (non-Javadoc)
-	 * @see edu.uchc.octane.GaussianFit#fit()
+	 * @see edu.uchc.octane.GaussianFitBase#finishFit()
 	 */
 	@Override
-	public double[] fit() {
-		double [] ret = super.fit();
-		if (ret == null || calibration_ == null) {
-			return ret;
+	protected boolean finishFit() {
+		if (calibration_ == null) {
+			return true;
 		}
 		
+		double [] ret = pvp_.getPoint();
 		double sigma = FastMath.sqrt(ret[ret.length - 1] / 2);
 		if (sigma <= sigmaMin_) { // smaller than the min possible value 
 			if ((sigmaMin_ - sigma) <  (errTol_ * sigmaMin_)) { // only a little
 				z_ = zMin_;
-				return ret;
+				return true;
 			} else {
-				return null;
+				return false;
 			}
 		}
 		
 		z_ = FastMath.sqrt((sigma - sigmaMin_)/calibration_[2]) + zMin_;
 		
-		return ret;
+		return true;
 	}
 	
 	/* (non-Javadoc)
@@ -20,18 +20,7 @@ package edu.uchc.octane;
 import ij.IJ;
 
 import org.apache.commons.math3.util.FastMath;
-import org.apache.commons.math3.analysis.MultivariateFunction;
-import org.apache.commons.math3.analysis.UnivariateFunction;
 import org.apache.commons.math3.exception.ConvergenceException;
-import org.apache.commons.math3.optim.InitialGuess;
-import org.apache.commons.math3.optim.MaxEval;
-import org.apache.commons.math3.optim.nonlinear.scalar.GoalType;
-import org.apache.commons.math3.optim.nonlinear.scalar.ObjectiveFunction;
-import org.apache.commons.math3.optim.nonlinear.scalar.noderiv.PowellOptimizer;
-import org.apache.commons.math3.optim.univariate.BrentOptimizer;
-import org.apache.commons.math3.optim.univariate.SearchInterval;
-import org.apache.commons.math3.optim.univariate.UnivariateObjectiveFunction;
-import org.apache.commons.math3.optim.univariate.UnivariatePointValuePair;
 
 /**
  * This class implement 3D centroid localization based on the astigmatism method proposed by
@@ -45,6 +34,7 @@ public class GaussianFitAstigmatism extends GaussianFitBase {
 	double sigma2_;
 
 	double [] calibration_ = null;
+	AstigmatismLookupTable zTable_ = null;
 	double p1_, p2_, p3_; 
 	double z_, z0min_, z0max_;
 
@@ -55,39 +45,8 @@ public class GaussianFitAstigmatism extends GaussianFitBase {
 	 */
 	@Override
 	public double[] doFit() {
-		double [] initParameters;
 
-		if (bPreprocessBg_) {
-			initParameters = new double[] {0, 0, pixelValue(0, 0) - bg_, sigma2_, sigma2_};
-		} else {
-			initParameters = new double[] {0, 0, pixelValue(0, 0) - bg_, sigma2_, sigma2_, bg_};
-		}
-
-		PowellOptimizer optimizer = new PowellOptimizer(1e-4, 1e-1);
-	
-		MultivariateFunction func = new MultivariateFunction() {
-			@Override
-			public double value(double[] point) {
-
-				double bg = bPreprocessBg_ ? 0 : point[3]; 
-
-				double v = 0;
-
-				for (int xi = - windowSize_; xi < windowSize_; xi ++) {
-					for (int yi = - windowSize_; yi < windowSize_; yi ++) {
-						double delta = getValueExcludingBackground(xi, yi, point) + bg - pixelValue(xi, yi);
-						v += delta * delta;
-					}
-				}
-				return v;
-			}
-		};
-
-		pvp_ = optimizer.optimize(
-				new ObjectiveFunction(func),
-				new InitialGuess(initParameters),
-				new MaxEval(10000),
-				GoalType.MINIMIZE);
+		pvp_ = optimize(initialParameters());
 		
 //		double sigmax = pvp.getPoint()[3];
 //		double sigmay = pvp.getPoint()[4];
@@ -123,11 +82,32 @@ public class GaussianFitAstigmatism extends GaussianFitBase {
 //			z_ = roots[minIndex].getReal();
 //		}
 
+		finishFit();
+		
+		return pvp_.getPoint();
+	}
+
+	/* (non-Javadoc)
+	 * @see edu.uchc.octane.GaussianFitBase#initialParameters()
+	 */
+	@Override
+	protected double [] initialParameters() {
+		if (bPreprocessBg_) {
+			return new double[] {0, 0, pixelValue(0, 0) - bg_, sigma2_, sigma2_};
+		} else {
+			return new double[] {0, 0, pixelValue(0, 0) - bg_, sigma2_, sigma2_, bg_};
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see edu.uchc.octane.GaussianFitBase#finishFit()
+	 */
+	@Override
+	protected boolean finishFit() {
 		if (calibration_ != null ) {
 			calculateZ();
 		}
-		
-		return pvp_.getPoint();
+		return true;
 	}
 
 	/**
@@ -140,29 +120,15 @@ public class GaussianFitAstigmatism extends GaussianFitBase {
 			return;
 		}
 		
-		UnivariateFunction func = new UnivariateFunction() {
-			@Override
-			public double value(double z) { 
-				double sigmax = FastMath.sqrt(pvp_.getPoint()[3] / 2);
-				double sigmay = FastMath.sqrt(pvp_.getPoint()[4] / 2);
-				double vx = calibration_[0] + (z - calibration_[1]) * (z - calibration_[1]) * calibration_[2] - sigmax;
-				double vy = calibration_[3] + (z - calibration_[4]) * (z - calibration_[4]) * calibration_[5] - sigmay;
-				return  vx * vx + vy * vy;				
-			}
-		};
-		
-		BrentOptimizer optimizer = new BrentOptimizer(1e-4, 1e-4);
-		
-		UnivariatePointValuePair upvp = optimizer.optimize(new UnivariateObjectiveFunction(func),
-				GoalType.MINIMIZE,
-				MaxEval.unlimited(),
-				new SearchInterval(2 * z0min_ - z0max_, 2 * z0max_ - z0min_));
+		double sigmax = FastMath.sqrt(pvp_.getPoint()[3] / 2);
+		double sigmay = FastMath.sqrt(pvp_.getPoint()[4] / 2);
+		double z = zTable_.lookup(sigmax, sigmay);
 
-		if (upvp.getValue() > errTol_) {
+		if (Double.isNaN(z) || zTable_.residual(z, sigmax, sigmay) > errTol_) {
 			throw (new ConvergenceException());
 		}
 		
-		z_ = upvp.getPoint();
+		z_ = z;
 	}
 	
 	/**
@@ -182,6 +148,7 @@ public class GaussianFitAstigmatism extends GaussianFitBase {
 	public void setCalibration(double [] c) {
 		if (c == null) {
 			calibration_ = null;
+			zTable_ = null;
 			return;
 		}
 
@@ -207,6 +174,8 @@ public class GaussianFitAstigmatism extends GaussianFitBase {
 			z0min_ = z0max_;
 			z0max_ = z0;			
 		}
+		
+		zTable_ = AstigmatismLookupTable.getTable(c, errTol_);
 	}
 
 	/* (non-Javadoc)
@@ -220,6 +189,39 @@ public class GaussianFitAstigmatism extends GaussianFitBase {
 		return  FastMath.exp(- (x*x)/p[3]  -  (y*y)/p[4]) * p[2];
 	}
 
+	/* (non-Javadoc)
+	 * @see edu.uchc.octane.GaussianFitBase#evaluateFactors(double[])
+	 */
+	@Override
+	protected void evaluateFactors(double [] p) {
+		gaussianFactors(p[0], p[3], fx_, dfx_, sfx_);
+		gaussianFactors(p[1], p[4], fy_, dfy_, sfy_);
+	}
+
+	/* (non-Javadoc)
+	 * @see edu.uchc.octane.GaussianFitBase#getSigmaXIndex(double[])
+	 */
+	@Override
+	protected int getSigmaXIndex(double [] p) {
+		return 3;
+	}
+
+	/* (non-Javadoc)
+	 * @see edu.uchc.octane.GaussianFitBase#getSigmaYIndex(double[])
+	 */
+	@Override
+	protected int getSigmaYIndex(double [] p) {
+		return 4;
+	}
+
+	/* (non-Javadoc)
+	 * @see edu.uchc.octane.GaussianFitBase#getBackgroundIndex(double[])
+	 */
+	@Override
+	protected int getBackgroundIndex(double [] p) {
+		return bPreprocessBg_ ? -1 : 5;
+	}
+
 	/* (non-Javadoc)
 	 * @see edu.uchc.octane.GaussianFitBase#getZ()
 	 */
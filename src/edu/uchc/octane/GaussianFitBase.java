@@ -18,9 +18,20 @@
 package edu.uchc.octane;
 
 import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import org.apache.commons.math3.util.FastMath;
+import org.apache.commons.math3.analysis.MultivariateFunction;
+import org.apache.commons.math3.exception.ConvergenceException;
+import org.apache.commons.math3.exception.MathIllegalStateException;
+import org.apache.commons.math3.exception.TooManyIterationsException;
+import org.apache.commons.math3.optim.InitialGuess;
+import org.apache.commons.math3.optim.MaxEval;
 import org.apache.commons.math3.optim.PointValuePair;
+import org.apache.commons.math3.optim.nonlinear.scalar.GoalType;
+import org.apache.commons.math3.optim.nonlinear.scalar.ObjectiveFunction;
+import org.apache.commons.math3.optim.nonlinear.scalar.noderiv.PowellOptimizer;
 
 import ij.IJ;
 import ij.plugin.filter.BackgroundSubtracter;
@@ -32,7 +43,22 @@ import ij.process.ImageProcessor;
  * @author Ji-Yu
  *
  */
-public abstract class GaussianFitBase {
+public abstract class GaussianFitBase implements Cloneable {
+
+	/**
+	 * Optimizers available to minimize the fitting residue
+	 * POWELL: derivative-free Powell optimizer.
+	 * LEVENBERG_MARQUARDT: Levenberg-Marquardt with analytic partial derivatives of the Gaussian.
+	 */
+	public enum FittingEngine {POWELL, LEVENBERG_MARQUARDT};
+
+	/**
+	 * Noise models of the pixel values
+	 * GAUSSIAN: uniform Gaussian noise. The fit minimizes the sum of squared residues.
+	 * POISSON: photon shot noise. The fit maximizes the Poisson likelihood.
+	 * EMCCD: shot noise amplified by an EM gain register, which doubles the variance.
+	 */
+	public enum NoiseModel {GAUSSIAN, POISSON, EMCCD};
 
 	protected int x0_,y0_; 
 	protected int windowSize_;
@@ -42,17 +68,41 @@ public abstract class GaussianFitBase {
 	
 	protected boolean bBgProcessed_ = false;
 	
+	protected FittingEngine engine_ = FittingEngine.POWELL;
+	protected NoiseModel noiseModel_ = NoiseModel.GAUSSIAN;
+	protected double countsPerPhoton_ = 1.0;
+	
 	PointValuePair pvp_;
 	
 	private float [] imageData_;
 	private int width_;
 	private int height_;
+
+	// copy of the fitting window, row by row, taken at the start of each fit
+	protected float [] patch_;
+	protected int patchSize_;
+	private double patchSum_;
+	private double patchSum2_;
 	
 	/**
 	 * Carry out the Gaussian fit 
 	 * @return The fitting parameters
 	 */
 	public abstract double [] doFit(); 
+
+	/**
+	 * The initial guess of the fitting parameters for the current fitting window
+	 * @return The fitting parameters
+	 */
+	protected abstract double [] initialParameters();
+
+	/**
+	 * Post-process a converged fit, e.g., to calculate the Z coordinate. Called by doFit().
+	 * @return False if the fit should be rejected
+	 */
+	protected boolean finishFit() {
+		return true;
+	}
 	
 	public double[] fit() {
 		
@@ -60,6 +110,8 @@ public abstract class GaussianFitBase {
 			preProcessBackground();
 		}
 		
+		extractPatch();
+
 		double [] ret = doFit();
 
 		if (bDeflation_) {
@@ -69,6 +121,233 @@ public abstract class GaussianFitBase {
 		return ret;
 	}
 
+	/**
+	 * Columnar fitting results of fitBatch(). Entries of spots that failed to fit have valid set to false.
+	 */
+	public static class BatchResults {
+		public boolean [] valid = new boolean[0];
+		public double [] x = new double[0];
+		public double [] y = new double[0];
+		public double [] z = new double[0];
+		public double [] h = new double[0];
+		public double [] e = new double[0];
+
+		void ensureCapacity(int n) {
+			if (valid.length < n) {
+				valid = new boolean[n];
+				x = new double[n];
+				y = new double[n];
+				z = new double[n];
+				h = new double[n];
+				e = new double[n];
+			}
+		}
+	}
+
+	// fitBatch() state, see prepareWorkers() and sortIntoWaves()
+	private BatchResults batchResults_ = new BatchResults();
+	private GaussianFitBase [] workers_;
+	private int [] spotWave_, waveOrder_, waveStart_, cellWave_;
+
+	// fits one chunk of a wave per worker
+	private class WaveTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		final int [] x0, y0;
+		final int lo, hi, w0, w1;
+
+		WaveTask(int [] x0, int [] y0, int lo, int hi, int w0, int w1) {
+			this.x0 = x0;
+			this.y0 = y0;
+			this.lo = lo;
+			this.hi = hi;
+			this.w0 = w0;
+			this.w1 = w1;
+		}
+
+		@Override
+		protected void compute() {
+			if (w1 - w0 == 1) {
+				workers_[w0].fitSpots(x0, y0, waveOrder_, lo, hi, batchResults_);
+			} else {
+				int wm = (w0 + w1) >>> 1;
+				int mid = lo + (int) ((long) (hi - lo) * (wm - w0) / (w1 - w0));
+				invokeAll(new WaveTask(x0, y0, lo, mid, w0, wm), new WaveTask(x0, y0, mid, hi, wm, w1));
+			}
+		}
+	}
+
+	/**
+	 * Fit many spots of the current image in one call. The results are the same as calling fit() for each 
+	 * spot in the order given, deflation included.
+	 * Two spots only affect each other if their fitting windows overlap, so the spots are grouped into waves: 
+	 * a spot goes into the wave after the last wave holding an earlier spot whose window overlaps its own. 
+	 * The spots of a wave are divided among copies of this module that share the image data, one per thread, 
+	 * and fitted concurrently.
+	 * @param x0 X coordinates of the spots
+	 * @param y0 Y coordinates of the spots
+	 * @param n Number of spots
+	 * @param pool The threads to fit with, or null to fit in the calling thread
+	 * @return The fitting results of all spots, in the order of the input. The arrays are reused by the next call.
+	 */
+	public BatchResults fitBatch(int [] x0, int [] y0, int n, ForkJoinPool pool) {
+
+		if (bPreprocessBg_) {
+			preProcessBackground();
+		}
+
+		BatchResults results = batchResults_;
+		results.ensureCapacity(n);
+
+		int nWaves = sortIntoWaves(x0, y0, n);
+		int nWorkers = pool == null ? 1 : FastMath.max(1, FastMath.min(pool.getParallelism(), n));
+		prepareWorkers(nWorkers);
+
+		for (int w = 0; w < nWaves; w++) {
+			int lo = waveStart_[w];
+			int hi = waveStart_[w + 1];
+			int nTasks = FastMath.min(nWorkers, hi - lo);
+			if (nTasks <= 1) {
+				fitSpots(x0, y0, waveOrder_, lo, hi, results);
+			} else {
+				pool.invoke(new WaveTask(x0, y0, lo, hi, 0, nTasks));
+			}
+		}
+
+		return results;
+	}
+
+	/**
+	 * Fit the spots order[lo] ... order[hi - 1] one by one and store the results
+	 */
+	private void fitSpots(int [] x0, int [] y0, int [] order, int lo, int hi, BatchResults results) {
+		for (int k = lo; k < hi; k++) {
+			int s = order[k];
+			setInitialCoordinates(x0[s], y0[s]);
+			results.valid[s] = false;
+			try {
+				if (fit() == null) {
+					continue;
+				}
+			} catch (MathIllegalStateException e) {
+				continue;
+			}
+			results.valid[s] = true;
+			results.x[s] = getX();
+			results.y[s] = getY();
+			results.z[s] = getZ();
+			results.h[s] = getH();
+			results.e[s] = getE();
+		}
+	}
+
+	/**
+	 * Group the spots into waves of spots with non-overlapping fitting windows. The windows of two spots 
+	 * overlap only if they are in the same or neighboring cells of a grid with the window width as cell size, 
+	 * so the wave of a spot is found from the latest wave in each of the nine cells around it.
+	 * @return Number of waves. The spots of wave w are waveOrder_[waveStart_[w]] ... waveOrder_[waveStart_[w + 1] - 1],
+	 * in their original order.
+	 */
+	private int sortIntoWaves(int [] x0, int [] y0, int n) {
+		int cellSize = 2 * windowSize_ + 1;
+		int nCellX = width_ / cellSize + 1;
+		int nCellY = height_ / cellSize + 1;
+		if (cellWave_ == null || cellWave_.length < nCellX * nCellY) {
+			cellWave_ = new int[nCellX * nCellY];
+		}
+		Arrays.fill(cellWave_, 0, nCellX * nCellY, 0); // latest wave + 1 of each cell
+		if (spotWave_ == null || spotWave_.length < n) {
+			spotWave_ = new int[n];
+			waveOrder_ = new int[n];
+			waveStart_ = new int[n + 2];
+		}
+
+		int nWaves = 0;
+		for (int s = 0; s < n; s++) {
+			int cx = x0[s] / cellSize;
+			int cy = y0[s] / cellSize;
+			int wave = 0;
+			for (int j = FastMath.max(0, cy - 1); j <= FastMath.min(nCellY - 1, cy + 1); j++) {
+				for (int i = FastMath.max(0, cx - 1); i <= FastMath.min(nCellX - 1, cx + 1); i++) {
+					wave = FastMath.max(wave, cellWave_[i + j * nCellX]);
+				}
+			}
+			spotWave_[s] = wave;
+			cellWave_[cx + cy * nCellX] = FastMath.max(cellWave_[cx + cy * nCellX], wave + 1);
+			nWaves = FastMath.max(nWaves, wave + 1);
+		}
+
+		// counting sort by wave, stable
+		Arrays.fill(waveStart_, 0, nWaves + 2, 0);
+		for (int s = 0; s < n; s++) {
+			waveStart_[spotWave_[s] + 2] ++;
+		}
+		for (int w = 0; w < nWaves; w++) {
+			waveStart_[w + 2] += waveStart_[w + 1];
+		}
+		for (int s = 0; s < n; s++) {
+			waveOrder_[waveStart_[spotWave_[s] + 1] ++] = s;
+		}
+		return nWaves;
+	}
+
+	/**
+	 * Make n fitting modules available in workers_. The first one is this module, the others are copies with 
+	 * the current settings that share the image data, each keeping the working buffers of its predecessor.
+	 */
+	private void prepareWorkers(int n) {
+		if (workers_ == null || workers_.length < n) {
+			GaussianFitBase [] workers = new GaussianFitBase[n];
+			if (workers_ != null) {
+				System.arraycopy(workers_, 0, workers, 0, workers_.length);
+			}
+			workers_ = workers;
+		}
+		workers_[0] = this;
+		for (int k = 1; k < n; k++) {
+			workers_[k] = createWorker(workers_[k]);
+		}
+	}
+
+	private GaussianFitBase createWorker(GaussianFitBase old) {
+		GaussianFitBase g;
+		try {
+			g = (GaussianFitBase) clone();
+		} catch (CloneNotSupportedException e) {
+			throw new IllegalStateException(e);
+		}
+		g.batchResults_ = null;
+		g.workers_ = null;
+		g.spotWave_ = g.waveOrder_ = g.waveStart_ = g.cellWave_ = null;
+		if (old == null) {
+			g.patch_ = null;
+			g.fx_ = null; // allocateFactors() creates the per-axis buffers
+			g.termParam_ = new int[maxTerms_];
+			g.termX_ = new double[maxTerms_][];
+			g.lmP_ = null; // allocateLM() creates the rest
+		} else {
+			g.patch_ = old.patch_;
+			g.fx_ = old.fx_;
+			g.fy_ = old.fy_;
+			g.dfx_ = old.dfx_;
+			g.dfy_ = old.dfy_;
+			g.sfx_ = old.sfx_;
+			g.sfy_ = old.sfy_;
+			g.termParam_ = old.termParam_;
+			g.termX_ = old.termX_;
+			g.termY_ = old.termY_;
+			g.ones_ = old.ones_;
+			g.rowResidue_ = old.rowResidue_;
+			g.lmP_ = old.lmP_;
+			g.lmTrial_ = old.lmTrial_;
+			g.lmGrad_ = old.lmGrad_;
+			g.lmBeta_ = old.lmBeta_;
+			g.lmDelta_ = old.lmDelta_;
+			g.lmAlpha_ = old.lmAlpha_;
+			g.lmA_ = old.lmA_;
+		}
+		return g;
+	}
+
 	/**
 	 * The value of the Gaussian fitting function at specified coordinate
 	 * @param xi The X coordinate offset from the initial value
@@ -77,6 +356,134 @@ public abstract class GaussianFitBase {
 	 * @return The Gaussian function value 
 	 */
 	public abstract double getValueExcludingBackground(int xi, int yi, double [] point);	
+
+	/**
+	 * Evaluate the separable Gaussian model at a parameter point. 
+	 * The model (excluding background) is h * fx_[xi + windowSize_] * fy_[yi + windowSize_], so only 
+	 * 2 * (2 * windowSize_ + 1) exponentials are needed for the whole window. Implementations fill the factor 
+	 * vectors fx_, fy_, their derivatives with respect to the center (dfx_, dfy_) and with respect to 
+	 * the width parameters returned by getSigmaXIndex() and getSigmaYIndex() (sfx_, sfy_).
+	 * @param point The fitting parameters
+	 */
+	protected abstract void evaluateFactors(double [] point);
+
+	/**
+	 * @param point The fitting parameters
+	 * @return Index of the parameter controlling the X width, or -1 if the width is fixed
+	 */
+	protected abstract int getSigmaXIndex(double [] point);
+
+	/**
+	 * @param point The fitting parameters
+	 * @return Index of the parameter controlling the Y width, or -1 if the width is fixed
+	 */
+	protected abstract int getSigmaYIndex(double [] point);
+
+	/**
+	 * @param point The fitting parameters
+	 * @return Index of the background parameter, or -1 if the background was preprocessed 
+	 */
+	protected int getBackgroundIndex(double [] point) {
+		return bPreprocessBg_ ? -1 : 3;
+	}
+
+	/**
+	 * The background level within the fitting parameters
+	 * @param point The fitting parameters
+	 * @return The background
+	 */
+	protected double getBackground(double [] point) {
+		int i = getBackgroundIndex(point);
+		return i < 0 ? 0 : point[i];
+	}
+
+	// per-axis factors of the model, see evaluateFactors()
+	protected double [] fx_, fy_, dfx_, dfy_, sfx_, sfy_;
+
+	// separable Jacobian terms, see buildSeparableNormalEquations()
+	private final static int maxTerms_ = 6;
+	private int [] termParam_ = new int[maxTerms_];
+	private double [][] termX_ = new double[maxTerms_][];
+	private double [][] termY_;
+	private double [] ones_;
+	private double [] rowResidue_;
+
+	private void allocateFactors() {
+		int n = 2 * windowSize_ + 1;
+		if (fx_ == null || fx_.length != n) {
+			fx_ = new double[n];
+			fy_ = new double[n];
+			dfx_ = new double[n];
+			dfy_ = new double[n];
+			sfx_ = new double[n];
+			sfy_ = new double[n];
+			termY_ = new double[maxTerms_][n];
+			ones_ = new double[n];
+			Arrays.fill(ones_, 1.0);
+			rowResidue_ = new double[n];
+		}
+	}
+
+	/**
+	 * Helper for evaluateFactors(). Fill one axis of factors of exp(-(i - c)^2 / s2).
+	 * @param c The center
+	 * @param s2 2 * sigma^2
+	 * @param f Output. The factors
+	 * @param df Output. Derivatives with respect to c
+	 * @param sf Output. Derivatives with respect to s2
+	 */
+	protected void gaussianFactors(double c, double s2, double [] f, double [] df, double [] sf) {
+		for (int i = 0; i < f.length; i++) {
+			double d = i - windowSize_ - c;
+			double e = FastMath.exp(- d * d / s2);
+			f[i] = e;
+			df[i] = e * 2 * d / s2;
+			sf[i] = e * d * d / (s2 * s2);
+		}
+	}
+
+	/**
+	 * The value of the fitting function, including background, and its partial derivatives 
+	 * with respect to each fitting parameter. evaluateFactors() must have been called for the same point.
+	 * @param ix X index within the window (0 .. 2 * windowSize_)
+	 * @param iy Y index within the window 
+	 * @param p The fitting parameters
+	 * @param gradient Output. The partial derivatives, same length as p
+	 * @return The function value
+	 */
+	private double valueAndGradient(int ix, int iy, double [] p, double [] gradient, int sx, int sy, int ib) {
+		double h = p[2];
+		double f = fx_[ix] * fy_[iy];
+		gradient[0] = h * dfx_[ix] * fy_[iy];
+		gradient[1] = h * fx_[ix] * dfy_[iy];
+		gradient[2] = f;
+		if (ib >= 0) {
+			gradient[ib] = 1;
+		}
+		if (sx >= 0) {
+			gradient[sx] = h * sfx_[ix] * fy_[iy];
+		}
+		if (sy >= 0) {
+			if (sy == sx) {
+				gradient[sy] += h * fx_[ix] * sfy_[iy];
+			} else {
+				gradient[sy] = h * fx_[ix] * sfy_[iy];
+			}
+		}
+		return h * f + (ib >= 0 ? p[ib] : 0);
+	}
+
+	private final static int maxLMIterations_ = 100;
+	private final static int LM_RUNNING = 0;
+	private final static int LM_CONVERGED = 1;
+	private final static int LM_FAILED = 2;
+
+	// Levenberg-Marquardt working state
+	private double [] lmP_, lmTrial_, lmGrad_, lmBeta_, lmDelta_;
+	private double [][] lmAlpha_, lmA_;
+	private double lmChi2_, lmLambda_;
+	private final static double lmTolerance_ = 1e-6;
+	private final static double minExpectedPhotons_ = 1e-6;
 	
 	private final static int backgroundFilterSize_ = 40;
 	
@@ -96,7 +503,9 @@ public abstract class GaussianFitBase {
 		Object pixels = ip.getPixels();
 		width_ = ip.getWidth();
 		height_ = ip.getHeight();
-		imageData_ = new float[width_ * height_];
+		if (imageData_ == null || imageData_.length != width_ * height_) {
+			imageData_ = new float[width_ * height_];
+		}
 
 		if (pixels instanceof byte[]) {
 			byte[] b = (byte[])pixels;
@@ -109,7 +518,7 @@ public abstract class GaussianFitBase {
 				imageData_[i] = (float) (b[i] & 0xffff); //assume unsigned
 			}
 		} else if (pixels instanceof float[]) {
-			imageData_ = (float [])pixels;
+			System.arraycopy((float []) pixels, 0, imageData_, 0, imageData_.length);
 		} else if (pixels instanceof int[]) {
 			int [] p = (int []) pixels;
 			for (int i = 0; i < p.length; i++) {
@@ -176,6 +585,423 @@ public abstract class GaussianFitBase {
 	}
 	
 	
+	/**
+	 * Select the optimizer used by fit()
+	 * @param engine The fitting engine
+	 */
+	public void setFittingEngine(FittingEngine engine) {
+		engine_ = engine;
+	}
+
+	/**
+	 * Get the optimizer used by fit()
+	 * @return The fitting engine
+	 */
+	public FittingEngine getFittingEngine() {
+		return engine_;
+	}
+
+	/**
+	 * Select the noise model of the data.
+	 * The likelihood of the POISSON and EMCCD models is always maximized with the Levenberg-Marquardt engine.
+	 * @param model The noise model
+	 */
+	public void setNoiseModel(NoiseModel model) {
+		noiseModel_ = model;
+	}
+
+	/**
+	 * Get the noise model of the data
+	 * @return The noise model
+	 */
+	public NoiseModel getNoiseModel() {
+		return noiseModel_;
+	}
+
+	/**
+	 * Set the camera conversion factor used by the likelihood noise models
+	 * @param c Pixel value (after background/offset removal) corresponding to one photon
+	 */
+	public void setCountsPerPhoton(double c) {
+		if (c <= 0) {
+			throw new IllegalArgumentException("Conversion factor must be positive");
+		}
+		countsPerPhoton_ = c;
+	}
+
+	/**
+	 * Get the camera conversion factor
+	 * @return Pixel value corresponding to one photon
+	 */
+	public double getCountsPerPhoton() {
+		return countsPerPhoton_;
+	}
+
+	/**
+	 * Minimize the cost function (sum of squared residues or Poisson deviance) using the selected fitting engine
+	 * @param initParameters The initial guess
+	 * @return The optimal parameters and the value of the cost function
+	 */
+	protected PointValuePair optimize(double [] initParameters) {
+		if (engine_ == FittingEngine.LEVENBERG_MARQUARDT || noiseModel_ != NoiseModel.GAUSSIAN) {
+			return optimizeLM(initParameters);
+		} else {
+			return optimizePowell(initParameters);
+		}
+	}
+
+	PointValuePair optimizePowell(double [] initParameters) {
+
+		allocateFactors();
+
+		PowellOptimizer optimizer = new PowellOptimizer(1e-4, 1e-1);
+		
+		MultivariateFunction func = new MultivariateFunction() {
+			@Override
+			public double value(double[] point) {
+				
+				double bg = getBackground(point); 
+				double h = point[2];
+				evaluateFactors(point);
+
+				double v = 0;
+				
+				for (int iy = 0; iy < patchSize_ - 1; iy ++) {
+					double hy = h * fy_[iy];
+					int k = iy * patchSize_;
+					for (int ix = 0; ix < patchSize_ - 1; ix ++) {
+						double delta = hy * fx_[ix] + bg - patch_[k++];
+						v += delta * delta;
+					}
+				}
+				return v;
+			}
+		};
+
+		return optimizer.optimize(
+				new ObjectiveFunction(func),
+				new InitialGuess(initParameters),
+				new MaxEval(10000),
+				GoalType.MINIMIZE);
+	}
+
+	/**
+	 * Levenberg-Marquardt fitting over the whole fitting window.
+	 * For the likelihood noise models the Poisson deviance is minimized, with the curvature matrix 
+	 * weighted by data / model^2 (Laurence and Chromy, Nat. Methods 2010).  
+	 * @param initParameters The initial guess
+	 * @return The optimal parameters and the residue
+	 */
+	PointValuePair optimizeLM(double [] initParameters) {
+		allocateFactors();
+		allocateLM(initParameters.length);
+
+		System.arraycopy(initParameters, 0, lmP_, 0, lmP_.length);
+		lmChi2_ = buildNormalEquations(lmP_, lmAlpha_, lmBeta_, lmGrad_);
+		lmLambda_ = 1e-3;
+
+		for (int iter = 0; iter < maxLMIterations_; iter ++) {
+			int status = lmIteration();
+			if (status == LM_CONVERGED) {
+				return new PointValuePair(lmP_, lmChi2_);
+			} else if (status == LM_FAILED) {
+				throw new ConvergenceException();
+			}
+		}
+
+		throw new TooManyIterationsException(maxLMIterations_);
+	}
+
+	private void allocateLM(int n) {
+		if (lmP_ == null || lmP_.length != n) {
+			lmP_ = new double[n];
+			lmTrial_ = new double[n];
+			lmGrad_ = new double[n];
+			lmBeta_ = new double[n];
+			lmDelta_ = new double[n];
+			lmAlpha_ = new double[n][n];
+			lmA_ = new double[n][n];
+		}
+	}
+
+	/**
+	 * One Levenberg-Marquardt iteration on the state in lmP_, lmAlpha_, lmBeta_, lmChi2_ and lmLambda_.
+	 * @return LM_RUNNING, LM_CONVERGED or LM_FAILED
+	 */
+	private int lmIteration() {
+		int n = lmP_.length;
+		double [] p = lmP_;
+		double [] delta = lmDelta_;
+		double [][] a = lmA_;
+
+		for (int i = 0; i < n; i++) {
+			System.arraycopy(lmAlpha_[i], 0, a[i], 0, n);
+			a[i][i] += lmLambda_ * lmAlpha_[i][i];
+			delta[i] = lmBeta_[i];
+		}
+
+		if (! solveLinear(a, delta, n)) {
+			lmLambda_ *= 10;
+			return LM_RUNNING;
+		}
+		
+		double step = 0;
+		for (int i = 0; i < n; i++) {
+			lmTrial_[i] = p[i] + delta[i];
+			step = FastMath.max(step, FastMath.abs(delta[i]));
+		}
+
+		double newChi2 = cost(lmTrial_);
+		
+		if (Double.isNaN(newChi2)) {
+			return LM_FAILED;
+		}
+
+		if (newChi2 < lmChi2_) {
+			boolean converged = (lmChi2_ - newChi2) <= lmTolerance_ * lmChi2_ || step < lmTolerance_;
+			System.arraycopy(lmTrial_, 0, p, 0, n);
+			lmChi2_ = buildNormalEquations(p, lmAlpha_, lmBeta_, lmGrad_);
+			lmLambda_ /= 10;
+			return converged ? LM_CONVERGED : LM_RUNNING;
+		} else {
+			lmLambda_ *= 10;
+			if (lmLambda_ > 1e10 || step < lmTolerance_) { // can't improve any further
+				return LM_CONVERGED;
+			}
+			return LM_RUNNING;
+		}
+	}
+
+	/**
+	 * Calculate the curvature matrix and the gradient of the cost function at the current parameters
+	 * @return The cost function
+	 */
+	private double buildNormalEquations(double [] p, double [][] alpha, double [] beta, double [] grad) {
+		int n = p.length;
+		for (int i = 0; i < n; i++) {
+			beta[i] = 0;
+			Arrays.fill(alpha[i], 0);
+		}
+
+		if (noiseModel_ == NoiseModel.GAUSSIAN) {
+			return buildSeparableNormalEquations(p, alpha, beta);
+		}
+
+		double scale = photonScale();
+		int sx = getSigmaXIndex(p);
+		int sy = getSigmaYIndex(p);
+		int ib = getBackgroundIndex(p);
+		evaluateFactors(p);
+
+		double chi2 = 0;
+		int idx = 0;
+		for (int iy = 0; iy < patchSize_; iy++) {
+			for (int ix = 0; ix < patchSize_; ix++, idx++) {
+				double mu = valueAndGradient(ix, iy, p, grad, sx, sy, ib);
+				double k = photons(patch_[idx], scale);
+				mu = FastMath.max(mu / scale, minExpectedPhotons_);
+				for (int i = 0; i < n; i++) {
+					grad[i] /= scale;
+				}
+				double r = k / mu - 1;
+				double w = k / (mu * mu);
+				chi2 += deviance(k, mu);
+				for (int i = 0; i < n; i++) {
+					beta[i] += r * grad[i];
+					double wg = w * grad[i];
+					for (int j = 0; j <= i; j++) {
+						alpha[i][j] += wg * grad[j];
+					}
+				}
+			}
+		}
+
+		for (int i = 0; i < n; i++) {
+			for (int j = i + 1; j < n; j++) {
+				alpha[i][j] = alpha[j][i];
+			}
+		}
+		return chi2;
+	}
+
+	/**
+	 * Least square version of buildNormalEquations() that exploits the separable model.
+	 * Every column of the Jacobian is a sum of terms termY_[t][iy] * termX_[t][ix]. The curvature matrix 
+	 * is therefore a sum of products of 1D dot products, and the gradient only needs one dot product of 
+	 * each X term with each row of residues. All inner loops are unit-stride loops over short 
+	 * primitive arrays that the JIT compiler can unroll and vectorize.
+	 * @return Sum of squared residues
+	 */
+	private double buildSeparableNormalEquations(double [] p, double [][] alpha, double [] beta) {
+		int n = p.length;
+		int m = patchSize_;
+		int sx = getSigmaXIndex(p);
+		int sy = getSigmaYIndex(p);
+		int ib = getBackgroundIndex(p);
+		double h = p[2];
+		double bg = getBackground(p);
+		evaluateFactors(p);
+
+		int nTerms = 0;
+		nTerms = addTerm(nTerms, 0, dfx_, fy_, h);
+		nTerms = addTerm(nTerms, 1, fx_, dfy_, h);
+		nTerms = addTerm(nTerms, 2, fx_, fy_, 1);
+		if (ib >= 0) {
+			nTerms = addTerm(nTerms, ib, ones_, ones_, 1);
+		}
+		if (sx >= 0) {
+			nTerms = addTerm(nTerms, sx, sfx_, fy_, h);
+		}
+		if (sy >= 0) {
+			nTerms = addTerm(nTerms, sy, fx_, sfy_, h);
+		}
+
+		for (int i = 0; i < n; i++) {
+			beta[i] = 0;
+			Arrays.fill(alpha[i], 0);
+		}
+
+		double chi2 = 0;
+		double [] r = rowResidue_;
+		for (int iy = 0; iy < m; iy++) {
+			double hy = h * fy_[iy];
+			int k = iy * m;
+			for (int ix = 0; ix < m; ix++) {
+				r[ix] = patch_[k + ix] - hy * fx_[ix] - bg;
+			}
+			chi2 += dot(r, r, m);
+			for (int t = 0; t < nTerms; t++) {
+				beta[termParam_[t]] += termY_[t][iy] * dot(termX_[t], r, m);
+			}
+		}
+
+		for (int a = 0; a < nTerms; a++) {
+			for (int b = a; b < nTerms; b++) {
+				double v = dot(termX_[a], termX_[b], m) * dot(termY_[a], termY_[b], m);
+				alpha[termParam_[a]][termParam_[b]] += v;
+				if (a != b) {
+					alpha[termParam_[b]][termParam_[a]] += v;
+				}
+			}
+		}
+
+		return chi2;
+	}
+
+	private int addTerm(int t, int param, double [] x, double [] y, double scale) {
+		termParam_[t] = param;
+		termX_[t] = x;
+		double [] ty = termY_[t];
+		for (int i = 0; i < y.length; i++) {
+			ty[i] = scale * y[i];
+		}
+		return t + 1;
+	}
+
+	private static double dot(double [] a, double [] b, int n) {
+		double s = 0;
+		for (int i = 0; i < n; i++) {
+			s += a[i] * b[i];
+		}
+		return s;
+	}
+
+	/**
+	 * The cost function minimized by the Levenberg-Marquardt engine
+	 * @param p The fitting parameters
+	 * @return Sum of squared residues, or the Poisson deviance
+	 */
+	private double cost(double [] p) {
+		double bg = getBackground(p);
+		double h = p[2];
+		evaluateFactors(p);
+
+		double chi2 = 0;
+		int k = 0;
+		if (noiseModel_ == NoiseModel.GAUSSIAN) {
+			for (int iy = 0; iy < patchSize_; iy++) {
+				double hy = h * fy_[iy];
+				for (int ix = 0; ix < patchSize_; ix++) {
+					double r = patch_[k++] - hy * fx_[ix] - bg;
+					chi2 += r * r;
+				}
+			}
+		} else {
+			double scale = photonScale();
+			for (int iy = 0; iy < patchSize_; iy++) {
+				double hy = h * fy_[iy];
+				for (int ix = 0; ix < patchSize_; ix++) {
+					double mu = (hy * fx_[ix] + bg) / scale;
+					chi2 += deviance(photons(patch_[k++], scale), FastMath.max(mu, minExpectedPhotons_));
+				}
+			}
+		}
+		return chi2;
+	}
+
+	/**
+	 * @return Pixel value per effective Poisson count. 
+	 * The EMCCD excess noise factor of sqrt(2) is absorbed by halving the counts.
+	 */
+	private double photonScale() {
+		return noiseModel_ == NoiseModel.EMCCD ? 2 * countsPerPhoton_ : countsPerPhoton_;
+	}
+
+	private static double photons(double v, double scale) {
+		return v > 0 ? v / scale : 0;
+	}
+
+	/**
+	 * Poisson deviance of one pixel: 2 * (log-likelihood of the saturated model - log-likelihood of the fit) 
+	 */
+	private static double deviance(double k, double mu) {
+		if (k > 0) {
+			return 2 * (mu - k - k * FastMath.log(mu / k));
+		} else {
+			return 2 * mu;
+		}
+	}
+
+	/**
+	 * Solve a small linear system by Gaussian elimination with partial pivoting.
+	 * @param a The matrix. Destroyed on return.
+	 * @param b The right hand side. Replaced by the solution.
+	 * @param n The dimension
+	 * @return False if the matrix is singular
+	 */
+	static boolean solveLinear(double [][] a, double [] b, int n) {
+		for (int col = 0; col < n; col++) {
+			int pivot = col;
+			for (int row = col + 1; row < n; row++) {
+				if (FastMath.abs(a[row][col]) > FastMath.abs(a[pivot][col])) {
+					pivot = row;
+				}
+			}
+			if (a[pivot][col] == 0 || Double.isNaN(a[pivot][col])) {
+				return false;
+			}
+			if (pivot != col) {
+				double [] t = a[pivot]; a[pivot] = a[col]; a[col] = t;
+				double tb = b[pivot]; b[pivot] = b[col]; b[col] = tb;
+			}
+			for (int row = col + 1; row < n; row++) {
+				double f = a[row][col] / a[col][col];
+				for (int k = col; k < n; k++) {
+					a[row][k] -= f * a[col][k];
+				}
+				b[row] -= f * b[col];
+			}
+		}
+		for (int row = n - 1; row >= 0; row--) {
+			double v = b[row];
+			for (int k = row + 1; k < n; k++) {
+				v -= a[row][k] * b[k];
+			}
+			b[row] = v / a[row][row];
+		}
+		return true;
+	}
+
 	/**
 	 * Set fitting window size
 	 * @param size The size of the fitting rectangle is (2 * size + 1)   
@@ -212,21 +1038,51 @@ public abstract class GaussianFitBase {
 	 * Substract the value of the last fitting from the image   
 	 */
 	public void deflate() {
+		double [] p = pvp_.getPoint();
+		allocateFactors();
+		evaluateFactors(p);
 		for (int xi = - windowSize_; xi <= windowSize_; xi++) {
+			double hx = p[2] * fx_[xi + windowSize_];
 			for (int yi = - windowSize_; yi <= windowSize_; yi++) {
-				imageData_[x0_ + xi + width_ * (y0_ + yi)] -= getValueExcludingBackground(xi, yi, pvp_.getPoint());
+				imageData_[x0_ + xi + width_ * (y0_ + yi)] -= hx * fy_[yi + windowSize_];
 			}
 		}
 	}
 
 	/**
-	 * Get the pixel value of the image
-	 * @param xi X coordinate
-	 * @param yi Y coordinate
+	 * Copy the fitting window around the initial coordinates into patch_ and 
+	 * precompute the sums used by getE()
+	 */
+	protected void extractPatch() {
+		patchSize_ = 2 * windowSize_ + 1;
+		if (patch_ == null || patch_.length != patchSize_ * patchSize_) {
+			patch_ = new float[patchSize_ * patchSize_];
+		}
+
+		double m = 0;
+		double m2 = 0;
+		int k = 0;
+		for (int yi = - windowSize_; yi <= windowSize_; yi++) {
+			int offset = x0_ + width_ * (y0_ + yi);
+			for (int xi = - windowSize_; xi <= windowSize_; xi++) {
+				float v = imageData_[offset + xi];
+				patch_[k++] = v;
+				m += v;
+				m2 += v * v;
+			}
+		}
+		patchSum_ = m;
+		patchSum2_ = m2;
+	}
+
+	/**
+	 * Get the pixel value of the current fitting window
+	 * @param xi X coordinate offset from the initial value
+	 * @param yi Y coordinate offset from the initial value
 	 * @return The pixel value in double
 	 */
 	protected double pixelValue(int xi, int yi) {
-		return imageData_[xi + x0_ + (yi + y0_) * width_];
+		return patch_[(yi + windowSize_) * patchSize_ + xi + windowSize_];
 	}
 	
 	/**
@@ -263,21 +1119,29 @@ public abstract class GaussianFitBase {
 
 	/**
 	 * Get the fitting result 
+	 * For the GAUSSIAN noise model this is the variance ratio between a flat image and the fitting residue.
+	 * For the likelihood noise models it is the log-likelihood ratio of the fit over a flat image, 
+	 * 2 * (logL(fit) - logL(flat)).   
 	 * @return Log Likelyhood of the fitting. Bigger value indicate higher confidence in fitting results.
 	 */
 	public double getE() {
-		double m = 0;
-		double m2 = 0;
-		for (int xi = - windowSize_; xi <= windowSize_; xi++) {
-			for (int yi = - windowSize_; yi <= windowSize_; yi++) {
-				double v = pixelValue(xi, yi);
-				m += v;
-				m2 += v * v ;
- 			} 
+		if (noiseModel_ != NoiseModel.GAUSSIAN) {
+			double scale = photonScale();
+			double m = 0;
+			for (int k = 0; k < patch_.length; k++) {
+				m += photons(patch_[k], scale);
+			}
+			m = FastMath.max(m / patch_.length, minExpectedPhotons_);
+
+			double flatDeviance = 0;
+			for (int k = 0; k < patch_.length; k++) {
+				flatDeviance += deviance(photons(patch_[k], scale), m);
+			}
+			return flatDeviance - pvp_.getValue();
 		}
 
-		int nPixels = (1 + 2 * windowSize_)*(1 + 2 * windowSize_);
-		m = m2 - m * m / nPixels; //variance of the grey values
+		int nPixels = patch_.length;
+		double m = patchSum2_ - patchSum_ * patchSum_ / nPixels; //variance of the grey values
 
 		return nPixels * FastMath.log(m / pvp_.getValue());
 	}
@@ -17,6 +17,7 @@
 //
 package edu.uchc.octane;
 
+import ij.IJ;
 import ij.Prefs;
 import ij.gui.GenericDialog;
 
@@ -38,19 +39,53 @@ public class GlobalPrefs {
 	final private static String ASTIGMATISM_CALIBRATION_Y_KEY = "astigmatismCalibrationY";
 	final private static String ALTERNATING_OVERLAY_COLOR = "AlternatingOverlayColor";
 	final private static String OVERLAY_STROKE_WIDTH = "OverlayStrokeWidth";
+	final private static String LM_FITTING_KEY = "LevenbergMarquardtFitting";
+	final private static String NOISE_MODEL_KEY = "NoiseModel";
+	final private static String COUNTS_PER_PHOTON_KEY = "CountsPerPhoton";
 	
-	public static int nThread_ = prefs_.getInt(NUM_THREAD_KEY , 4);
+	public static int nThread_ = prefs_.getInt(NUM_THREAD_KEY , Runtime.getRuntime().availableProcessors());
 	public static double defaultPixelSize_ = Prefs.getDouble(DEFAULT_PIXEL_SIZE_KEY, 160);
 	public static String particleAnalysisMode_ = Prefs.get(PARTICLE_ANALYSIS_MODE_KEY, "Accurate");
 	public static String calibrationStrX_ = GlobalPrefs.getRoot().get(ASTIGMATISM_CALIBRATION_X_KEY, "0.8, 0, 0.18");
 	public static String calibrationStrY_ = GlobalPrefs.getRoot().get(ASTIGMATISM_CALIBRATION_Y_KEY, "0.8, 6, 0.18");
 	public static boolean alternatingOverlayColor_ = GlobalPrefs.getRoot().getBoolean(ALTERNATING_OVERLAY_COLOR, true);
 	public static double overlayStrokeWidth_ = GlobalPrefs.getRoot().getDouble(OVERLAY_STROKE_WIDTH, 0.3);
+	public static boolean lmFitting_ = GlobalPrefs.getRoot().getBoolean(LM_FITTING_KEY, false);
+	public static String noiseModel_ = GlobalPrefs.getRoot().get(NOISE_MODEL_KEY, "GAUSSIAN");
+	public static double countsPerPhoton_ = GlobalPrefs.getRoot().getDouble(COUNTS_PER_PHOTON_KEY, 1.0);
 	
 	public static Preferences getRoot() {
 		return prefs_;
 	}
 
+	/**
+	 * The fitting engine selected in preferences
+	 * @return the fitting engine
+	 */
+	public static GaussianFitBase.FittingEngine getFittingEngine() {
+		return lmFitting_ ? GaussianFitBase.FittingEngine.LEVENBERG_MARQUARDT : GaussianFitBase.FittingEngine.POWELL;
+	}
+
+	/**
+	 * The noise model selected in preferences
+	 * @return the noise model. GAUSSIAN if the stored value is not recognized.
+	 */
+	public static GaussianFitBase.NoiseModel getNoiseModel() {
+		try {
+			return GaussianFitBase.NoiseModel.valueOf(noiseModel_);
+		} catch (IllegalArgumentException e) {
+			return GaussianFitBase.NoiseModel.GAUSSIAN;
+		}
+	}
+
+	/**
+	 * The camera conversion factor set in preferences
+	 * @return counts per photon. 1 if the stored value is not positive.
+	 */
+	public static double getCountsPerPhoton() {
+		return countsPerPhoton_ > 0 ? countsPerPhoton_ : 1.0;
+	}
+
 	/**
 	 * Save preferences.
 	 */
@@ -61,6 +96,9 @@ public class GlobalPrefs {
 		prefs_.put(PARTICLE_ANALYSIS_MODE_KEY, particleAnalysisMode_);
 		prefs_.put(ASTIGMATISM_CALIBRATION_X_KEY, calibrationStrX_);
 		prefs_.put(ASTIGMATISM_CALIBRATION_Y_KEY, calibrationStrY_);
+		prefs_.putBoolean(LM_FITTING_KEY, lmFitting_);
+		prefs_.put(NOISE_MODEL_KEY, noiseModel_);
+		prefs_.putDouble(COUNTS_PER_PHOTON_KEY, countsPerPhoton_);
 	
 	}
 	
@@ -81,6 +119,13 @@ public class GlobalPrefs {
 		dlg.addCheckbox("Alternating Trajectory Color", alternatingOverlayColor_);
 		dlg.addNumericField("Overlay Stroke Width", overlayStrokeWidth_, 2);
 
+		dlg.addMessage("Fitting Options");
+		String [] engines = {"Powell", "Levenberg-Marquardt"};
+		dlg.addChoice("Fitting Engine", engines, engines[lmFitting_ ? 1 : 0]);
+		String [] noiseModels = {"Gaussian", "Poisson", "EMCCD"};
+		dlg.addChoice("Noise Model", noiseModels, noiseModels[getNoiseModel().ordinal()]);
+		dlg.addNumericField("Counts per Photon", countsPerPhoton_, 2);
+
 		dlg.showDialog();
 		
 		if (dlg.wasCanceled()) {
@@ -88,8 +133,29 @@ public class GlobalPrefs {
 			return false;
 		}
 		
-		
-		
+		int nThread = (int) dlg.getNextNumber();
+		double pixelSize = dlg.getNextNumber();
+		boolean alternatingColor = dlg.getNextBoolean();
+		double strokeWidth = dlg.getNextNumber();
+		boolean lmFitting = (dlg.getNextChoiceIndex() == 1);
+		GaussianFitBase.NoiseModel noiseModel = GaussianFitBase.NoiseModel.values()[dlg.getNextChoiceIndex()];
+		double countsPerPhoton = dlg.getNextNumber();
+
+		if (! (countsPerPhoton > 0)) {
+			IJ.error("Counts per photon must be positive.");
+			return false;
+		}
+
+		nThread_ = nThread;
+		defaultPixelSize_ = pixelSize;
+		alternatingOverlayColor_ = alternatingColor;
+		overlayStrokeWidth_ = strokeWidth;
+		lmFitting_ = lmFitting;
+		noiseModel_ = noiseModel.name();
+		countsPerPhoton_ = countsPerPhoton;
+
+		savePrefs();
+
 		return true;
 	}
 }
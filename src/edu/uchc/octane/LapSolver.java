@@ -0,0 +1,228 @@
+//FILE:          LapSolver.java
+//PROJECT:       Octane
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ji Yu, jyu@uchc.edu
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package edu.uchc.octane;
+
+import java.util.Arrays;
+
+/**
+ * Sparse linear assignment solver. Every row is assigned to a distinct column so that the
+ * total cost is minimal; columns may stay unassigned. The rows are augmented one at a time
+ * along shortest paths with column potentials (the augmentation phase of Jonker-Volgenant),
+ * so a problem with n rows and e allowed pairs is solved in O(n e log n) time.
+ *
+ * The allowed pairs are given in compressed row format: the columns of row i are
+ * cols[rowStart[i]] ... cols[rowStart[i+1]-1] with the matching costs.
+ */
+public class LapSolver {
+
+	final private int nRows_;
+	final private int nCols_;
+	final private int [] rowStart_;
+	final private int [] cols_;
+	final private double [] costs_;
+
+	// indexed binary heap of columns keyed by their distance
+	private int [] heap_;
+	private int [] heapPos_;
+	private int heapSize_;
+	private double [] dist_;
+
+	/**
+	 * Constructor
+	 * @param nRows Number of rows
+	 * @param nCols Number of columns
+	 * @param rowStart Offsets of each row's pairs, of length nRows + 1
+	 * @param cols Column of each pair
+	 * @param costs Cost of each pair
+	 */
+	public LapSolver(int nRows, int nCols, int [] rowStart, int [] cols, double [] costs) {
+		nRows_ = nRows;
+		nCols_ = nCols;
+		rowStart_ = rowStart;
+		cols_ = cols;
+		costs_ = costs;
+	}
+
+	/**
+	 * Solve the assignment.
+	 * @return The column assigned to each row
+	 * @throws IllegalStateException if some rows can not be assigned
+	 */
+	public int [] solve() {
+		int [] rowCol = new int[nRows_];
+		int [] colRow = new int[nCols_];
+		double [] v = new double[nCols_];
+		int [] rowPair = new int[nRows_];
+		int [] pred = new int[nCols_];
+		int [] predPair = new int[nCols_];
+		int [] scanned = new int[nCols_];
+		boolean [] done = new boolean[nCols_];
+
+		dist_ = new double[nCols_];
+		heap_ = new int[nCols_];
+		heapPos_ = new int[nCols_];
+		Arrays.fill(colRow, -1);
+		Arrays.fill(heapPos_, -1);
+
+		for (int source = 0; source < nRows_; source ++) {
+			int nScanned = 0;
+			heapSize_ = 0;
+
+			for (int k = rowStart_[source]; k < rowStart_[source + 1]; k++) {
+				int j = cols_[k];
+				double d = costs_[k] - v[j];
+				if (heapPos_[j] < 0) {
+					dist_[j] = d;
+					pred[j] = source;
+					predPair[j] = k;
+					push(j);
+				} else if (d < dist_[j]) {
+					dist_[j] = d;
+					pred[j] = source;
+					predPair[j] = k;
+					decrease(j);
+				}
+			}
+
+			// Dijkstra over the alternating paths until a free column is reached
+			int freeCol = -1;
+			double minDist = 0;
+			while (heapSize_ > 0) {
+				int j = pop();
+				done[j] = true;
+				scanned[nScanned++] = j;
+				minDist = dist_[j];
+				int i = colRow[j];
+				if (i < 0) {
+					freeCol = j;
+					break;
+				}
+				double h = costs_[rowPair[i]] - v[j] - minDist;
+				for (int k = rowStart_[i]; k < rowStart_[i + 1]; k++) {
+					int c = cols_[k];
+					if (done[c]) {
+						continue;
+					}
+					double d = costs_[k] - v[c] - h;
+					if (heapPos_[c] < 0) {
+						dist_[c] = d;
+						pred[c] = i;
+						predPair[c] = k;
+						push(c);
+					} else if (d < dist_[c]) {
+						dist_[c] = d;
+						pred[c] = i;
+						predPair[c] = k;
+						decrease(c);
+					}
+				}
+			}
+
+			// reset the columns still queued
+			while (heapSize_ > 0) {
+				heapPos_[heap_[--heapSize_]] = -1;
+			}
+
+			if (freeCol < 0) {
+				throw new IllegalStateException("Row " + source + " can not be assigned");
+			}
+
+			// update the potentials of the scanned columns
+			for (int k = 0; k < nScanned; k++) {
+				int j = scanned[k];
+				v[j] += dist_[j] - minDist;
+				done[j] = false;
+				heapPos_[j] = -1;
+			}
+
+			// augment
+			int j = freeCol;
+			while (true) {
+				int i = pred[j];
+				colRow[j] = i;
+				int next = i == source ? -1 : rowCol[i];
+				rowCol[i] = j;
+				rowPair[i] = predPair[j];
+				if (next < 0) {
+					break;
+				}
+				j = next;
+			}
+		}
+
+		return rowCol;
+	}
+
+	private void push(int j) {
+		heapPos_[j] = heapSize_;
+		heap_[heapSize_++] = j;
+		siftUp(heapSize_ - 1);
+	}
+
+	private void decrease(int j) {
+		siftUp(heapPos_[j]);
+	}
+
+	private int pop() {
+		int top = heap_[0];
+		heapPos_[top] = -1;
+		heapSize_ --;
+		if (heapSize_ > 0) {
+			heap_[0] = heap_[heapSize_];
+			heapPos_[heap_[0]] = 0;
+			siftDown(0);
+		}
+		return top;
+	}
+
+	private void siftUp(int pos) {
+		int j = heap_[pos];
+		while (pos > 0) {
+			int parent = (pos - 1) >>> 1;
+			if (dist_[heap_[parent]] <= dist_[j]) {
+				break;
+			}
+			heap_[pos] = heap_[parent];
+			heapPos_[heap_[pos]] = pos;
+			pos = parent;
+		}
+		heap_[pos] = j;
+		heapPos_[j] = pos;
+	}
+
+	private void siftDown(int pos) {
+		int j = heap_[pos];
+		while (true) {
+			int child = 2 * pos + 1;
+			if (child >= heapSize_) {
+				break;
+			}
+			if (child + 1 < heapSize_ && dist_[heap_[child + 1]] < dist_[heap_[child]]) {
+				child ++;
+			}
+			if (dist_[heap_[child]] >= dist_[j]) {
+				break;
+			}
+			heap_[pos] = heap_[child];
+			heapPos_[heap_[pos]] = pos;
+			pos = child;
+		}
+		heap_[pos] = j;
+		heapPos_[j] = pos;
+	}
+}
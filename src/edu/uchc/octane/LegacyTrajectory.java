@@ -0,0 +1,77 @@
+//FILE:          LegacyTrajectory.java
+//PROJECT:       Octane
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ji Yu, jyu@uchc.edu
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package edu.uchc.octane;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.util.Vector;
+
+/**
+ * The serialized form of the Trajectory class before it became a view of the LocalizationTable.
+ * It has the same fields and serialVersionUID, so that datasets saved as serialized
+ * Vector&lt;Trajectory&gt; can still be read with LegacyTrajectory.DatasetInputStream.
+ * New datasets are saved with DatasetFile.
+ */
+class LegacyTrajectory extends Vector<SmNode> {
+
+	private static final long serialVersionUID = 8187158272341013922L;
+
+	private double stepSize2_ = -1;
+	private double maxDisplacement_ = -1;
+	boolean marked = false;
+	boolean deleted = false;
+	String note = null;
+
+	/**
+	 * Object input stream that reads serialized Trajectory objects as LegacyTrajectory
+	 */
+	static class DatasetInputStream extends ObjectInputStream {
+
+		DatasetInputStream(InputStream in) throws IOException {
+			super(in);
+		}
+
+		/* (non-Javadoc)
+		 * @see java.io.ObjectInputStream#readClassDescriptor()
+		 */
+		@Override
+		protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+			ObjectStreamClass desc = super.readClassDescriptor();
+			if (desc.getName().equals(Trajectory.class.getName())) {
+				return ObjectStreamClass.lookup(LegacyTrajectory.class);
+			}
+			return desc;
+		}
+	}
+
+	/**
+	 * @return a new trajectory with the same nodes and flags
+	 */
+	Trajectory toTrajectory() {
+		Trajectory t = new Trajectory();
+		for (int j = 0; j < size(); j++) {
+			t.add(get(j));
+		}
+		t.marked = marked;
+		t.deleted = deleted;
+		t.note = note;
+		return t;
+	}
+}
@@ -0,0 +1,424 @@
+//FILE:          LocalizationPipeline.java
+//PROJECT:       Octane
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ji Yu, jyu@uchc.edu
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package edu.uchc.octane;
+
+import ij.IJ;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A staged producer/consumer pipeline that localizes particles in all frames of a FrameSource.
+ * Frames pass through decode, background preprocessing, candidate detection, fitting and result stages,
+ * each with its own threads, connected by bounded queues. A preprocessing or detection stage without threads
+ * runs in the threads of the next compute stage. The number of frames in flight is limited by
+ * a pool of work slots, each of which owns a ParticleAnalysis module and its fitting module, so modules
+ * are reused across frames.
+ *
+ * Results are stored by frame index and every frame is analyzed independently, so the output does not
+ * depend on the scheduling. A TrackingModule can be attached to link the frames while the analysis is
+ * running.
+ *
+ */
+public class LocalizationPipeline {
+
+	/**
+	 * Pipeline stages
+	 */
+	public enum Stage {DECODE, PREPROCESS, DETECT, FIT, SINK};
+
+	/**
+	 * Analysis settings supplied by the caller
+	 */
+	public interface FrameAnalysis {
+
+		/**
+		 * Attach and configure the Gaussian fitting module of the analysis module. The module
+		 * attached in the previous call is passed back and can be reused.
+		 * Called for every frame before the image data is assigned.
+		 * @param module The analysis module
+		 */
+		void configureModule(ParticleAnalysis module);
+
+		/**
+		 * @return The region of interest
+		 */
+		Rectangle getMask();
+
+		/**
+		 * @return The lowest intensity to be analyzed
+		 */
+		int getWatershedThreshold();
+
+		/**
+		 * @return The noise threshold of the watershed algorithm
+		 */
+		int getWatershedNoise();
+	}
+
+	static class Slot {
+		int frame;
+		ImageProcessor ip;
+		ParticleAnalysis module = new ParticleAnalysis();
+	}
+
+	final private Slot END = new Slot();
+
+	final private FrameSource source_;
+	final private FrameAnalysis analysis_;
+	final private int [] nThreads_ = new int[Stage.values().length];
+
+	private SmNode [][] nodes_;
+	private TrackingModule tracker_ = null;
+	private int nFound_;
+	private long elapsed_;
+	final private AtomicLong [] busy_ = new AtomicLong[Stage.values().length];
+	final private AtomicBoolean cancelled_ = new AtomicBoolean(false);
+	private volatile Throwable error_ = null;
+
+	/**
+	 * Constructor
+	 * @param stack The image stack to be analyzed
+	 * @param analysis The analysis settings
+	 * @param nThreads Number of threads
+	 */
+	public LocalizationPipeline(ImageStack stack, FrameAnalysis analysis, int nThreads) {
+		this(new StackFrameSource(stack), analysis, nThreads);
+	}
+
+	/**
+	 * Constructor
+	 * The compute stages share nThreads threads, with half of them given to fitting. With fewer than
+	 * four threads, preprocessing and detection run in the fitting threads.
+	 * Decoding and result collection use a single thread each.
+	 * @param source The frames to be analyzed
+	 * @param analysis The analysis settings
+	 * @param nThreads Number of threads
+	 */
+	public LocalizationPipeline(FrameSource source, FrameAnalysis analysis, int nThreads) {
+		source_ = source;
+		analysis_ = analysis;
+
+		nThreads = Math.max(1, nThreads);
+		setStageThreads(Stage.DECODE, 1);
+		setStageThreads(Stage.PREPROCESS, nThreads / 4);
+		setStageThreads(Stage.DETECT, nThreads / 4);
+		setStageThreads(Stage.FIT, nThreads - 2 * (nThreads / 4));
+		setStageThreads(Stage.SINK, 1);
+
+		for (int i = 0; i < busy_.length; i++) {
+			busy_[i] = new AtomicLong(0);
+		}
+	}
+
+	/**
+	 * Set the number of threads of a stage
+	 * @param stage The stage
+	 * @param n Number of threads. PREPROCESS and DETECT may have 0 threads, in which case they run
+	 * in the threads of the next stage. The other stages have at least 1 thread.
+	 */
+	public void setStageThreads(Stage stage, int n) {
+		boolean inline = (stage == Stage.PREPROCESS || stage == Stage.DETECT);
+		nThreads_[stage.ordinal()] = Math.max(inline ? 0 : 1, n);
+	}
+
+	/**
+	 * Get the number of threads of a stage
+	 * @param stage The stage
+	 * @return Number of threads
+	 */
+	public int getStageThreads(Stage stage) {
+		return nThreads_[stage.ordinal()];
+	}
+
+	/**
+	 * Pass each analyzed frame to a tracker, so that tracking overlaps with the analysis. The
+	 * tracker runs in the result stage and reorders frames finished out of order. The caller
+	 * calls finish() on the tracker after run() returns.
+	 * @param tracker The tracker, or null
+	 */
+	public void setTracker(TrackingModule tracker) {
+		tracker_ = tracker;
+	}
+
+	/**
+	 * Stop the analysis. Threads finish the operation they are in and exit.
+	 */
+	public void cancel() {
+		cancelled_.set(true);
+	}
+
+	/**
+	 * @return Whether the last run was cancelled or failed
+	 */
+	public boolean isCancelled() {
+		return cancelled_.get();
+	}
+
+	/**
+	 * @return The exception that stopped the last run, or null
+	 */
+	public Throwable getError() {
+		return error_;
+	}
+
+	/**
+	 * @return Number of particles found in the last run
+	 */
+	public int getNumParticles() {
+		return nFound_;
+	}
+
+	/**
+	 * The fraction of time the threads of a stage spent working in the last run, as opposed to
+	 * waiting for input or for free slots. The stage with the highest utilization is the bottleneck.
+	 * @param stage The stage
+	 * @return Utilization between 0 and 1
+	 */
+	public double getUtilization(Stage stage) {
+		if (elapsed_ <= 0) {
+			return 0;
+		}
+		int k = stage.ordinal();
+		while (nThreads_[k] == 0) { // runs in the threads of the next stage
+			k++;
+		}
+		return (double) busy_[stage.ordinal()].get() / elapsed_ / nThreads_[k];
+	}
+
+	/**
+	 * @return A one line summary of the stage utilizations
+	 */
+	public String reportUtilization() {
+		StringBuilder sb = new StringBuilder();
+		for (Stage stage : Stage.values()) {
+			if (sb.length() > 0) {
+				sb.append(", ");
+			}
+			sb.append(String.format("%s(%d) %.0f%%", stage.name().toLowerCase(), nThreads_[stage.ordinal()], getUtilization(stage) * 100));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Analyze all frames. Pressing ESC cancels the analysis.
+	 * @return An array of array of SmNode representing all particles. Each SmNode[] represents a frame.
+	 * Null if the analysis was cancelled or failed.
+	 */
+	public SmNode[][] run() {
+
+		final int nFrames = source_.getSize();
+		nodes_ = new SmNode[nFrames][];
+		nFound_ = 0;
+		cancelled_.set(false);
+		error_ = null;
+		for (AtomicLong b : busy_) {
+			b.set(0);
+		}
+
+		int nStages = Stage.values().length;
+		int nTotalThreads = 0;
+		for (int n : nThreads_) {
+			nTotalThreads += n;
+		}
+
+		// one slot per thread plus one waiting in each queue
+		int nSlots = nTotalThreads + nStages;
+		final BlockingQueue<Slot> freeSlots = new ArrayBlockingQueue<Slot>(nSlots);
+		for (int i = 0; i < nSlots; i++) {
+			freeSlots.add(new Slot());
+		}
+
+		// queues [k] holds the output of stage k for the next stage with threads, with room for all slots 
+		// and the END markers. Stages without threads have no queue.
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		final BlockingQueue<Slot> [] queues = new BlockingQueue[nStages - 1];
+		final int [] nextStage = new int[nStages - 1];
+		for (int k = 0; k < nStages - 1; k++) {
+			nextStage[k] = k + 1;
+			while (nThreads_[nextStage[k]] == 0) {
+				nextStage[k] ++;
+			}
+			if (nThreads_[k] > 0) {
+				queues[k] = new ArrayBlockingQueue<Slot>(nSlots + nThreads_[nextStage[k]]);
+			}
+		}
+
+		final AtomicInteger nextFrame = new AtomicInteger(0);
+		final AtomicInteger nProcessed = new AtomicInteger(0);
+		final AtomicInteger nFound = new AtomicInteger(0);
+
+		IJ.resetEscape();
+
+		ExecutorService executor = Executors.newFixedThreadPool(nTotalThreads);
+		long start = System.nanoTime();
+
+		final Stage [] stages = Stage.values();
+		for (final Stage stage : stages) {
+
+			final int k = stage.ordinal();
+			final AtomicInteger nRunning = new AtomicInteger(nThreads_[k]);
+
+			// first stage run by these threads, the preceding stages without threads included
+			int first = k;
+			while (first > 0 && nThreads_[first - 1] == 0) {
+				first --;
+			}
+			final int firstStage = first;
+
+			for (int t = 0; t < nThreads_[k]; t++) {
+
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							if (stage == Stage.DECODE) {
+								int frame;
+								while (!isStopped() && (frame = nextFrame.getAndIncrement()) < nFrames) {
+									Slot slot = freeSlots.take();
+									long t0 = System.nanoTime();
+									slot.frame = frame;
+									decode(slot);
+									busy_[k].addAndGet(System.nanoTime() - t0);
+									queues[k].put(slot);
+								}
+							} else {
+								Slot slot;
+								while ((slot = queues[firstStage - 1].take()) != END) {
+									if (isStopped()) {
+										break;
+									}
+									long t0 = System.nanoTime();
+									if (stage == Stage.SINK) {
+										nodes_[slot.frame] = collect(slot, nFound);
+										if (tracker_ != null) {
+											tracker_.accept(slot.frame, nodes_[slot.frame]);
+										}
+										busy_[k].addAndGet(System.nanoTime() - t0);
+										freeSlots.put(slot);
+										int n = nProcessed.incrementAndGet();
+										if ((n % 50) == 0) {
+											IJ.log("Processed: "+ n + "frames.");
+										}
+										IJ.showProgress(n, nFrames);
+									} else {
+										for (int j = firstStage; j <= k; j++) {
+											process(stages[j], slot);
+											long t1 = System.nanoTime();
+											busy_[j].addAndGet(t1 - t0);
+											t0 = t1;
+										}
+										queues[k].put(slot);
+									}
+								}
+							}
+						} catch (InterruptedException e) {
+							cancelled_.set(true);
+						} catch (Throwable e) {
+							error_ = e;
+							cancelled_.set(true);
+						} finally {
+							if (nRunning.decrementAndGet() == 0 && k < queues.length) {
+								for (int i = 0; i < nThreads_[nextStage[k]]; i++) {
+									queues[k].offer(END);
+								}
+							}
+						}
+					}
+				});
+			}
+		}
+
+		executor.shutdown();
+		try {
+			while (! executor.awaitTermination(100, TimeUnit.MILLISECONDS)) {
+				if (cancelled_.get()) {
+					executor.shutdownNow();
+				}
+			}
+		} catch (InterruptedException e) {
+			cancelled_.set(true);
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+
+		elapsed_ = System.nanoTime() - start;
+		nFound_ = nFound.get();
+
+		if (cancelled_.get()) {
+			IJ.showProgress(1.0);
+			nodes_ = null;
+		}
+
+		return nodes_;
+	}
+
+	private boolean isStopped() {
+		if (IJ.escapePressed()) {
+			cancelled_.set(true);
+		}
+		return cancelled_.get();
+	}
+
+	void decode(Slot slot) throws IOException {
+		slot.ip = source_.getProcessor(slot.frame + 1, slot.ip);
+		analysis_.configureModule(slot.module);
+		GaussianFitBase g = slot.module.getGaussianFitModule();
+		if (g != null) {
+			g.setImageData(slot.ip);
+		}
+	}
+
+	void process(Stage stage, Slot slot) throws InterruptedException {
+		GaussianFitBase g = slot.module.getGaussianFitModule();
+		switch (stage) {
+		case PREPROCESS:
+			if (g != null) {
+				g.preProcessBackground();
+			}
+			break;
+		case DETECT:
+			slot.module.detect(slot.ip, analysis_.getMask(), analysis_.getWatershedThreshold(), analysis_.getWatershedNoise());
+			break;
+		case FIT:
+			slot.module.fitMaxima();
+			break;
+		default:
+			break;
+		}
+	}
+
+	SmNode [] collect(Slot slot, AtomicInteger nFound) {
+		SmNode [] nodes = slot.module.createSmNodes(slot.frame + 1);
+		if (nodes == null) {
+			nodes = new SmNode[0];
+		}
+		nFound.addAndGet(slot.module.reportNumParticles());
+		return nodes;
+	}
+}
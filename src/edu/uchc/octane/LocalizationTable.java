@@ -0,0 +1,486 @@
+//FILE:          LocalizationTable.java
+//PROJECT:       Octane
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ji Yu, jyu@uchc.edu
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package edu.uchc.octane;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Column store of particle localizations, one primitive array per field.
+ * Rows are ordered by trajectory, so the localizations of trajectory t are the rows
+ * getTrajectoryStart(t) to getTrajectoryEnd(t) - 1. An index sorting the rows by frame
+ * is built on demand.
+ *
+ * X and Y are kept in double precision. Z and the fitting residue are stored as float,
+ * which is well below the localization precision.
+ * SmNode objects are only created when requested with getNode().
+ *
+ * A table opened from a dataset file reads the columns from the memory mapped file
+ * and can't be modified.
+ *
+ */
+public class LocalizationTable {
+
+	private int size_ = 0;
+	private double [] x_;
+	private double [] y_;
+	private float [] z_;
+	private float [] residue_;
+	private int [] frame_;
+	private int [] height_;
+	private MappedColumns mapped_ = null;
+
+	private int nTrajectories_ = 0;
+	private int [] trajectoryStart_;
+
+	private int [] frameOrder_ = null;
+	private int [] frameStart_ = null;
+
+	/**
+	 * Constructor
+	 * @param capacity Initial number of rows to allocate
+	 */
+	public LocalizationTable(int capacity) {
+		capacity = Math.max(16, capacity);
+		x_ = new double[capacity];
+		y_ = new double[capacity];
+		z_ = new float[capacity];
+		residue_ = new float[capacity];
+		frame_ = new int[capacity];
+		height_ = new int[capacity];
+		trajectoryStart_ = new int[16];
+	}
+
+	/**
+	 * Create a table from trajectories
+	 * @param trajectories The trajectories
+	 * @return A new table
+	 */
+	public static LocalizationTable fromTrajectories(List<Trajectory> trajectories) {
+		int n = 0;
+		for (int i = 0; i < trajectories.size(); i++) {
+			n += trajectories.get(i).size();
+		}
+		LocalizationTable table = new LocalizationTable(n);
+		for (int i = 0; i < trajectories.size(); i++) {
+			Trajectory t = trajectories.get(i);
+			table.startTrajectory(i);
+			for (int j = 0; j < t.size(); j++) {
+				table.add(t.get(j), i);
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * Create a table from columns, without copying. Rows must be in trajectory order.
+	 * @param x X (pixels)
+	 * @param y Y (pixels)
+	 * @param z Z
+	 * @param residue Fitting residue
+	 * @param frame Frame number
+	 * @param height Peak height
+	 * @param trajectoryStart The first row of each trajectory
+	 * @return A new table
+	 */
+	static LocalizationTable fromColumns(double [] x, double [] y, float [] z, float [] residue, int [] frame, int [] height, int [] trajectoryStart) {
+		LocalizationTable table = new LocalizationTable(0);
+		table.x_ = x;
+		table.y_ = y;
+		table.z_ = z;
+		table.residue_ = residue;
+		table.frame_ = frame;
+		table.height_ = height;
+		table.size_ = x.length;
+		table.setTrajectoryStarts(trajectoryStart);
+		return table;
+	}
+
+	/**
+	 * Create a read-only table from memory mapped columns.
+	 * @param columns The columns
+	 * @param size Number of rows
+	 * @param trajectoryStart The first row of each trajectory
+	 * @return A new table
+	 */
+	static LocalizationTable fromMapped(MappedColumns columns, int size, int [] trajectoryStart) {
+		LocalizationTable table = new LocalizationTable(0);
+		table.x_ = null;
+		table.y_ = null;
+		table.z_ = null;
+		table.residue_ = null;
+		table.frame_ = null;
+		table.height_ = null;
+		table.mapped_ = columns;
+		table.size_ = size;
+		table.setTrajectoryStarts(trajectoryStart);
+		return table;
+	}
+
+	private void setTrajectoryStarts(int [] trajectoryStart) {
+		for (int t = 0; t < trajectoryStart.length; t++) {
+			int end = t + 1 < trajectoryStart.length ? trajectoryStart[t + 1] : size_;
+			if (trajectoryStart[t] < 0 || trajectoryStart[t] > end) {
+				throw new IllegalArgumentException("Localizations are not in trajectory order");
+			}
+		}
+		trajectoryStart_ = trajectoryStart.length > 0 ? trajectoryStart : new int[16];
+		nTrajectories_ = trajectoryStart.length;
+	}
+
+	/**
+	 * @return Whether the columns are memory mapped from a file
+	 */
+	public boolean isMapped() {
+		return mapped_ != null;
+	}
+
+	/**
+	 * @return The memory mapped columns, or null
+	 */
+	MappedColumns getMappedColumns() {
+		return mapped_;
+	}
+
+	private void grow(int minCapacity) {
+		int capacity = Math.max(Math.max(16, minCapacity), x_.length + (x_.length >> 1));
+		x_ = Arrays.copyOf(x_, capacity);
+		y_ = Arrays.copyOf(y_, capacity);
+		z_ = Arrays.copyOf(z_, capacity);
+		residue_ = Arrays.copyOf(residue_, capacity);
+		frame_ = Arrays.copyOf(frame_, capacity);
+		height_ = Arrays.copyOf(height_, capacity);
+	}
+
+	/**
+	 * Append a localization. Rows must be added in trajectory order.
+	 * @param x X (pixels)
+	 * @param y Y (pixels)
+	 * @param z Z
+	 * @param frame Frame number, starting from 1
+	 * @param height Peak height
+	 * @param residue Fitting residue
+	 * @param trajectory Index of the trajectory
+	 */
+	public void add(double x, double y, double z, int frame, int height, double residue, int trajectory) {
+		if (mapped_ != null) {
+			throw new IllegalStateException("Table is read-only");
+		}
+		if (trajectory < nTrajectories_ - 1) {
+			throw new IllegalStateException("Localizations must be added in trajectory order");
+		}
+		startTrajectory(trajectory);
+		if (size_ == x_.length) {
+			grow(size_ + 1);
+		}
+		x_[size_] = x;
+		y_[size_] = y;
+		z_[size_] = (float) z;
+		residue_[size_] = (float) residue;
+		frame_[size_] = frame;
+		height_[size_] = height;
+		size_ ++;
+		frameOrder_ = null;
+	}
+
+	/**
+	 * Append a localization. Rows must be added in trajectory order.
+	 * @param node The localization
+	 * @param trajectory Index of the trajectory
+	 */
+	public void add(SmNode node, int trajectory) {
+		add(node.x, node.y, node.z, node.frame, node.height, node.residue, trajectory);
+	}
+
+	/**
+	 * Start a trajectory at the next row. Skipped trajectory indices become empty trajectories.
+	 * Called by add(), but needed explicitly for a trajectory without localizations.
+	 * @param trajectory Index of the trajectory
+	 */
+	public void startTrajectory(int trajectory) {
+		while (nTrajectories_ <= trajectory) {
+			if (nTrajectories_ == trajectoryStart_.length) {
+				trajectoryStart_ = Arrays.copyOf(trajectoryStart_, trajectoryStart_.length * 2);
+			}
+			trajectoryStart_[nTrajectories_] = size_;
+			nTrajectories_ ++;
+		}
+	}
+
+	/**
+	 * @return Number of localizations
+	 */
+	public int size() {
+		return size_;
+	}
+
+	/**
+	 * @param i The row
+	 * @return X (pixels)
+	 */
+	public double getX(int i) {
+		return mapped_ == null ? x_[i] : mapped_.getX(i);
+	}
+
+	/**
+	 * @param i The row
+	 * @return Y (pixels)
+	 */
+	public double getY(int i) {
+		return mapped_ == null ? y_[i] : mapped_.getY(i);
+	}
+
+	/**
+	 * @param i The row
+	 * @return Z
+	 */
+	public double getZ(int i) {
+		return mapped_ == null ? z_[i] : mapped_.getZ(i);
+	}
+
+	/**
+	 * @param i The row
+	 * @return Fitting residue
+	 */
+	public double getResidue(int i) {
+		return mapped_ == null ? residue_[i] : mapped_.getResidue(i);
+	}
+
+	/**
+	 * @param i The row
+	 * @return Frame number
+	 */
+	public int getFrame(int i) {
+		return mapped_ == null ? frame_[i] : mapped_.getFrame(i);
+	}
+
+	/**
+	 * @param i The row
+	 * @return Peak height
+	 */
+	public int getHeight(int i) {
+		return mapped_ == null ? height_[i] : mapped_.getHeight(i);
+	}
+
+	/**
+	 * @param i The row
+	 * @return Index of the trajectory
+	 */
+	public int getTrajectory(int i) {
+		// the last trajectory starting at or before i. Empty trajectories share the start of the next one.
+		int lo = 0;
+		int hi = nTrajectories_ - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (trajectoryStart_[mid] <= i) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * Create an SmNode of a row
+	 * @param i The row
+	 * @return A new node
+	 */
+	public SmNode getNode(int i) {
+		return new SmNode(getX(i), getY(i), getZ(i), getFrame(i), getHeight(i), getResidue(i));
+	}
+
+	/**
+	 * Squared distance between two rows
+	 * @param i First row
+	 * @param j Second row
+	 * @return distance^2
+	 */
+	public double distance2(int i, int j) {
+		double dx = getX(i) - getX(j);
+		double dy = getY(i) - getY(j);
+		double dz = getZ(i) - getZ(j);
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	/**
+	 * @return Number of trajectories
+	 */
+	public int getNumTrajectories() {
+		return nTrajectories_;
+	}
+
+	/**
+	 * @param t Trajectory index
+	 * @return The first row of the trajectory
+	 */
+	public int getTrajectoryStart(int t) {
+		return trajectoryStart_[t];
+	}
+
+	/**
+	 * @param t Trajectory index
+	 * @return One past the last row of the trajectory
+	 */
+	public int getTrajectoryEnd(int t) {
+		return t + 1 < nTrajectories_ ? trajectoryStart_[t + 1] : size_;
+	}
+
+	private void buildFrameIndex() {
+		int maxFrame = 0;
+		for (int i = 0; i < size_; i++) {
+			maxFrame = Math.max(maxFrame, getFrame(i));
+		}
+		// counting sort, stable within a frame
+		int [] start = new int[maxFrame + 2];
+		for (int i = 0; i < size_; i++) {
+			start[getFrame(i) + 1] ++;
+		}
+		for (int f = 1; f < start.length; f++) {
+			start[f] += start[f - 1];
+		}
+		int [] pos = Arrays.copyOf(start, start.length);
+		int [] order = new int[size_];
+		for (int i = 0; i < size_; i++) {
+			order[pos[getFrame(i)] ++] = i;
+		}
+		frameStart_ = start;
+		frameOrder_ = order;
+	}
+
+	/**
+	 * @return The largest frame number, or 0 if the table is empty
+	 */
+	public int getMaxFrame() {
+		if (frameOrder_ == null) {
+			buildFrameIndex();
+		}
+		return frameStart_.length - 2;
+	}
+
+	/**
+	 * Rows sorted by frame. The rows of frame f are getFrameOrder()[getFrameStart(f)] to
+	 * getFrameOrder()[getFrameStart(f + 1) - 1]
+	 * @return The row indices
+	 */
+	public int [] getFrameOrder() {
+		if (frameOrder_ == null) {
+			buildFrameIndex();
+		}
+		return frameOrder_;
+	}
+
+	/**
+	 * @param frame Frame number
+	 * @return Position of the first row of the frame in the frame order
+	 */
+	public int getFrameStart(int frame) {
+		if (frameOrder_ == null) {
+			buildFrameIndex();
+		}
+		return frameStart_[Math.min(frame, frameStart_.length - 1)];
+	}
+
+	/**
+	 * Create SmNode objects of all rows, grouped by frame
+	 * @return nodes[frame - 1][offset]
+	 */
+	public SmNode [][] createNodesByFrame() {
+		int [] order = getFrameOrder();
+		int nFrames = getMaxFrame();
+		SmNode [][] nodes = new SmNode[nFrames][];
+		for (int f = 1; f <= nFrames; f++) {
+			int start = frameStart_[f];
+			nodes[f - 1] = new SmNode[frameStart_[f + 1] - start];
+			for (int k = 0; k < nodes[f - 1].length; k++) {
+				nodes[f - 1][k] = getNode(order[start + k]);
+			}
+		}
+		return nodes;
+	}
+
+	/**
+	 * Write all localizations as text in frame order: frame, x, y, z, height
+	 * @param w The writer
+	 * @throws IOException
+	 */
+	public void writePositions(Writer w) throws IOException {
+		new TextExporter(this, 1).writePositions(w);
+	}
+
+	/**
+	 * Write all localizations as text in trajectory order: frame, x, y, z, height, trajectory
+	 * @param w The writer
+	 * @throws IOException
+	 */
+	public void writeTrajectories(Writer w) throws IOException {
+		new TextExporter(this, 1).writeTrajectories(w);
+	}
+
+	/**
+	 * Columns read from a memory mapped file. Each column is split into segments of
+	 * 2^SHIFT elements, so that a column can be larger than 2 GB.
+	 */
+	static class MappedColumns {
+
+		static final int SHIFT = 27;
+		static final int MASK = (1 << SHIFT) - 1;
+
+		/** The canonical file the columns are mapped from */
+		File file;
+		/** The file key of that file, null if the system has none */
+		Object fileKey;
+
+		DoubleBuffer [] x;
+		DoubleBuffer [] y;
+		FloatBuffer [] z;
+		FloatBuffer [] residue;
+		IntBuffer [] frame;
+		IntBuffer [] height;
+
+		double getX(int i) {
+			return x[i >>> SHIFT].get(i & MASK);
+		}
+
+		double getY(int i) {
+			return y[i >>> SHIFT].get(i & MASK);
+		}
+
+		double getZ(int i) {
+			return z[i >>> SHIFT].get(i & MASK);
+		}
+
+		double getResidue(int i) {
+			return residue[i >>> SHIFT].get(i & MASK);
+		}
+
+		int getFrame(int i) {
+			return frame[i >>> SHIFT].get(i & MASK);
+		}
+
+		int getHeight(int i) {
+			return height[i >>> SHIFT].get(i & MASK);
+		}
+	}
+}
@@ -0,0 +1,385 @@
+//FILE:          MappedFrameSource.java
+//PROJECT:       Octane
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ji Yu, jyu@uchc.edu
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package edu.uchc.octane;
+
+import ij.ImagePlus;
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A FrameSource reading uncompressed 8-bit or 16-bit TIFF and raw files through a memory mapping of
+ * the file. Only a window of the file is mapped at a time, and frames are decoded directly into the
+ * pixel buffer of the processor being reused, so memory use does not depend on the length of the movie.
+ * The frames following the one being read are loaded into the page cache by a background thread.
+ *
+ */
+public class MappedFrameSource implements FrameSource {
+
+	final static long WINDOW_SIZE = 1L << 28;
+	final static int PREFETCH_FRAMES = 16;
+
+	final private RandomAccessFile file_;
+	final private FileChannel channel_;
+	final private long fileSize_;
+	final private int width_;
+	final private int height_;
+	final private int bytesPerPixel_;
+	final private boolean signed_;
+	final private ByteOrder order_;
+	final private long [] offsets_;
+	final private long frameBytes_;
+
+	private MappedByteBuffer window_ = null;
+	private long windowStart_ = 0;
+	private long windowEnd_ = 0;
+
+	final private ExecutorService prefetcher_;
+	private Future<?> prefetch_ = null;
+	private int prefetchedTo_ = 0;
+
+	/**
+	 * Constructor
+	 * @param path The file name
+	 * @param width Frame width
+	 * @param height Frame height
+	 * @param fileType FileInfo.GRAY8, FileInfo.GRAY16_UNSIGNED or FileInfo.GRAY16_SIGNED
+	 * @param littleEndian Whether the 16-bit pixels are stored in little endian (Intel) order
+	 * @param offsets The file offset of each frame
+	 * @throws IOException
+	 */
+	MappedFrameSource(String path, int width, int height, int fileType, boolean littleEndian, long [] offsets) throws IOException {
+
+		if (fileType == FileInfo.GRAY8) {
+			bytesPerPixel_ = 1;
+			signed_ = false;
+		} else if (fileType == FileInfo.GRAY16_UNSIGNED || fileType == FileInfo.GRAY16_SIGNED) {
+			bytesPerPixel_ = 2;
+			signed_ = (fileType == FileInfo.GRAY16_SIGNED);
+		} else {
+			throw new IOException("Only 8-bit and 16-bit grayscale images are supported");
+		}
+
+		width_ = width;
+		height_ = height;
+		order_ = littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+		offsets_ = offsets;
+		frameBytes_ = (long) width * height * bytesPerPixel_;
+
+		file_ = new RandomAccessFile(path, "r");
+		channel_ = file_.getChannel();
+		fileSize_ = channel_.size();
+
+		for (long offset : offsets_) {
+			if (offset < 0 || offset + frameBytes_ > fileSize_) {
+				close();
+				throw new IOException("Frame data extends beyond the end of the file");
+			}
+		}
+
+		prefetcher_ = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Octane frame prefetch");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Open a raw file of equally spaced frames
+	 * @param path The file name
+	 * @param width Frame width
+	 * @param height Frame height
+	 * @param fileType FileInfo.GRAY8, FileInfo.GRAY16_UNSIGNED or FileInfo.GRAY16_SIGNED
+	 * @param littleEndian Whether the 16-bit pixels are stored in little endian (Intel) order
+	 * @param offset Offset of the first frame
+	 * @param gap Bytes between frames
+	 * @param nFrames Number of frames, or 0 to use all complete frames in the file
+	 * @return The frame source
+	 * @throws IOException
+	 */
+	public static MappedFrameSource openRaw(String path, int width, int height, int fileType, boolean littleEndian,
+			long offset, long gap, int nFrames) throws IOException {
+
+		long frameBytes = (long) width * height * (fileType == FileInfo.GRAY8 ? 1 : 2);
+		if (nFrames <= 0) {
+			nFrames = (int) ((new File(path).length() - offset + gap) / (frameBytes + gap));
+		}
+
+		long [] offsets = new long[nFrames];
+		for (int i = 0; i < nFrames; i++) {
+			offsets[i] = offset + i * (frameBytes + gap);
+		}
+
+		return new MappedFrameSource(path, width, height, fileType, littleEndian, offsets);
+	}
+
+	/**
+	 * Open an uncompressed TIFF file. Both ImageJ stacks and general multi-page TIFF files are supported,
+	 * as long as the pixel data of each page is stored contiguously.
+	 * @param path The file name
+	 * @return The frame source
+	 * @throws IOException
+	 */
+	public static MappedFrameSource openTiff(String path) throws IOException {
+
+		File f = new File(path);
+		String dir = f.getParent() == null ? "" : f.getParent() + File.separator;
+		FileInfo [] info = new TiffDecoder(dir, f.getName()).getTiffInfo();
+
+		if (info == null || info.length == 0) {
+			throw new IOException("Not a TIFF file: " + path);
+		}
+
+		FileInfo fi = info[0];
+		long frameBytes = (long) fi.width * fi.height * (fi.fileType == FileInfo.GRAY8 ? 1 : 2);
+		long [] offsets;
+
+		if (info.length == 1) {
+			checkTiffInfo(fi, fi, frameBytes);
+			int nFrames = Math.max(1, fi.nImages);
+			offsets = new long[nFrames];
+			for (int i = 0; i < nFrames; i++) {
+				offsets[i] = fi.getOffset() + i * (frameBytes + fi.getGap());
+			}
+		} else {
+			offsets = new long[info.length];
+			for (int i = 0; i < info.length; i++) {
+				checkTiffInfo(info[i], fi, frameBytes);
+				offsets[i] = info[i].getOffset();
+			}
+		}
+
+		return new MappedFrameSource(path, fi.width, fi.height, fi.fileType, fi.intelByteOrder, offsets);
+	}
+
+	private static void checkTiffInfo(FileInfo fi, FileInfo first, long frameBytes) throws IOException {
+
+		if (fi.compression > FileInfo.COMPRESSION_NONE) {
+			throw new IOException("Compressed TIFF files are not supported");
+		}
+
+		if (fi.width != first.width || fi.height != first.height || fi.fileType != first.fileType) {
+			throw new IOException("All pages must have the same size and type");
+		}
+
+		if (fi.stripOffsets != null && fi.stripLengths != null) {
+			for (int i = 1; i < fi.stripOffsets.length; i++) {
+				if ((fi.stripOffsets[i] & 0xffffffffL) != (fi.stripOffsets[i - 1] & 0xffffffffL) + fi.stripLengths[i - 1]) {
+					throw new IOException("Non-contiguous TIFF strips are not supported");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Create a mapped source for the file behind an image opened as a virtual stack
+	 * @param imp The image
+	 * @return The frame source, or null if the image is not a virtual stack of a supported file
+	 */
+	public static MappedFrameSource forImage(ImagePlus imp) {
+
+		if (! imp.getStack().isVirtual()) {
+			return null;
+		}
+
+		FileInfo fi = imp.getOriginalFileInfo();
+		if (fi == null || fi.directory == null || fi.fileName == null) {
+			return null;
+		}
+
+		String path = fi.directory + fi.fileName;
+		MappedFrameSource source = null;
+
+		try {
+			if (fi.fileFormat == FileInfo.TIFF) {
+				source = openTiff(path);
+			} else if (fi.fileFormat == FileInfo.RAW) {
+				source = openRaw(path, fi.width, fi.height, fi.fileType, fi.intelByteOrder, fi.getOffset(), fi.getGap(), fi.nImages);
+			}
+		} catch (IOException e) {
+			return null;
+		}
+
+		if (source != null && (source.getSize() != imp.getStackSize() || source.getWidth() != imp.getWidth()
+				|| source.getHeight() != imp.getHeight())) {
+			source.close();
+			return null;
+		}
+
+		return source;
+	}
+
+	/* (non-Javadoc)
+	 * @see edu.uchc.octane.FrameSource#getSize()
+	 */
+	@Override
+	public int getSize() {
+		return offsets_.length;
+	}
+
+	/* (non-Javadoc)
+	 * @see edu.uchc.octane.FrameSource#getWidth()
+	 */
+	@Override
+	public int getWidth() {
+		return width_;
+	}
+
+	/* (non-Javadoc)
+	 * @see edu.uchc.octane.FrameSource#getHeight()
+	 */
+	@Override
+	public int getHeight() {
+		return height_;
+	}
+
+	/* (non-Javadoc)
+	 * @see edu.uchc.octane.FrameSource#getProcessor(int, ij.process.ImageProcessor)
+	 */
+	@Override
+	public ImageProcessor getProcessor(int n, ImageProcessor reuse) throws IOException {
+
+		int nPixels = width_ * height_;
+		ImageProcessor ip;
+
+		synchronized (this) {
+			long offset = offsets_[n - 1];
+			ByteBuffer bb = map(offset);
+			bb.position((int) (offset - windowStart_));
+			bb.order(order_);
+
+			if (bytesPerPixel_ == 2) {
+				short [] pixels;
+				if (reuse instanceof ShortProcessor && reuse.getWidth() == width_ && reuse.getHeight() == height_) {
+					ip = reuse;
+					pixels = (short []) reuse.getPixels();
+				} else {
+					pixels = new short[nPixels];
+					ip = null;
+				}
+				bb.asShortBuffer().get(pixels, 0, nPixels);
+				if (signed_) {
+					for (int i = 0; i < nPixels; i++) {
+						pixels[i] = (short) (pixels[i] + 32768);
+					}
+				}
+				if (ip == null) {
+					ip = new ShortProcessor(width_, height_, pixels, null);
+				}
+			} else {
+				byte [] pixels;
+				if (reuse instanceof ByteProcessor && reuse.getWidth() == width_ && reuse.getHeight() == height_) {
+					ip = reuse;
+					pixels = (byte []) reuse.getPixels();
+				} else {
+					pixels = new byte[nPixels];
+					ip = null;
+				}
+				bb.get(pixels, 0, nPixels);
+				if (ip == null) {
+					ip = new ByteProcessor(width_, height_, pixels, null);
+				}
+			}
+
+			prefetch(n);
+		}
+
+		ip.resetMinAndMax();
+		return ip;
+	}
+
+	/**
+	 * Map the window of the file that contains the frame at the offset
+	 * @return A view of the mapped window
+	 */
+	private ByteBuffer map(long offset) throws IOException {
+		if (window_ == null || offset < windowStart_ || offset + frameBytes_ > windowEnd_) {
+			windowStart_ = offset;
+			windowEnd_ = Math.min(fileSize_, offset + Math.max(WINDOW_SIZE, frameBytes_));
+			window_ = channel_.map(FileChannel.MapMode.READ_ONLY, windowStart_, windowEnd_ - windowStart_);
+		}
+		return window_.duplicate();
+	}
+
+	/**
+	 * Load the pages of the frames following frame n in the background, unless the last request is still running
+	 */
+	private void prefetch(int n) {
+		if (n + 1 <= prefetchedTo_ - PREFETCH_FRAMES / 2 || (prefetch_ != null && ! prefetch_.isDone())) {
+			return;
+		}
+
+		int first = Math.max(n + 1, prefetchedTo_ + 1);
+		final int last = Math.min(offsets_.length, n + PREFETCH_FRAMES);
+		if (first > last) {
+			return;
+		}
+
+		final long start = offsets_[first - 1];
+		final long end = offsets_[last - 1] + frameBytes_;
+		prefetchedTo_ = last;
+
+		if (end <= start || end - start > Integer.MAX_VALUE) {
+			return;
+		}
+
+		prefetch_ = prefetcher_.submit(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					channel_.map(FileChannel.MapMode.READ_ONLY, start, end - start).load();
+				} catch (IOException e) {
+					// prefetch is only a hint
+				}
+			}
+		});
+	}
+
+	/* (non-Javadoc)
+	 * @see edu.uchc.octane.FrameSource#close()
+	 */
+	@Override
+	public void close() {
+		if (prefetcher_ != null) {
+			prefetcher_.shutdownNow();
+		}
+		window_ = null;
+		try {
+			file_.close();
+		} catch (IOException e) {
+			// nothing to do
+		}
+	}
+}
@@ -251,10 +251,11 @@ public class OctanePlugin implements PlugIn{
 			if (startImageAnalysis(cmd)) { // wasOked?
 
 				SmNode [][] nodes = dlg_.processAllFrames();
+				TrackingParameters trackingParams = null;
 				
-				if ( TrackingParameters.openDialog(dlg_.pixelSize_) ) { //wasOKed ?
+				if (nodes != null && (trackingParams = TrackingParameters.openDialog(dlg_.pixelSize_)) != null ) { //wasOKed ?
 
-					TrajDataset data = TrajDataset.createDatasetFromNodes(nodes);
+					TrajDataset data = TrajDataset.createDatasetFromNodes(nodes, trackingParams);
 					data.setPixelSize(dlg_.pixelSize_);
 					
 					ctl_ = new OctaneWindowControl(imp_);
@@ -467,7 +467,9 @@ public class OctaneWindow extends JFrame {
 				
 				if (initText == null || initText.replaceAll("\\s", "").isEmpty()) {
 					initText = "// Input :\n"
-							+  "//   t    - class Trajectory extends Vector<SmNode>\n"
+							+  "//   t    - class List<SmNode>, the nodes of the trajectory, also\n"
+							+  "//          t.marked, t.note, t.getLength(), t.getAvgSquareStepSize(n)\n"
+							+  "//   traj - class Trajectory\n"
 							+  "//   note - class String\n"
 							+  "// Output :\n"
 							+  "//   note - class String\n\n";
@@ -489,23 +491,18 @@ public class OctaneWindow extends JFrame {
 						Trajectory traj = dataset.getTrajectoryByIndex(i);
 						if ( ! traj.deleted ) {
 							try {
-								bsh.set("t", traj);
+								bsh.set("t", traj.asList());
+								bsh.set("traj", traj);
 								
-								if (traj.note == null) {
-							
-									bsh.set("note", "");
- 								
-								} else {
- 								
-									bsh.set("note", traj.note);
- 								
-								}
+								String note = traj.note == null ? "" : traj.note;
+								bsh.set("note", note);
 								
 								bsh.eval(script);
 								
+								// the note may also have been set through t.note
 								String s = (String) bsh.get("note");
 								
-								if (s  != null ) {
+								if (s  != null && ! s.equals(note)) {
 								
 									traj.note = s; 
 								
@@ -30,12 +30,9 @@ import java.awt.datatransfer.Transferable;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.geom.GeneralPath;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.prefs.Preferences;
 
 import javax.swing.JFileChooser;
@@ -238,7 +235,7 @@ public class OctaneWindowControl implements ClipboardOwner{
 				
 					for (int j = 0; j< t.size(); j++) {
 					
-						if (roi.contains( (int)t.get(j).x, (int)t.get(j).y)) {
+						if (roi.contains( (int)t.getX(j), (int)t.getY(j))) {
 						
 							if (firstSel) {
 							
@@ -274,7 +271,7 @@ public class OctaneWindowControl implements ClipboardOwner{
 			
 			for (int j = 0; j < traj.size(); j++) {
 			
-				buf.append(String.format("%10.4f, %10.4f, %10d, %5d%n", traj.get(j).x, traj.get(j).y, traj.get(j).frame, i));
+				buf.append(String.format("%10.4f, %10.4f, %10d, %5d%n", traj.getX(j), traj.getY(j), traj.getFrame(j), i));
 			
 			}
 		}
@@ -297,16 +294,16 @@ public class OctaneWindowControl implements ClipboardOwner{
 		int lastIndex = dataset_.getSize();
 		while (!found && index < lastIndex) {
 			Trajectory t = dataset_.getTrajectoryByIndex(index);
-			if (t != null && t.size() > 0 && t.get(0).frame <= f && t.get(t.size()-1).frame >= f) {
-				fi = f - t.get(0).frame;
+			if (t != null && t.size() > 0 && t.getFrame(0) <= f && t.getFrame(t.size()-1) >= f) {
+				fi = f - t.getFrame(0);
 				if (fi >= t.size()) { 
 					fi = t.size() - 1;
 				}
-				while (t.get(fi).frame > f) {
+				while (t.getFrame(fi) > f) {
 					fi --;
 				}
-				if (t.get(fi).frame == f) {
-					if ( Math.abs(t.get(fi).x - x) < 2.5 && Math.abs(t.get(fi).y - y) < 2.5) {
+				if (t.getFrame(fi) == f) {
+					if ( Math.abs(t.getX(fi) - x) < 2.5 && Math.abs(t.getY(fi) - y) < 2.5) {
 						found = true;
 					}
 				}
@@ -342,9 +339,9 @@ public class OctaneWindowControl implements ClipboardOwner{
 			Trajectory v = dataset_.getTrajectoryByIndex(i);
 			if ( v.marked ) {
 				// path.append(new Arc2D.Double(v.get(0).x-0.15,v.get(0).y,0.3,0.3,0,360,Arc2D.OPEN), false);
-				path.moveTo(v.get(0).x, v.get(0).y);
+				path.moveTo(v.getX(0), v.getY(0));
 				for (int j = 1; j < v.size(); j++) {
-					path.lineTo(v.get(j).x, v.get(j).y);
+					path.lineTo(v.getX(j), v.getY(j));
 				}
 				// path.append(new Rectangle2D.Double(v.get(v.size()-1).x-0.15,v.get(v.size()-1).y-0.15,0.3,0.3), false);
 			}
@@ -401,9 +398,11 @@ public class OctaneWindowControl implements ClipboardOwner{
 	 */
 	protected void constructPalm(boolean useStack) {
 		
-		if (PalmParameters.openDialog(dataset_, useStack)) {	
+		PalmParameters params = PalmParameters.openDialog(dataset_, useStack, compensateDrift_);
+
+		if (params != null) {	
 		
-			Palm palm = new Palm(dataset_);
+			Palm palm = new Palm(dataset_, params);
 			int [] selected = frame_.getTrajsTable().getSelectedTrajectoriesOrAll();
 			
 			// palm.setCorrectDrift(dlg.getNextBoolean());
@@ -446,8 +445,9 @@ public class OctaneWindowControl implements ClipboardOwner{
 	 * Rebuild trajectories.
 	 */
 	public void rebuildTrajectories(){
-		if (TrackingParameters.openDialog(dataset_.pixelSize_) == true) {
-			dataset_.reTrack();
+		TrackingParameters params = TrackingParameters.openDialog(dataset_.pixelSize_);
+		if (params != null) {
+			dataset_.reTrack(params);
 			frame_.getTrajsTable().setData(dataset_);
 		}
 	}
@@ -483,17 +483,16 @@ public class OctaneWindowControl implements ClipboardOwner{
 	 */
 	public void showResidueHistogram() {
 		int [] selected = frame_.getTrajsTable().getSelectedTrajectoriesOrAll();
-		//ArrayList<Double> d = new ArrayList<Double>();
+		LocalizationTable table = dataset_.getLocalizations();
 		int numOfNodes = 0;
 		for ( int i= 0; i < selected.length; i++) {
-			numOfNodes += dataset_.getTrajectoryByIndex(selected[i]).size();
+			numOfNodes += table.getTrajectoryEnd(selected[i]) - table.getTrajectoryStart(selected[i]);
 		}
 		double [] d = new double[numOfNodes];
 		int cnt = 0;
 		for ( int i= 0; i < selected.length; i++) {
-			Iterator<SmNode> itr = dataset_.getTrajectoryByIndex(selected[i]).iterator();
-			while (itr.hasNext()) {
-				d[cnt++] = itr.next().residue;
+			for (int k = table.getTrajectoryStart(selected[i]); k < table.getTrajectoryEnd(selected[i]); k++) {
+				d[cnt++] = table.getResidue(k);
 			}
 		}
 		FloatProcessor ip = new FloatProcessor(1, d.length, d);
@@ -515,12 +514,12 @@ public class OctaneWindowControl implements ClipboardOwner{
 			Trajectory t = dataset_.getTrajectoryByIndex(selected[i]);
 			for (int j = 0; j < t.size() - stepSize; j++) {
 				int k = j + 1;
-				int frame = t.get(j).frame;
+				int frame = t.getFrame(j);
 				while ( k < t.size()) {
-					if (t.get(k).frame - frame < stepSize) {
+					if (t.getFrame(k) - frame < stepSize) {
 						k++;
-					} else if (t.get(k).frame - frame == stepSize) {
-						dl.add(t.get(j).distance(t.get(k)));
+					} else if (t.getFrame(k) - frame == stepSize) {
+						dl.add(Math.sqrt(t.distance2(j, k)));
 						break;
 					} else {
 						break;
@@ -561,12 +560,12 @@ public class OctaneWindowControl implements ClipboardOwner{
 			Trajectory t = dataset_.getTrajectoryByIndex(selected[i]);
 			for (int j = 0; j < t.size() - stepSize; j++) {
 				int k = j + 1;
-				int frame = t.get(j).frame;
+				int frame = t.getFrame(j);
 				while ( k < t.size()) {
-					if (t.get(k).frame - frame < stepSize) {
+					if (t.getFrame(k) - frame < stepSize) {
 						k++;
-					} else if (t.get(k).frame - frame == stepSize) {
-						dl.add((t.get(j).x - t.get(k).x)*v[0] + (t.get(j).y-t.get(k).y)*v[1]);
+					} else if (t.getFrame(k) - frame == stepSize) {
+						dl.add((t.getX(j) - t.getX(k))*v[0] + (t.getY(j)-t.getY(k))*v[1]);
 						break;
 					} else {
 						break;
@@ -603,10 +602,10 @@ public class OctaneWindowControl implements ClipboardOwner{
 		
 			for (int j = 0; j < t.size()-1; j++) {
 			
-				int frame = t.get(j).frame;
+				int frame = t.getFrame(j);
 				for (int k = j + 1; k < t.size(); k++) {
 				
-					int deltaframe = t.get(k).frame - frame;
+					int deltaframe = t.getFrame(k) - frame;
 					if (deltaframe <= maxSteps) {
 					
 						while (deltaframe > stat.size()) {
@@ -614,7 +613,7 @@ public class OctaneWindowControl implements ClipboardOwner{
 							stat.add(new SummaryStatistics());
 						}
 						
-						stat.get(deltaframe - 1).addValue(t.get(j).distance2(t.get(k)));
+						stat.get(deltaframe - 1).addValue(t.distance2(j, k));
 					
 					}
 				}
@@ -664,13 +663,13 @@ public class OctaneWindowControl implements ClipboardOwner{
 		for (int i = 0; i < selected.length; i ++) {
 			
 			Trajectory t = dataset_.getTrajectoryByIndex(selected[i]);
-			int firstFrame = t.get(0).frame;
+			int firstFrame = t.getFrame(0);
 			
 			for (int j = 0; j < t.size() - 1; j++) {
 			
-				int frame = t.get(j).frame;
-				if (frame - firstFrame < maxSteps && t.get(j+1).frame - frame == 1) {
-					stat.get(frame - firstFrame).addValue(t.get(j+1).distance2(t.get(j)));
+				int frame = t.getFrame(j);
+				if (frame - firstFrame < maxSteps && t.getFrame(j+1) - frame == 1) {
+					stat.get(frame - firstFrame).addValue(t.distance2(j+1, j));
 				}
 			}
 			IJ.showProgress(i, selected.length);
@@ -834,25 +833,9 @@ public class OctaneWindowControl implements ClipboardOwner{
 	 */
 	public void exportTrajectories(File file) throws IOException {
 		
-		BufferedWriter bw = new BufferedWriter(new FileWriter(file));
 		int [] selected = frame_.getTrajsTable().getSelectedTrajectories();
-		Trajectory traj;
-		bw.append("# Frame, X, Y, Z, Intensity, TrackIDX\n");
-		
-		for (int i = 0; i < selected.length; i++) {
-			
-			traj = dataset_.getTrajectoryByIndex(selected[i]);
-			
-			for (int j = 0; j < traj.size(); j++) {
-			
-				SmNode n = traj.get(j);
-				bw.append(n.toString());
-				bw.append(", " + i + "\n");
-		
-			}
-		}
+		new TextExporter(dataset_.getLocalizations(), GlobalPrefs.nThread_).writeTrajectories(file, selected, "# Frame, X, Y, Z, Intensity, TrackIDX\n");
 
-		bw.close();
 	}
 
 	/**
@@ -48,6 +48,7 @@ public class Palm {
 	private boolean correctDrift_;
 
 	private TrajDataset dataset_;
+	final private PalmParameters params_;
 	private ImagePlus imp_;
 
 	private Rectangle rect_;
@@ -73,9 +74,11 @@ public class Palm {
 	/**
 	 * Constructor
 	 * @param dataset The dataset
+	 * @param params The rendering parameters
 	 */
-	public Palm (TrajDataset dataset) {
+	public Palm (TrajDataset dataset, PalmParameters params) {
 		dataset_ = dataset;
+		params_ = params;
 		lut_ = new int[256];
 		for (int i = 0; i < 256; i++) {
 			lut_[i] = Color.getHSBColor(i/255f, 1f, 1f).getRGB();
@@ -207,7 +210,7 @@ public class Palm {
 
 	private void renderGaussianSpot(SmNode node) {
 		
-		if (OctaneWindowControl.compensateDrift_) {
+		if (correctDrift_) {
 		
 			node = getCorrectedNode(node);
 		
@@ -223,7 +226,7 @@ public class Palm {
 		
 		int r = 0, g = 0, b = 0;
 
-		if (OctaneWindowControl.compensateDrift_) {
+		if (correctDrift_) {
 		
 			node = getCorrectedNode(node);
 			
@@ -266,33 +269,29 @@ public class Palm {
 			return;
 		}
 
-		SmNode node;
-
-		node = traj.get(0);
-		
-		if (OctaneWindowControl.compensateDrift_) {
-
-			node = getCorrectedNode(node);
-		
-		}
-
-		double xx= node.x;
-		double yy= node.y;
-		double zz = node.z;
-		double xx2 = xx*xx;
-		double yy2 = yy*yy;
-		double zz2 = zz*zz;
+		double xx = 0, yy = 0, zz = 0;
+		double xx2 = 0, yy2 = 0, zz2 = 0;
 
-		for (int j = 1; j < traj.size(); j++ ) {
+		// every node is drift corrected if drift compensation is on, none otherwise
+		for (int j = 0; j < traj.size(); j++ ) {
 
-			node = traj.get(j);
-			node = getCorrectedNode(node);
-			xx += node.x;
-			yy += node.y;
-			zz += node.z;
-			xx2 += node.x * node.x;
-			yy2 += node.y * node.y;
-			zz2 += node.z * node.z;
+			double x, y, z;
+			if (correctDrift_) {
+				SmNode node = getCorrectedNode(traj.get(j));
+				x = node.x;
+				y = node.y;
+				z = node.z;
+			} else {
+				x = traj.getX(j);
+				y = traj.getY(j);
+				z = traj.getZ(j);
+			}
+			xx += x;
+			yy += y;
+			zz += z;
+			xx2 += x * x;
+			yy2 += y * y;
+			zz2 += z * z;
 
 		}
 
@@ -319,15 +318,22 @@ public class Palm {
 		}
 	}
 
-	private void renderAllPoints(Trajectory traj) {
+	private void renderAllPoints(int index) {
 
-		if (traj == null ) {
-			return;
-		}
+		LocalizationTable table = dataset_.getLocalizations();
 
-		for (int j = 0; j < traj.size(); j++ ) {
+		for (int k = table.getTrajectoryStart(index); k < table.getTrajectoryEnd(index); k++ ) {
 		
-			renderGaussianSpot(traj.get(j));
+			if (correctDrift_) {
+
+				renderGaussianSpot(table.getNode(k));
+
+			} else {
+
+				double xs = (table.getX(k) - rect_.x) * palmScaleFactor_;
+				double ys = (table.getY(k) - rect_.y) * palmScaleFactor_;
+				renderGaussianSpot(xs, ys, table.getZ(k));
+			}
 			nPlotted_ ++;
 		
 		}
@@ -391,36 +397,70 @@ public class Palm {
 	 */
 	public void constructPalm(final ImagePlus imp, final int [] selected) {
 		
+		imp_ = imp;
+
+		setup(getCurrentROI(imp), imp.getStackSize());
+
+		doConstructPALM(params_.getPalmType(), selected);
+
+	}
+
+	/**
+	 * Construct PALM image / image stack in the calling thread, without an image window.
+	 * @param rect The region of the original image to be rendered
+	 * @param nFrames Number of frames of the original image
+	 * @param title Title of the original image
+	 * @param selected Trajectories to be included in the PALM plot
+	 * @return The PALM image
+	 */
+	public ImagePlus constructPalm(Rectangle rect, int nFrames, String title, int [] selected) {
+
+		setup(rect, nFrames);
+
+		PalmType palmType = params_.getPalmType();
+
+		for (int i = 0; i < selected.length; i ++) {
+			renderTrajectory(palmType, selected[i]);
+		}
+
+		return createImage("PALM-" + title);
+	}
+
+	/**
+	 * Set up rendering parameters and buffers
+	 * @param rect The region of the original image to be rendered
+	 * @param nFrames Number of frames of the original image
+	 */
+	private void setup(Rectangle rect, int nFrames) {
+
 		nPlotted_ = 0;
 		nSkipped_ = 0;
 
-		final PalmType palmType = PalmParameters.getPalmType();
+		final PalmType palmType = params_.getPalmType();
 
-		correctDrift_ = OctaneWindowControl.compensateDrift_;
+		correctDrift_ = params_.isCorrectDrift();
 
-		imp_ = imp;
-		
-		palmScaleFactor_ = PalmParameters.pixelSize_ / PalmParameters.palmPixelSize_;
-		rect_ = getCurrentROI(imp);
+		palmScaleFactor_ = params_.pixelSize_ / params_.palmPixelSize_;
+		rect_ = rect;
 		width_ = (int) (rect_.width * palmScaleFactor_);
 		height_ = (int) (rect_.height * palmScaleFactor_);
-		sigma_ = PalmParameters.palmResolution_ / PalmParameters.palmPixelSize_ / 2.355;
-		sigmaZ_ = PalmParameters.zResolution_ / PalmParameters.palmPixelSize_ / 2.355; 
+		sigma_ = params_.palmResolution_ / params_.palmPixelSize_ / 2.355;
+		sigmaZ_ = params_.zResolution_ / params_.palmPixelSize_ / 2.355; 
 
-		bRenderInColor_ = PalmParameters.isRenderInColor(); 
-		bRenderStack_ = PalmParameters.isRenderStack();
+		bRenderInColor_ = params_.isRenderInColor(); 
+		bRenderStack_ = params_.isRenderStack();
 
-		zMin_ = PalmParameters.lutMin_ / PalmParameters.pixelSize_;
-		zMax_ = PalmParameters.lutMax_ / PalmParameters.pixelSize_;
+		zMin_ = params_.lutMin_ / params_.pixelSize_;
+		zMax_ = params_.lutMax_ / params_.pixelSize_;
 
 		if (bRenderStack_) {
-			zBottom_ = PalmParameters.palmZMin_ / PalmParameters.pixelSize_ ;
-			zTop_ = PalmParameters.palZMax_/ PalmParameters.pixelSize_  ;
+			zBottom_ = params_.palmZMin_ / params_.pixelSize_ ;
+			zTop_ = params_.palmZMax_/ params_.pixelSize_  ;
 			nSlices_ = (int) ((zTop_ - zBottom_) * palmScaleFactor_);
 
 		} else if (palmType == PalmType.TIMELAPSE) {
 
-			nSlices_ = imp.getStackSize();
+			nSlices_ = nFrames;
 
 		} else {
 
@@ -437,9 +477,58 @@ public class Palm {
 			ips_[i]= new FloatProcessor(width_, height_);
 
 		}
+	}
+
+	/**
+	 * Render one trajectory
+	 * @param type The type of PALM image
+	 * @param index Index of the trajectory
+	 */
+	private void renderTrajectory(PalmType type, int index) {
 
-		doConstructPALM(palmType, selected);
+		Trajectory traj = dataset_.getTrajectoryByIndex(index);
 
+		switch (type) {
+		case HEAD:
+			renderGaussianSpot(traj.get(0));
+			nPlotted_ ++;
+			break;
+		case TAIL:
+			renderGaussianSpot(traj.get(traj.size()-1));
+			nPlotted_ ++;
+			break;
+		case AVERAGE:
+			renderAverage(traj);
+			break;
+		case ALLPOINTS:
+			renderAllPoints(index);
+			break;
+		case TIMELAPSE:
+			renderMovie(traj);
+			break;
+		}
+	}
+
+	/**
+	 * Assemble the rendered buffers into an image
+	 * @param title The image title
+	 * @return The PALM image
+	 */
+	private ImagePlus createImage(String title) {
+
+		if (bRenderInColor_) {
+			processColor();
+		} else {
+			for (int i = 0 ; i < ips_.length; i++) {
+				stack_.addSlice("" + i, ips_[i]);
+			}
+		}
+
+		if (stack_.getSize() > 1) {
+			return new ImagePlus(title, stack_);
+		} else {
+			return new ImagePlus(title, stack_.getProcessor(1));
+		}
 	}
 
 	/**
@@ -453,49 +542,14 @@ public class Palm {
 
 			@Override
 			public ImagePlus doInBackground() {
-				ImagePlus imp = null;
 
 				for ( int i = 0; i < selected.length; i ++) {					
-					Trajectory traj = dataset_.getTrajectoryByIndex(selected[i]);
-
-					switch (type) {
-					case HEAD:
-						renderGaussianSpot(traj.get(0));
-						nPlotted_ ++;
-						break;
-					case TAIL:
-						renderGaussianSpot(traj.get(traj.size()-1));
-						nPlotted_ ++;
-						break;
-					case AVERAGE:
-						renderAverage(traj);
-						break;
-					case ALLPOINTS:
-						renderAllPoints(traj);
-						break;
-					case TIMELAPSE:
-						renderMovie(traj);
-						break;
-					}
+					renderTrajectory(type, selected[i]);
 
 					firePropertyChange("Progress", (double)i / selected.length, (double)(i + 1)/selected.length);
 				}
 
-				if (bRenderInColor_) {
-					processColor();
-				} else {
-					for (int i = 0 ; i < ips_.length; i++) {
-						stack_.addSlice("" + i, ips_[i]);
-					}
-				}
-
-				if (stack_.getSize() > 1) {
-					imp = new ImagePlus("PALM-" + imp_.getTitle(), stack_);
-				} else {
-					imp = new ImagePlus("PALM-" + imp_.getTitle(), stack_.getProcessor(1));
-				}
-				
-				return imp;
+				return createImage("PALM-" + imp_.getTitle());
 
 			}
 			
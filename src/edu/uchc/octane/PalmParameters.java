@@ -21,7 +21,8 @@ import ij.gui.GenericDialog;
 import java.util.prefs.Preferences;
 
 /**
- * Parameters for PALM plot
+ * Parameters for PALM plot. The object is immutable; the dialog produces new parameter objects and
+ * remembers the last values in the preferences.
  * @author Ji-Yu
  *
  */
@@ -37,22 +38,8 @@ public class PalmParameters {
 	final private static String Z_TOP_KEY = "ZTop";
 	final private static String Z_RESOLUTION_KEY = "ZResolution";
 	
-	private static boolean bRenderStack_;
-	
 	private static Preferences prefs_ = GlobalPrefs.getRoot().node(PalmParameters.class.getName());
 	
-	private static int palmType_ = prefs_.getInt(PALM_TYPE_KEY, 0);
-	private static boolean bRenderInColor_ = prefs_.getBoolean(RENDER_IN_COLOR_KEY, false);
-	
-	static double pixelSize_ = 0;
-	static double palmPixelSize_ = prefs_.getDouble(PALM_PIXEL_SIZE_KEY, 16);
-	static double palmResolution_ = prefs_.getDouble(PALM_RESOLUTION_KEY, 30);
-	static double lutMax_ = prefs_.getDouble(LUT_MAX_KEY, 3.0);
-	static double lutMin_ = prefs_.getDouble(LUT_MIN_KEY, 0);
-	static double palmZMin_ = prefs_.getDouble(Z_BOTTOM_KEY, 0);
-	static double palZMax_ = prefs_.getDouble(Z_TOP_KEY, 3);
-	static double zResolution_ = prefs_.getDouble(Z_RESOLUTION_KEY, 100);
-	
 	private static Palm.PalmType [] typeList_ = {
 			
 		Palm.PalmType.AVERAGE,
@@ -62,23 +49,73 @@ public class PalmParameters {
 		Palm.PalmType.TIMELAPSE
 	
 	};
+
+	final private Palm.PalmType palmType_;
+	final private boolean bRenderStack_;
+	final private boolean bRenderInColor_;
+	final private boolean bCorrectDrift_;
 	
+	final double pixelSize_;
+	final double palmPixelSize_;
+	final double palmResolution_;
+	final double lutMin_;
+	final double lutMax_;
+	final double palmZMin_;
+	final double palmZMax_;
+	final double zResolution_;
+
+	/**
+	 * Constructor
+	 * @param type The PALM type 
+	 * @param pixelSize Image pixel size (nm)
+	 * @param palmPixelSize PALM pixel size (nm)
+	 * @param palmResolution PALM resolution (nm)
+	 * @param renderInColor Whether to render Z coordinates in pseudo-color
+	 * @param lutMin Min Z value of the color map (nm)
+	 * @param lutMax Max Z value of the color map (nm)
+	 * @param renderStack Whether to render a 3D PALM stack
+	 * @param palmZMin Min Z coordinate of the stack (nm)
+	 * @param palmZMax Max Z coordinate of the stack (nm)
+	 * @param zResolution Z resolution of the stack (nm)
+	 * @param correctDrift Whether to compensate drift
+	 */
+	public PalmParameters(Palm.PalmType type, double pixelSize, double palmPixelSize, double palmResolution,
+			boolean renderInColor, double lutMin, double lutMax,
+			boolean renderStack, double palmZMin, double palmZMax, double zResolution, boolean correctDrift) {
+
+		palmType_ = type;
+		pixelSize_ = pixelSize;
+		palmPixelSize_ = palmPixelSize;
+		palmResolution_ = palmResolution;
+		bRenderInColor_ = renderInColor && lutMin < lutMax;
+		lutMin_ = lutMin;
+		lutMax_ = lutMax;
+		bRenderStack_ = renderStack;
+		palmZMin_ = palmZMin;
+		palmZMax_ = palmZMax;
+		zResolution_ = zResolution;
+		bCorrectDrift_ = correctDrift;
+	}
+
 	/**
 	 * Opens a dialog to input parameters 
 	 * @param data Trajectory dataset
 	 * @param b Whether this is to generate a 3D PALM stack
-	 * @return True if user pressed OK
+	 * @param correctDrift Whether to compensate drift
+	 * @return The new parameters, or null if the dialog was cancelled
 	 */
-	static public boolean openDialog(TrajDataset data, boolean b) {
+	static public PalmParameters openDialog(TrajDataset data, boolean b, boolean correctDrift) {
 	
-		if (prefs_ == null) {
-		
-			prefs_ = GlobalPrefs.getRoot().node(PalmParameters.class.getName());
-		
-		}
+		int palmType = prefs_.getInt(PALM_TYPE_KEY, 0);
+		boolean bRenderInColor = prefs_.getBoolean(RENDER_IN_COLOR_KEY, false);
+		double palmPixelSize = prefs_.getDouble(PALM_PIXEL_SIZE_KEY, 16);
+		double palmResolution = prefs_.getDouble(PALM_RESOLUTION_KEY, 30);
+		double lutMax = prefs_.getDouble(LUT_MAX_KEY, 3.0);
+		double lutMin = prefs_.getDouble(LUT_MIN_KEY, 0);
+		double palmZMin = prefs_.getDouble(Z_BOTTOM_KEY, 0);
+		double palmZMax = prefs_.getDouble(Z_TOP_KEY, 3);
+		double zResolution = prefs_.getDouble(Z_RESOLUTION_KEY, 100);
 
-		bRenderStack_ = b;
-		
 		GenericDialog dlg = b ? new GenericDialog("Construct PALM Stack") : new GenericDialog("Construct PALM");
 		
 		String[] strPalmTypes = { "Average", "Head", "Tail", "All Points", "Movie"};
@@ -86,78 +123,75 @@ public class PalmParameters {
 		
 		if (b) {
 
-			if (palmType_ >= strPalmTypes2.length) {
-				palmType_ = 0;
+			if (palmType >= strPalmTypes2.length) {
+				palmType = 0;
 			}
 			
-			dlg.addChoice("PALM Type", strPalmTypes2, strPalmTypes[palmType_]);
+			dlg.addChoice("PALM Type", strPalmTypes2, strPalmTypes[palmType]);
 		
 		} else {
 		
-			dlg.addChoice("PALM Type", strPalmTypes, strPalmTypes[palmType_]);
+			dlg.addChoice("PALM Type", strPalmTypes, strPalmTypes[palmType]);
 		}
 		
 		dlg.addMessage("- Size Parameters -");
 		
 		dlg.addNumericField("Image Pixel Size (nm)", data.getPixelSize(), 1);
-		dlg.addNumericField("PALM Pixel Size (nm)", palmPixelSize_, 1);
-		dlg.addNumericField("PALM Resolution (nm)", palmResolution_, 1);
+		dlg.addNumericField("PALM Pixel Size (nm)", palmPixelSize, 1);
+		dlg.addNumericField("PALM Resolution (nm)", palmResolution, 1);
 		
 		dlg.addMessage("- Color Parameters -");
 		
-		dlg.addCheckbox("Render Z coordinates in pseudo-color", bRenderInColor_);
-		dlg.addNumericField("Min Z value (nm)", lutMin_, 1);
-		dlg.addNumericField("Max Z value (nm)", lutMax_, 1);
+		dlg.addCheckbox("Render Z coordinates in pseudo-color", bRenderInColor);
+		dlg.addNumericField("Min Z value (nm)", lutMin, 1);
+		dlg.addNumericField("Max Z value (nm)", lutMax, 1);
 
 		if (b) {
 		
 			dlg.addMessage("- Stack Parameters -");
-			dlg.addNumericField("Min Z coordinates (nm)", palmZMin_, 1);
-			dlg.addNumericField("Max Z coordinates (nm)", palZMax_, 1);
-			dlg.addNumericField("Z resolution (nm)", zResolution_, 1);
+			dlg.addNumericField("Min Z coordinates (nm)", palmZMin, 1);
+			dlg.addNumericField("Max Z coordinates (nm)", palmZMax, 1);
+			dlg.addNumericField("Z resolution (nm)", zResolution, 1);
 		
 		}
 		
 		dlg.showDialog();
 		if (dlg.wasCanceled()) {
 
-			return false;
+			return null;
 		}
 
-		palmType_ = dlg.getNextChoiceIndex();
-		pixelSize_ = dlg.getNextNumber(); 
-		palmPixelSize_ = dlg.getNextNumber();
-		palmResolution_ = dlg.getNextNumber();
-		bRenderInColor_ = dlg.getNextBoolean();
-		lutMin_ = dlg.getNextNumber();
-		lutMax_ = dlg.getNextNumber();
-		
-		if (lutMin_ >= lutMax_) {
-		
-			bRenderInColor_ = false;
-		
-		}
+		palmType = dlg.getNextChoiceIndex();
+		double pixelSize = dlg.getNextNumber(); 
+		palmPixelSize = dlg.getNextNumber();
+		palmResolution = dlg.getNextNumber();
+		bRenderInColor = dlg.getNextBoolean();
+		lutMin = dlg.getNextNumber();
+		lutMax = dlg.getNextNumber();
 		
 		if (b) {
 		
-			palmZMin_ = dlg.getNextNumber();
-			palZMax_ = dlg.getNextNumber();
-			zResolution_ = dlg.getNextNumber();
+			palmZMin = dlg.getNextNumber();
+			palmZMax = dlg.getNextNumber();
+			zResolution = dlg.getNextNumber();
 		
 		}
 
-		prefs_.putInt(PALM_TYPE_KEY, palmType_);
+		PalmParameters params = new PalmParameters(typeList_[palmType], pixelSize, palmPixelSize, palmResolution,
+				bRenderInColor, lutMin, lutMax, b, palmZMin, palmZMax, zResolution, correctDrift);
 
-		prefs_.putBoolean(RENDER_IN_COLOR_KEY, bRenderInColor_);
-		prefs_.putDouble(PALM_PIXEL_SIZE_KEY, palmPixelSize_);
-		prefs_.putDouble(PALM_RESOLUTION_KEY, palmResolution_);
-		prefs_.putDouble(LUT_MIN_KEY, lutMin_);
-		prefs_.putDouble(LUT_MAX_KEY, lutMax_);
-		prefs_.putDouble(Z_BOTTOM_KEY, palmZMin_);
-		prefs_.putDouble(Z_TOP_KEY, palZMax_);
-		prefs_.putDouble(Z_RESOLUTION_KEY, zResolution_);
+		prefs_.putInt(PALM_TYPE_KEY, palmType);
+
+		prefs_.putBoolean(RENDER_IN_COLOR_KEY, params.bRenderInColor_);
+		prefs_.putDouble(PALM_PIXEL_SIZE_KEY, palmPixelSize);
+		prefs_.putDouble(PALM_RESOLUTION_KEY, palmResolution);
+		prefs_.putDouble(LUT_MIN_KEY, lutMin);
+		prefs_.putDouble(LUT_MAX_KEY, lutMax);
+		prefs_.putDouble(Z_BOTTOM_KEY, palmZMin);
+		prefs_.putDouble(Z_TOP_KEY, palmZMax);
+		prefs_.putDouble(Z_RESOLUTION_KEY, zResolution);
 		
-		return true;
+		return params;
 		
 	}
 	
@@ -165,15 +199,15 @@ public class PalmParameters {
 	 * Get Palm type
 	 * @return Palm Type specified by user
 	 */
-	static Palm.PalmType getPalmType() {
-		return typeList_[palmType_];
+	public Palm.PalmType getPalmType() {
+		return palmType_;
 	}
 	
 	/**
 	 * Get whether to render in color
 	 * @return Whether to render in color
 	 */
-	static boolean isRenderInColor() {
+	public boolean isRenderInColor() {
 		return bRenderInColor_;
 	}
 
@@ -181,8 +215,16 @@ public class PalmParameters {
 	 * Get whether to render 3d PALM stack
 	 * @return Whether to render 3d PALM stack
 	 */
-	static boolean isRenderStack() {
+	public boolean isRenderStack() {
 		return bRenderStack_;
 	}
 
+	/**
+	 * Get whether to compensate drift
+	 * @return Whether to compensate drift
+	 */
+	public boolean isCorrectDrift() {
+		return bCorrectDrift_;
+	}
+
 }
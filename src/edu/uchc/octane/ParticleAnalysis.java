@@ -19,9 +19,8 @@
 package edu.uchc.octane;
 
 import java.awt.Rectangle;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.commons.math3.exception.MathIllegalStateException;
 
@@ -31,6 +30,8 @@ import ij.process.ImageProcessor;
 /**
  * A particle analysis module that uses watershed algrithm to detect particles and then use Gaussian
  * fitting to determine centroids.
+ * An instance keeps its working buffers between calls of process(), so a worker thread should reuse one
+ * instance for all the frames it analyzes. Instances are not thread-safe.
  * @author Ji-Yu
  *
  */
@@ -48,23 +49,7 @@ public class ParticleAnalysis{
 	private double heightMax_ = Double.MAX_VALUE;
 	
 	GaussianFitBase g_ = null;
-	
-	class Pixel implements Comparable<Pixel> {
-		
-		public int value;
-		public int x;
-		public int y;
-
-		Pixel(int x, int y, int value) {
-			this.x = x;
-			this.y = y;
-			this.value = value;
-		}
-		
-		public int compareTo(Pixel o) {
-			return - value + o.value;  // this is reverse order
-		}
-	}
+	private ForkJoinPool batchPool_ = null;
 	
 	private int width_;
 	private int height_;
@@ -72,39 +57,72 @@ public class ParticleAnalysis{
 	private final static int PROCESSED = 1;
 	private final static int FLOODED = 2;
 
+	// working buffers, reused between frames
+	private FloodState floodState_ = new FloodState();
+	private int [] listOfIndexes_ = new int[0];
+	private int [] pixels_ = new int[0];
+	private int [] values_ = new int[0];
+	private int [] pixelsTmp_ = new int[0];
+	private int [] valuesTmp_ = new int[0];
+	private int [] counts_ = new int[0x10001];
+	private int [] maximaX_ = new int[0];
+	private int [] maximaY_ = new int[0];
+	private int [] maximaV_ = new int[0];
+	private int nMaxima_ = 0;
+	private int noise_;
+
+	/**
+	 * Watershed labels of the current frame.
+	 * Each label carries a generation stamp in its upper bits. A label with a stale stamp is treated as 
+	 * cleared, so starting a new frame does not require refilling the whole array.  
+	 */
 	class FloodState {
-		int [] labels_;
-		
-		public FloodState(int w, int h) {
-			labels_ = new int[w * h];
+		int [] labels_ = new int[0];
+		int stamp_ = 0;
+
+		public void reset(int w, int h) {
+			if (labels_.length < w * h) {
+				labels_ = new int[w * h];
+				stamp_ = 0;
+			}
+			stamp_ += 4;
+			if (stamp_ == 0) { // wrapped around, all old stamps become ambiguous
+				Arrays.fill(labels_, 0);
+				stamp_ = 4;
+			}
 		}
-		
+
+		private int state(int index) {
+			int l = labels_[index];
+			return ((l & ~3) == stamp_) ? (l & 3) : 0;
+		}
+
 		public boolean isProcessed(int index) {
-			return ( ( labels_[index] & PROCESSED ) != 0);
+			return ( ( state(index) & PROCESSED ) != 0);
 		}
 		
 		public boolean isFlooded(int index) {
-			return ( ( labels_[index] & FLOODED) != 0);
+			return ( ( state(index) & FLOODED) != 0);
 		}
 
 		public void process(int index) {
-			labels_[index] |= PROCESSED;
+			labels_[index] = stamp_ | state(index) | PROCESSED;
 		}
 		
 		public void flood(int index) {
-			labels_[index] |= FLOODED;
+			labels_[index] = stamp_ | state(index) | FLOODED;
 		}
 		
 		public void floodBorders(Rectangle rect) {
 			int index1 = (rect.y - 1) * width_ + rect.x - 1;
-			Arrays.fill(labels_, index1, index1 + rect.width + 2, FLOODED);
+			Arrays.fill(labels_, index1, index1 + rect.width + 2, stamp_ | FLOODED);
 			for (int i = 0; i < rect.height; i ++ ) {
 				index1 += width_;
-				labels_[index1] = FLOODED;
-				labels_[index1 + rect.width + 1] = FLOODED;
+				labels_[index1] = stamp_ | FLOODED;
+				labels_[index1 + rect.width + 1] = stamp_ | FLOODED;
 			}
 			index1 += width_;
-			Arrays.fill(labels_, index1, index1 + rect.width + 2, FLOODED);
+			Arrays.fill(labels_, index1, index1 + rect.width + 2, stamp_ | FLOODED);
 		}
 	}
 	
@@ -130,6 +148,15 @@ public class ParticleAnalysis{
 		return g_;
 	}
 
+	/**
+	 * Fit the local maxima of a frame together with GaussianFitBase.fitBatch(), which fits spots with 
+	 * non-overlapping fitting windows concurrently. The results are the same as fitting the maxima one by one.
+	 * @param pool The threads to fit with, or null to fit the maxima one by one
+	 */
+	public void setBatchFitting(ForkJoinPool pool) {
+		batchPool_ = pool;
+	}
+
 	/**
 	 * Analyze the image
 	 * @param ip The image to be analyzed
@@ -139,6 +166,22 @@ public class ParticleAnalysis{
 	 * @throws InterruptedException
 	 */
 	public void process(ImageProcessor ip, Rectangle mask, int threshold, int noise) throws InterruptedException {
+		detect(ip, mask, threshold, noise);
+		fitMaxima();
+	}
+
+	/**
+	 * Find the local maxima of the image by the watershed algorithm. 
+	 * The candidates are kept in the module until fitMaxima() is called. Detection only reads the 
+	 * ImageProcessor, so it is not affected by the deflation done during fitting.  
+	 * @param ip The image to be analyzed
+	 * @param mask A rectangle of region of interest
+	 * @param threshold Lowest intensity to be analyzed
+	 * @param noise The noise threshold of the watershed algorithm
+	 * @return Number of local maxima found
+	 * @throws InterruptedException
+	 */
+	public int detect(ImageProcessor ip, Rectangle mask, int threshold, int noise) throws InterruptedException {
 		
 		int border = 1;
 		
@@ -151,6 +194,7 @@ public class ParticleAnalysis{
 
 		width_ = ip.getWidth();
 		height_ = ip.getHeight();
+		noise_ = noise;
 		
 		int [] offsets = {-width_, -width_ + 1, +1, +width_ + 1, +width_, +width_ - 1, -1, -width_ - 1};
 	
@@ -158,44 +202,61 @@ public class ParticleAnalysis{
 		Rectangle bbox = new Rectangle(border, border, width_ - 2 * border, height_ - 2 * border);
 		bbox = bbox.intersection(mask);
 
-		ArrayList<Pixel> pixels = new ArrayList<Pixel>();
+		int nPixels = 0;
+		int nCandidates = Math.max(0, bbox.width) * Math.max(0, bbox.height);
+		if (pixels_.length < nCandidates) {
+			pixels_ = new int[nCandidates];
+			values_ = new int[nCandidates];
+			pixelsTmp_ = new int[nCandidates];
+			valuesTmp_ = new int[nCandidates];
+		}
+		int [] pixels = pixels_;
+		int [] values = values_;
 
 		for (int y = bbox.y; y < bbox.y + bbox.height; y++) {
 			for (int x = bbox.x; x < bbox.x + bbox.width; x++) {
 				int v = ip.get(x, y);
 				if (v > threshold) {
-					pixels.add(new Pixel(x,y,v));
+					pixels[nPixels] = x + width_ * y;
+					values[nPixels] = v;
+					nPixels ++;
 				}
 			}
 		}
-		Collections.sort(pixels);
+		sortPixels(pixels, values, nPixels, pixelsTmp_, valuesTmp_, counts_);
 
-		nParticles_ = 0;
-		x_ = new double[pixels.size()];
-		y_ = new double[pixels.size()];
-		z_ = new double[pixels.size()];
-		h_ = new double[pixels.size()];
-		e_ = new double[pixels.size()];
-		 
-		FloodState floodState = new FloodState(width_, height_);
+		FloodState floodState = floodState_;
+		floodState.reset(width_, height_);
 		floodState.floodBorders(bbox);
 		
 		int idxList, lenList;
-		int [] listOfIndexes = new int[width_ * height_];
+		if (listOfIndexes_.length < width_ * height_) {
+			listOfIndexes_ = new int[width_ * height_];
+		}
+		int [] listOfIndexes = listOfIndexes_;
+		
+		nMaxima_ = 0;
+		if (maximaX_.length < nPixels) {
+			maximaX_ = new int[nPixels];
+			maximaY_ = new int[nPixels];
+			maximaV_ = new int[nPixels];
+		}
  
-		for (Pixel p : pixels) {
+		for (int k = 0; k < nPixels; k++) {
 			
 			if (Thread.interrupted()) {
 				throw( new InterruptedException() );
 			}
 
-			int index = p.x + width_ * p.y;
+			int index = pixels[k];
 			
 			if ( floodState.isProcessed(index) ){
 				continue;
 			}
 
-			int v = p.value;
+			int v = values[k];
+			int px = index % width_;
+			int py = index / width_;
 			boolean isMax = true;
 
 			idxList = 0;
@@ -231,53 +292,178 @@ public class ParticleAnalysis{
 			} 
 
 			if (isMax) {
-				
-				if (g_ != null ) {
-
-					g_.setInitialCoordinates(p.x, p.y);
-					
-					try {
-						
-						double [] result = g_.fit();
-						
-						if (result == null) {
-							continue;
-						}
-						
-						double h = g_.getH();
-						if (h < noise || h < getHeightMin() || h > getHeightMax()) {
-							continue;
-						}
-						
-						double e = g_.getE();
-						if (e < getFittingQualityMin()) {
-							continue;
-						}
-						
-						x_[nParticles_] = g_.getX();
-						y_[nParticles_] = g_.getY();
-						z_[nParticles_] = g_.getZ();
-						h_[nParticles_] = h;
-						e_[nParticles_] = e;
-						nParticles_++;
-					} catch (MathIllegalStateException e) {
-						//failed fitting
+				maximaX_[nMaxima_] = px;
+				maximaY_[nMaxima_] = py;
+				maximaV_[nMaxima_] = v;
+				nMaxima_ ++;
+			}
+		}
+		
+		return nMaxima_;
+	}
+
+	/**
+	 * Fit the local maxima found by the last call to detect(), in the order they were found.
+	 * Without a Gaussian fitting module, the maxima are reported at pixel resolution.
+	 * The fitting module should hold the image data of the same frame.
+	 * @throws InterruptedException
+	 */
+	public void fitMaxima() throws InterruptedException {
+
+		int noise = noise_;
+
+		nParticles_ = 0;
+		if (x_ == null || x_.length < nMaxima_) {
+			x_ = new double[nMaxima_];
+			y_ = new double[nMaxima_];
+			z_ = new double[nMaxima_];
+			h_ = new double[nMaxima_];
+			e_ = new double[nMaxima_];
+		}
+
+		if (g_ != null && batchPool_ != null) {
+			if (Thread.interrupted()) {
+				throw( new InterruptedException() );
+			}
+			GaussianFitBase.BatchResults results = g_.fitBatch(maximaX_, maximaY_, nMaxima_, batchPool_);
+			for (int i = 0; i < nMaxima_; i++) {
+				if (! results.valid[i]) {
+					continue;
+				}
+				double h = results.h[i];
+				if (h < noise || h < getHeightMin() || h > getHeightMax()) {
+					continue;
+				}
+				if (results.e[i] < getFittingQualityMin()) {
+					continue;
+				}
+				x_[nParticles_] = results.x[i];
+				y_[nParticles_] = results.y[i];
+				z_[nParticles_] = results.z[i];
+				h_[nParticles_] = h;
+				e_[nParticles_] = results.e[i];
+				nParticles_++;
+			}
+			return;
+		}
+
+		for (int i = 0; i < nMaxima_; i++) {
+
+			int px = maximaX_[i];
+			int py = maximaY_[i];
+
+			if (g_ != null ) {
+
+				if (Thread.interrupted()) {
+					throw( new InterruptedException() );
+				}
+
+				g_.setInitialCoordinates(px, py);
+
+				try {
+
+					double [] result = g_.fit();
+
+					if (result == null) {
 						continue;
 					}
-				} else {
 
-					x_[nParticles_] = (double) p.x;
-					y_[nParticles_] = (double) p.y;
-					h_[nParticles_] = (double) p.value;
-					nParticles_++;
+					double h = g_.getH();
+					if (h < noise || h < getHeightMin() || h > getHeightMax()) {
+						continue;
+					}
+
+					double e = g_.getE();
+					if (e < getFittingQualityMin()) {
+						continue;
+					}
 
+					x_[nParticles_] = g_.getX();
+					y_[nParticles_] = g_.getY();
+					z_[nParticles_] = g_.getZ();
+					h_[nParticles_] = h;
+					e_[nParticles_] = e;
+					nParticles_++;
+				} catch (MathIllegalStateException e) {
+					//failed fitting
+					continue;
 				}
+			} else {
+
+				x_[nParticles_] = (double) px;
+				y_[nParticles_] = (double) py;
+				z_[nParticles_] = 0;
+				h_[nParticles_] = (double) maximaV_[i];
+				e_[nParticles_] = 0;
+				nParticles_++;
+
 			}
 		}
 	}
 	
+	/**
+	 * Sort pixel indexes by intensity in descending order.
+	 * A stable LSD radix sort (16-bit digits) is used, so pixels of equal intensity keep their raster 
+	 * order. This is the same flooding order as a stable sort of boxed pixels, but without creating
+	 * an object for every pixel.
+	 * @param pixels Packed pixel indexes (x + width * y). Sorted in place.
+	 * @param values Pixel intensities. Sorted in place along with the indexes.
+	 * @param n Number of valid entries in the arrays
+	 * @param pixels2 Scratch buffer, at least n long
+	 * @param values2 Scratch buffer, at least n long
+	 * @param counts Scratch buffer for the digit histogram, 0x10001 long
+	 */
+	static void sortPixels(int [] pixels, int [] values, int n, int [] pixels2, int [] values2, int [] counts) {
+		if (n < 2) {
+			return;
+		}
+
+		int maxV = values[0];
+		int minV = values[0];
+		for (int i = 1; i < n; i++) {
+			if (values[i] > maxV) {
+				maxV = values[i];
+			} else if (values[i] < minV) {
+				minV = values[i];
+			}
+		}
+
+		// key = maxV - value, treated as unsigned, so that ascending keys give descending intensities
+		int range = maxV - minV;
+		int nPasses = ((range >>> 16) == 0) ? 1 : 2;
+
+		int [] srcP = pixels, srcV = values, dstP = pixels2, dstV = values2;
+
+		for (int pass = 0; pass < nPasses; pass++) {
+			int shift = pass * 16;
+
+			Arrays.fill(counts, 0);
+			for (int i = 0; i < n; i++) {
+				counts[(((maxV - srcV[i]) >>> shift) & 0xffff) + 1] ++;
+			}
+			for (int i = 1; i < counts.length; i++) {
+				counts[i] += counts[i - 1];
+			}
+			for (int i = 0; i < n; i++) {
+				int pos = counts[((maxV - srcV[i]) >>> shift) & 0xffff] ++;
+				dstP[pos] = srcP[i];
+				dstV[pos] = srcV[i];
+			}
+
+			int [] t = srcP; srcP = dstP; dstP = t;
+			t = srcV; srcV = dstV; dstV = t;
+		}
+
+		if (srcP != pixels) {
+			System.arraycopy(srcP, 0, pixels, 0, n);
+			System.arraycopy(srcV, 0, values, 0, n);
+		}
+	}
+
 	/**
 	 * Get analysis results
+	 * The result arrays are reused by the next call of process(). Only the first reportNumParticles() 
+	 * entries are valid.
 	 * @return X coordinates of all particles detected
 	 */
 	public double [] reportX() {
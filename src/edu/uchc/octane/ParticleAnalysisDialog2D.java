@@ -24,7 +24,6 @@ import java.util.Vector;
 import java.util.prefs.Preferences;
 
 import ij.ImagePlus;
-import ij.process.ImageProcessor;
 
 /**
  * Setting up parameters for 2D particle analysis using watershed/Gaussian fitting
@@ -120,18 +119,25 @@ public class ParticleAnalysisDialog2D extends ParticleAnalysisDialogBase {
 	}
 
 	/* (non-Javadoc)
-	 * @see edu.uchc.octane.ParticleAnalysisDialog#processCurrentFrame(ij.process.ImageProcessor)
+	 * @see edu.uchc.octane.LocalizationPipeline.FrameAnalysis#configureModule(edu.uchc.octane.ParticleAnalysis)
 	 */
 	@Override
-	public void processCurrentFrame(ImageProcessor ip, ParticleAnalysis module) throws InterruptedException {
-
-		if (bProcessingAll_ || GlobalPrefs.particleAnalysisMode_.equals("Accurate")) {
-			GaussianFit2D fittingModule = new GaussianFit2D();
+	public void configureModule(ParticleAnalysis module) {
+
+		if (bProcessingAll_ || bAccurateMode_) {
+			GaussianFit2D fittingModule;
+			if (module.getGaussianFitModule() instanceof GaussianFit2D) {
+				fittingModule = (GaussianFit2D) module.getGaussianFitModule();
+			} else {
+				fittingModule = new GaussianFit2D();
+			}
 			fittingModule.setWindowSize(kernelSize_);
 			fittingModule.setPreprocessBackground(preProcessBackground_);
 			fittingModule.setDeflation(true);
 			fittingModule.setPreferredSigmaValue(sigma_);
-			fittingModule.setImageData(ip);
+			fittingModule.setFittingEngine(fittingEngine_);
+			fittingModule.setNoiseModel(noiseModel_);
+			fittingModule.setCountsPerPhoton(countsPerPhoton_);
 
 			module.setGaussianFitModule(fittingModule);
 		} else {
@@ -140,8 +146,22 @@ public class ParticleAnalysisDialog2D extends ParticleAnalysisDialogBase {
 
 		module.setFittingQualityMin(fittingQualityMin_);
 		module.setHeightMin(heightMin_);
-		module.process(ip, rect_, watershedNoise_, watershedNoise_);
+	}
+
+	/* (non-Javadoc)
+	 * @see edu.uchc.octane.LocalizationPipeline.FrameAnalysis#getWatershedThreshold()
+	 */
+	@Override
+	public int getWatershedThreshold() {
+		return watershedNoise_;
+	}
 
+	/* (non-Javadoc)
+	 * @see edu.uchc.octane.LocalizationPipeline.FrameAnalysis#getWatershedNoise()
+	 */
+	@Override
+	public int getWatershedNoise() {
+		return watershedNoise_;
 	}
 
 	/* (non-Javadoc)
@@ -24,7 +24,6 @@ import java.util.Vector;
 import java.util.prefs.Preferences;
 
 import ij.ImagePlus;
-import ij.process.ImageProcessor;
 
 /**
  * Setting up parameters for 3D particle analysis using astigmatism fitting
@@ -119,14 +118,19 @@ public class ParticleAnalysisDialogAstigmatism extends ParticleAnalysisDialogBas
 	}
 	
 	/* (non-Javadoc)
-	 * @see edu.uchc.octane.ParticleAnalysisDialog#processCurrentFrame(ij.process.ImageProcessor)
+	 * @see edu.uchc.octane.LocalizationPipeline.FrameAnalysis#configureModule(edu.uchc.octane.ParticleAnalysis)
 	 */
 	@Override
-	public void processCurrentFrame(ImageProcessor ip, ParticleAnalysis analysisModule) throws InterruptedException {
+	public void configureModule(ParticleAnalysis analysisModule) {
 
-		if (bProcessingAll_ || GlobalPrefs.particleAnalysisMode_.equals("Accurate")) {
+		if (bProcessingAll_ || bAccurateMode_) {
 
-			GaussianFitAstigmatism fittingModule = new GaussianFitAstigmatism();
+			GaussianFitAstigmatism fittingModule;
+			if (analysisModule.getGaussianFitModule() instanceof GaussianFitAstigmatism) {
+				fittingModule = (GaussianFitAstigmatism) analysisModule.getGaussianFitModule();
+			} else {
+				fittingModule = new GaussianFitAstigmatism();
+			}
 
 			sigma_ = (calibration_[0] + calibration_[3])/2;		
 			kernelSize_ = (int) Math.round(sigma_ * 2.5);
@@ -135,15 +139,31 @@ public class ParticleAnalysisDialogAstigmatism extends ParticleAnalysisDialogBas
 			fittingModule.setPreprocessBackground(preProcessBackground_);
 			fittingModule.setDeflation(true);
 			fittingModule.setPreferredSigmaValue(sigma_);
+			fittingModule.setFittingEngine(fittingEngine_);
+			fittingModule.setNoiseModel(noiseModel_);
+			fittingModule.setCountsPerPhoton(countsPerPhoton_);
 			fittingModule.setCalibration(calibration_);
-			fittingModule.setImageData(ip);
 
 			analysisModule.setGaussianFitModule(fittingModule);
 		} else {
 			analysisModule.setGaussianFitModule(null);
 		}
+	}
 
-		analysisModule.process(ip, rect_, watershedThreshold_, watershedNoise_);
+	/* (non-Javadoc)
+	 * @see edu.uchc.octane.LocalizationPipeline.FrameAnalysis#getWatershedThreshold()
+	 */
+	@Override
+	public int getWatershedThreshold() {
+		return watershedThreshold_;
+	}
+
+	/* (non-Javadoc)
+	 * @see edu.uchc.octane.LocalizationPipeline.FrameAnalysis#getWatershedNoise()
+	 */
+	@Override
+	public int getWatershedNoise() {
+		return watershedNoise_;
 	}
 
 	/* (non-Javadoc)
@@ -22,7 +22,6 @@ package edu.uchc.octane;
 import ij.IJ;
 import ij.ImageListener;
 import ij.ImagePlus;
-import ij.ImageStack;
 import ij.gui.DialogListener;
 import ij.gui.GenericDialog;
 import ij.gui.NonBlockingGenericDialog;
@@ -32,13 +31,14 @@ import ij.process.ImageProcessor;
 
 import java.awt.AWTEvent;
 import java.awt.Rectangle;
+import java.io.IOException;
 
 /**
  * Base class for particle analysis dialogs that specify analysis parameters
  * @author Ji-Yu
  *
  */
-public abstract class ParticleAnalysisDialogBase extends NonBlockingGenericDialog {
+public abstract class ParticleAnalysisDialogBase extends NonBlockingGenericDialog implements LocalizationPipeline.FrameAnalysis {
 	ImagePlus imp_;
 	Rectangle rect_;
 
@@ -49,13 +49,16 @@ public abstract class ParticleAnalysisDialogBase extends NonBlockingGenericDialo
 
 	private SmNode[][] nodes_ = null;  
 	
-	Integer lastFrame_;
-	Integer nFound_;
-	
 	private volatile Thread prevProcess_ = null;
 	
 	boolean bProcessingAll_ = false;
 
+	// global settings at the time the dialog is opened, so that a running analysis is not affected by changes
+	final boolean bAccurateMode_ = GlobalPrefs.particleAnalysisMode_.equals("Accurate");
+	final GaussianFitBase.FittingEngine fittingEngine_ = GlobalPrefs.getFittingEngine();
+	final GaussianFitBase.NoiseModel noiseModel_ = GlobalPrefs.getNoiseModel();
+	final double countsPerPhoton_ = GlobalPrefs.getCountsPerPhoton();
+
 	/**
 	 * Constructor that creates the dialog.
 	 * The dialog is non-modal. The analysis result of the current frame will be displayed in the form
@@ -144,8 +147,11 @@ public abstract class ParticleAnalysisDialogBase extends NonBlockingGenericDialo
 	
 	/**
 	 * Usually called when the dialog is closed.
-	 * Analyze all frames to detect all particles.
+	 * Analyze all frames to detect all particles, using a LocalizationPipeline with GlobalPrefs.nThread_ 
+	 * threads. Virtual stacks of uncompressed TIFF or raw files are read through a MappedFrameSource 
+	 * instead of the ImageJ virtual stack. Pressing ESC cancels the analysis.
 	 * @return An array of array of SmNode representing all particles. Each SmNode[] represents a frame. 
+	 * Null if the analysis was cancelled.
 	 */
 	public SmNode[][] processAllFrames() {
 		imp_.killRoi();
@@ -154,75 +160,33 @@ public abstract class ParticleAnalysisDialogBase extends NonBlockingGenericDialo
 		
 		IJ.log("Particle Analysis -- Searching for particles:");
 
-		final ImageStack stack = imp_.getImageStack();
-		
-		nodes_ = new SmNode[stack.getSize()][];
-		
-		lastFrame_ = 0;
-		nFound_ = 0;
+		FrameSource source = MappedFrameSource.forImage(imp_);
+		if (source == null) {
+			source = new StackFrameSource(imp_.getImageStack());
+		}
 
-		class ProcessThread extends Thread {
+		LocalizationPipeline pipeline = new LocalizationPipeline(source, this, GlobalPrefs.nThread_);
+		nodes_ = pipeline.run();
 
-			public void run() {
-				int curFrame = 1;
-				do {
-					synchronized(lastFrame_) {
-						if (lastFrame_ < stack.getSize()) {
-							lastFrame_ ++;
-							curFrame = lastFrame_;
-						} else {
-							return;
-						}
-					}
-					if ((curFrame % 50) == 0) {
-						IJ.log("Processed: "+ curFrame + "frames.");
-					}
-					
-					IJ.showProgress(curFrame, stack.getSize());
-					
-					ImageProcessor ip = stack.getProcessor(curFrame);
-					
-					ParticleAnalysis module = new ParticleAnalysis();;
-
-					try {
-						processCurrentFrame(ip, module);
-					} catch (InterruptedException e) {
-						return;
-					}
-					
-					nodes_[curFrame - 1] = module.createSmNodes(curFrame);
-					
-					if (nodes_[curFrame -1] == null) {
-						nodes_[curFrame - 1] = new SmNode[0];
-					}
+		try {
+			source.close();
+		} catch (IOException e) {
+			// nothing to do
+		}
 
-					int nParticles = module.reportNumParticles();
-					
-					synchronized(nFound_) {
-						nFound_ += nParticles;
-					}
+		bProcessingAll_ = false;
 
-				} while(curFrame < stack.getSize());
-			}
-		}
-		
-		ProcessThread [] threads = new ProcessThread[GlobalPrefs.nThread_];
-		
-		for (int i = 0; i < GlobalPrefs.nThread_; i++ ) {
-			threads[i] =  new ProcessThread();
-			threads[i].start();
+		if (pipeline.getError() != null) {
+			IJ.handleException(pipeline.getError());
 		}
-		
-		for (int i = 0; i < GlobalPrefs.nThread_; i++ ) {
-			try {
-				threads[i].join();
-			} catch (InterruptedException e) {
-			}
+
+		if (nodes_ == null) {
+			IJ.log(imp_.getTitle() + "- Particle analysis cancelled.");
+			return null;
 		}
 		
-		IJ.log(imp_.getTitle() + "- Found " + nFound_ + " particles.");
-		
-		bProcessingAll_ = false;
+		IJ.log(imp_.getTitle() + "- Found " + pipeline.getNumParticles() + " particles.");
+		IJ.log("Stage utilization: " + pipeline.reportUtilization());
 		
 		return nodes_;
 	}
@@ -313,10 +277,26 @@ public abstract class ParticleAnalysisDialogBase extends NonBlockingGenericDialo
 	 * Analyze current image frame
 	 * @param ip Current image frame
 	 * @param module A ParticleAnalysis module for processing 
-	 * @return The analysis module used.
 	 * @throws InterruptedException
 	 */
-	abstract public void processCurrentFrame(ImageProcessor ip, ParticleAnalysis module) throws InterruptedException;
+	public void processCurrentFrame(ImageProcessor ip, ParticleAnalysis module) throws InterruptedException {
+
+		configureModule(module);
+
+		if (module.getGaussianFitModule() != null) {
+			module.getGaussianFitModule().setImageData(ip);
+		}
+
+		module.process(ip, getMask(), getWatershedThreshold(), getWatershedNoise());
+	}
+
+	/* (non-Javadoc)
+	 * @see edu.uchc.octane.LocalizationPipeline.FrameAnalysis#getMask()
+	 */
+	@Override
+	public Rectangle getMask() {
+		return rect_;
+	}
 
 	/**
 	 * Update parameters to reflect changes in dialog input fields
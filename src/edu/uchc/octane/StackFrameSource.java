@@ -0,0 +1,77 @@
+//FILE:          StackFrameSource.java
+//PROJECT:       Octane
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ji Yu, jyu@uchc.edu
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package edu.uchc.octane;
+
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+/**
+ * A FrameSource reading from an ImageJ ImageStack
+ *
+ */
+public class StackFrameSource implements FrameSource {
+
+	final private ImageStack stack_;
+
+	/**
+	 * Constructor
+	 * @param stack The image stack
+	 */
+	public StackFrameSource(ImageStack stack) {
+		stack_ = stack;
+	}
+
+	/* (non-Javadoc)
+	 * @see edu.uchc.octane.FrameSource#getSize()
+	 */
+	@Override
+	public int getSize() {
+		return stack_.getSize();
+	}
+
+	/* (non-Javadoc)
+	 * @see edu.uchc.octane.FrameSource#getWidth()
+	 */
+	@Override
+	public int getWidth() {
+		return stack_.getWidth();
+	}
+
+	/* (non-Javadoc)
+	 * @see edu.uchc.octane.FrameSource#getHeight()
+	 */
+	@Override
+	public int getHeight() {
+		return stack_.getHeight();
+	}
+
+	/* (non-Javadoc)
+	 * @see edu.uchc.octane.FrameSource#getProcessor(int, ij.process.ImageProcessor)
+	 */
+	@Override
+	public ImageProcessor getProcessor(int n, ImageProcessor reuse) {
+		return stack_.getProcessor(n);
+	}
+
+	/* (non-Javadoc)
+	 * @see edu.uchc.octane.FrameSource#close()
+	 */
+	@Override
+	public void close() {
+	}
+}
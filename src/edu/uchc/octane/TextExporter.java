@@ -0,0 +1,526 @@
+//FILE:          TextExporter.java
+//PROJECT:       Octane
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Ji Yu, jyu@uchc.edu
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+//
+package edu.uchc.octane;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Writes localizations as comma separated text: frame, x, y, z, height[, trajectory].
+ *
+ * Rows are formatted in blocks into reused byte arrays, by several threads when writing
+ * to a file, and the blocks are written to a FileChannel in order. Numbers are formatted
+ * without creating Strings. A double or float is written with the fewest digits that read
+ * back as the same value, in the plain notation of Double.toString() and Float.toString();
+ * values outside the plain range of those methods (below 0.001 or from 10^7) are written by
+ * them.
+ */
+public class TextExporter {
+
+	private static final int ROWS_PER_BLOCK = 1 << 14;
+	private static final int MAX_ROW_LENGTH = 128;
+
+	private static final long [] LONG_POW10 = new long[19];
+	private static final long [] POW5 = new long[28];
+	static {
+		LONG_POW10[0] = 1;
+		for (int i = 1; i < LONG_POW10.length; i++) {
+			LONG_POW10[i] = LONG_POW10[i - 1] * 10;
+		}
+		POW5[0] = 1;
+		for (int i = 1; i < POW5.length; i++) {
+			POW5[i] = POW5[i - 1] * 5;
+		}
+	}
+
+	final private LocalizationTable table_;
+	final private int nThreads_;
+
+	/**
+	 * A block of formatted text
+	 */
+	static class Block {
+		byte [] data = new byte[ROWS_PER_BLOCK * 64];
+		int length;
+
+		void ensure(int n) {
+			if (length + n > data.length) {
+				data = Arrays.copyOf(data, Math.max(length + n, data.length * 2));
+			}
+		}
+	}
+
+	/**
+	 * Constructor
+	 * @param table The localizations
+	 * @param nThreads Number of formatting threads
+	 */
+	public TextExporter(LocalizationTable table, int nThreads) {
+		table_ = table;
+		nThreads_ = Math.max(1, nThreads);
+	}
+
+	/**
+	 * Write all localizations in frame order: frame, x, y, z, height
+	 * @param file The file
+	 * @throws IOException
+	 */
+	public void writePositions(File file) throws IOException {
+		write(file, null, getPositionBlocks(), null);
+	}
+
+	/**
+	 * Write trajectories in the order given: frame, x, y, z, height, n,
+	 * where n is the position of the trajectory in the array
+	 * @param file The file
+	 * @param trajectories Indices of the trajectories, or null for all trajectories
+	 * @param header A header line, or null
+	 * @throws IOException
+	 */
+	public void writeTrajectories(File file, int [] trajectories, String header) throws IOException {
+		trajectories = allIfNull(trajectories);
+		write(file, header, getTrajectoryBlocks(trajectories), trajectories);
+	}
+
+	/**
+	 * Write all localizations in frame order: frame, x, y, z, height
+	 * @param w The writer
+	 * @throws IOException
+	 */
+	public void writePositions(Writer w) throws IOException {
+		write(w, getPositionBlocks(), null);
+	}
+
+	/**
+	 * Write all trajectories: frame, x, y, z, height, trajectory
+	 * @param w The writer
+	 * @throws IOException
+	 */
+	public void writeTrajectories(Writer w) throws IOException {
+		int [] trajectories = allIfNull(null);
+		write(w, getTrajectoryBlocks(trajectories), trajectories);
+	}
+
+	private int [] allIfNull(int [] trajectories) {
+		if (trajectories == null) {
+			trajectories = new int[table_.getNumTrajectories()];
+			for (int i = 0; i < trajectories.length; i++) {
+				trajectories[i] = i;
+			}
+		}
+		return trajectories;
+	}
+
+	/**
+	 * @return Block boundaries as positions in the frame order
+	 */
+	private int [] getPositionBlocks() {
+		int n = table_.size();
+		int [] bounds = new int[(n + ROWS_PER_BLOCK - 1) / ROWS_PER_BLOCK + 1];
+		for (int k = 0; k < bounds.length; k++) {
+			bounds[k] = Math.min(n, k * ROWS_PER_BLOCK);
+		}
+		return bounds;
+	}
+
+	/**
+	 * @return Block boundaries as positions in the list of trajectories
+	 */
+	private int [] getTrajectoryBlocks(int [] trajectories) {
+		int [] bounds = new int[16];
+		int nBounds = 1;
+		int rows = 0;
+		for (int i = 0; i < trajectories.length; i++) {
+			int t = trajectories[i];
+			rows += table_.getTrajectoryEnd(t) - table_.getTrajectoryStart(t);
+			if (rows >= ROWS_PER_BLOCK || i == trajectories.length - 1) {
+				if (nBounds == bounds.length) {
+					bounds = Arrays.copyOf(bounds, nBounds * 2);
+				}
+				bounds[nBounds++] = i + 1;
+				rows = 0;
+			}
+		}
+		return Arrays.copyOf(bounds, nBounds);
+	}
+
+	private void format(Block b, int [] bounds, int k, int [] trajectories) {
+		b.length = 0;
+		if (trajectories == null) {
+			int [] order = table_.getFrameOrder();
+			for (int p = bounds[k]; p < bounds[k + 1]; p++) {
+				b.ensure(MAX_ROW_LENGTH);
+				b.length = formatRow(b.data, b.length, order[p], -1);
+			}
+		} else {
+			for (int i = bounds[k]; i < bounds[k + 1]; i++) {
+				int t = trajectories[i];
+				for (int row = table_.getTrajectoryStart(t); row < table_.getTrajectoryEnd(t); row++) {
+					b.ensure(MAX_ROW_LENGTH);
+					b.length = formatRow(b.data, b.length, row, i);
+				}
+			}
+		}
+	}
+
+	private void write(File file, String header, final int [] bounds, final int [] trajectories) throws IOException {
+		table_.getFrameOrder(); // build the index before the threads need it
+
+		FileOutputStream out = new FileOutputStream(file);
+		FileChannel channel = out.getChannel();
+		ExecutorService executor = Executors.newFixedThreadPool(nThreads_);
+		final ConcurrentLinkedQueue<Block> pool = new ConcurrentLinkedQueue<Block>();
+		ArrayDeque<Future<Block>> pending = new ArrayDeque<Future<Block>>();
+
+		try {
+			if (header != null) {
+				writeFully(channel, ByteBuffer.wrap(header.getBytes("ISO-8859-1")));
+			}
+			int next = 0;
+			int nBlocks = bounds.length - 1;
+			while (next < nBlocks || !pending.isEmpty()) {
+				// keep a few blocks ahead of the writer, in order
+				while (next < nBlocks && pending.size() < 2 * nThreads_) {
+					final int k = next++;
+					pending.add(executor.submit(new Callable<Block>() {
+						@Override
+						public Block call() {
+							Block b = pool.poll();
+							if (b == null) {
+								b = new Block();
+							}
+							format(b, bounds, k, trajectories);
+							return b;
+						}
+					}));
+				}
+				Block b = pending.poll().get();
+				writeFully(channel, ByteBuffer.wrap(b.data, 0, b.length));
+				pool.add(b);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted");
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause().getMessage());
+		} finally {
+			executor.shutdownNow();
+			channel.close();
+			out.close();
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			channel.write(buf);
+		}
+	}
+
+	private void write(Writer w, int [] bounds, int [] trajectories) throws IOException {
+		Block b = new Block();
+		char [] chars = new char[0];
+		for (int k = 0; k < bounds.length - 1; k++) {
+			format(b, bounds, k, trajectories);
+			if (chars.length < b.length) {
+				chars = new char[b.data.length];
+			}
+			for (int i = 0; i < b.length; i++) {
+				chars[i] = (char) b.data[i];
+			}
+			w.write(chars, 0, b.length);
+		}
+	}
+
+	/**
+	 * Format a row
+	 * @param b The buffer, with at least MAX_ROW_LENGTH bytes free
+	 * @param pos Where to start
+	 * @param row The row
+	 * @param id The trajectory number to append, or -1
+	 * @return The position after the row
+	 */
+	int formatRow(byte [] b, int pos, int row, int id) {
+		pos = formatInt(table_.getFrame(row), b, pos);
+		b[pos++] = ',';
+		b[pos++] = ' ';
+		pos = formatDouble(table_.getX(row), b, pos);
+		b[pos++] = ',';
+		b[pos++] = ' ';
+		pos = formatDouble(table_.getY(row), b, pos);
+		b[pos++] = ',';
+		b[pos++] = ' ';
+		pos = formatFloat((float) table_.getZ(row), b, pos);
+		b[pos++] = ',';
+		b[pos++] = ' ';
+		pos = formatInt(table_.getHeight(row), b, pos);
+		if (id >= 0) {
+			b[pos++] = ',';
+			b[pos++] = ' ';
+			pos = formatInt(id, b, pos);
+		}
+		b[pos++] = '\n';
+		return pos;
+	}
+
+	/**
+	 * Format an int like Integer.toString()
+	 * @return The position after the number
+	 */
+	static int formatInt(int v, byte [] b, int pos) {
+		long u = v;
+		if (u < 0) {
+			b[pos++] = '-';
+			u = -u;
+		}
+		return formatDigits(u, b, pos);
+	}
+
+	private static int formatDigits(long u, byte [] b, int pos) {
+		int n = 1;
+		while (n < 19 && u >= LONG_POW10[n]) {
+			n ++;
+		}
+		for (int i = pos + n - 1; i >= pos; i--) {
+			b[i] = (byte) ('0' + u % 10);
+			u /= 10;
+		}
+		return pos + n;
+	}
+
+	private static int formatString(String s, byte [] b, int pos) {
+		for (int i = 0; i < s.length(); i++) {
+			b[pos++] = (byte) s.charAt(i);
+		}
+		return pos;
+	}
+
+	/**
+	 * Format a double with the fewest digits that read back as the same double
+	 * @param v The value
+	 * @param b The buffer, with room for 25 characters from pos
+	 * @param pos Where the number is written
+	 * @return The position after the number
+	 */
+	public static int formatDouble(double v, byte [] b, int pos) {
+		long bits = Double.doubleToRawLongBits(v);
+		double a = Math.abs(v);
+		if (a == 0) {
+			return formatString(bits < 0 ? "-0.0" : "0.0", b, pos);
+		}
+		if (!(a >= 1e-3 && a < 1e7)) {
+			return formatString(Double.toString(v), b, pos);
+		}
+		long m = (bits & 0xfffffffffffffL) | (1L << 52);
+		int e = (int) ((bits >>> 52) & 0x7ff) - 1075;
+		int p = formatShortest(a, m, e, m == (1L << 52), 15, 17, b, pos + (bits < 0 ? 1 : 0));
+		if (p < 0) {
+			return formatString(Double.toString(v), b, pos);
+		}
+		if (bits < 0) {
+			b[pos] = '-';
+		}
+		return p;
+	}
+
+	/**
+	 * Format a float with the fewest digits that read back as the same float
+	 * @param v The value
+	 * @param b The buffer, with room for 25 characters from pos
+	 * @param pos Where the number is written
+	 * @return The position after the number
+	 */
+	public static int formatFloat(float v, byte [] b, int pos) {
+		int bits = Float.floatToRawIntBits(v);
+		float a = Math.abs(v);
+		if (a == 0) {
+			return formatString(bits < 0 ? "-0.0" : "0.0", b, pos);
+		}
+		if (!(a >= 1e-3f && a < 1e7f)) {
+			return formatString(Float.toString(v), b, pos);
+		}
+		long m = (bits & 0x7fffff) | (1 << 23);
+		int e = ((bits >>> 23) & 0xff) - 150;
+		int p = formatShortest(a, m, e, m == (1 << 23), 6, 9, b, pos + (bits < 0 ? 1 : 0));
+		if (p < 0) {
+			return formatString(Float.toString(v), b, pos);
+		}
+		if (bits < 0) {
+			b[pos] = '-';
+		}
+		return p;
+	}
+
+	/**
+	 * Format a positive value m * 2^e, for 0.001 <= value < 10^7.
+	 *
+	 * For each number of significant digits from minDigits, the value is rounded exactly to
+	 * that many digits, and the first result that lies within the rounding interval of the value
+	 * is written. minDigits must be low enough that a shorter representation, if one exists,
+	 * is found by rounding.
+	 *
+	 * @param value The value, only used to estimate the decimal exponent
+	 * @param m Binary mantissa with the implicit bit
+	 * @param e Binary exponent
+	 * @param lowerHalf Whether the interval below the value is half as wide (m is a power of 2)
+	 * @return The position after the number, or -1 if no representation was found
+	 */
+	private static int formatShortest(double value, long m, int e, boolean lowerHalf, int minDigits, int maxDigits, byte [] b, int pos) {
+		int e10 = (int) Math.floor(Math.log10(value));
+		for (int digits = Math.max(minDigits, e10 + 1); digits <= maxDigits; digits++) {
+			for (int attempt = 0; attempt < 3; attempt++) {
+				int k = digits - 1 - e10;
+				if (k < 0 || k >= POW5.length) {
+					return -1;
+				}
+				// x = m * 2^e * 10^k = m * 5^k * 2^(k + e), exact in 128 bits
+				long p5 = POW5[k];
+				long aLo = m & 0xffffffffL;
+				long aHi = m >>> 32;
+				long bLo = p5 & 0xffffffffL;
+				long bHi = p5 >>> 32;
+				long ll = aLo * bLo;
+				long lh = aLo * bHi;
+				long hl = aHi * bLo;
+				long mid = (ll >>> 32) + (lh & 0xffffffffL) + (hl & 0xffffffffL);
+				long xLo = (mid << 32) | (ll & 0xffffffffL);
+				long xHi = aHi * bHi + (lh >>> 32) + (hl >>> 32) + (mid >>> 32);
+
+				int t = k + e;
+				long n;
+				boolean exact;
+				if (t >= 0) {
+					if (xHi != 0 || t > 0 && (xLo >>> (63 - t)) != 0) {
+						return -1;
+					}
+					n = xLo << t;
+					exact = true;
+					if (n >= LONG_POW10[digits]) {
+						e10 ++;
+						continue;
+					}
+					if (n < LONG_POW10[digits - 1]) {
+						e10 --;
+						continue;
+					}
+				} else {
+					int s = -t;
+					if (s > 60 || (xHi >>> s) != 0) {
+						return -1;
+					}
+					long q = (xLo >>> s) | (xHi << (64 - s));
+					long rest = xLo & ((1L << s) - 1);
+					long half = 1L << (s - 1);
+					n = q;
+					if (rest > half || (rest == half && (q & 1) != 0)) {
+						n ++;
+					}
+					exact = rest == 0;
+					if (q >= LONG_POW10[digits]) {
+						e10 ++;
+						continue;
+					}
+					// test the digits before rounding, n may have been rounded up to 10^(digits - 1)
+					if (q < LONG_POW10[digits - 1]) {
+						e10 --;
+						continue;
+					}
+				}
+				if (exact || inInterval(n, xHi, xLo, -t, p5, lowerHalf)) {
+					return formatDecimal(n, k, b, pos);
+				}
+				break;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Test whether n / 10^k rounds to m * 2^e, where x = m * 5^k = (xHi, xLo) and s = -(k + e).
+	 * In units of 2^-(s + 2), the value is 4x, the half interval above is 2 * 5^k and below
+	 * 2 * 5^k or 5^k, and n is n * 2^(s + 2).
+	 */
+	private static boolean inInterval(long n, long xHi, long xLo, int s, long p5, boolean lowerHalf) {
+		int sh = s + 2;
+		if (sh >= 64) {
+			return false;
+		}
+		long nLo = n << sh;
+		long nHi = n >>> (64 - sh);
+		long vLo = xLo << 2;
+		long vHi = (xHi << 2) | (xLo >>> 62);
+		long dLo = nLo - vLo;
+		long dHi = nHi - vHi - (((nLo ^ Long.MIN_VALUE) < (vLo ^ Long.MIN_VALUE)) ? 1 : 0);
+		if (dHi == 0 && dLo >= 0) {
+			return dLo < 2 * p5;
+		} else if (dHi == -1 && dLo < 0) {
+			return -dLo < (lowerHalf ? p5 : 2 * p5);
+		}
+		return false;
+	}
+
+	/**
+	 * Write n / 10^k in plain notation, without trailing zeros but with at least one decimal
+	 * @return The position after the number
+	 */
+	private static int formatDecimal(long n, int k, byte [] b, int pos) {
+		while (k > 0 && n % 10 == 0) {
+			n /= 10;
+			k --;
+		}
+		int start = pos;
+		int nDigits = formatDigits(n, b, pos) - pos;
+		if (k == 0) {
+			pos += nDigits;
+			b[pos++] = '.';
+			b[pos++] = '0';
+		} else if (k < nDigits) {
+			// insert the point
+			pos += nDigits;
+			for (int i = pos; i > pos - k; i--) {
+				b[i] = b[i - 1];
+			}
+			b[pos - k] = '.';
+			pos ++;
+		} else {
+			// 0.00ddd
+			int shift = 2 + k - nDigits;
+			for (int i = nDigits - 1; i >= 0; i--) {
+				b[start + shift + i] = b[start + i];
+			}
+			b[start] = '0';
+			b[start + 1] = '.';
+			for (int i = start + 2; i < start + shift; i++) {
+				b[i] = '0';
+			}
+			pos = start + shift + nDigits;
+		}
+		return pos;
+	}
+}
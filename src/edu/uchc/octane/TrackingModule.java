@@ -19,13 +19,12 @@ package edu.uchc.octane;
 
 import ij.IJ;
 
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.ListIterator;
-import java.util.Stack;
-import java.util.Vector;
+import java.util.BitSet;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Tracking module to generate trajectories
@@ -34,353 +33,839 @@ import java.util.Vector;
  */
 public class TrackingModule {
 	TrajDataset dataset_;
-	protected Vector<Trajectory> trajectories_;
+	protected ArrayList<Trajectory> trajectories_;
 	protected SmNode [][] nodes_; //nodes_[frame][#]
 
-	private Integer [][] backwardBonds_;
-	private Bond [][] forwardBonds_;
-	private boolean [] isTrackedParticle_; 
-	private LinkedList<Trajectory> activeTracks_;	
+	/**
+	 * Receives the trajectories from the tracker
+	 */
+	public interface TrajectorySink {
+
+		/**
+		 * Called for each trajectory as soon as it can not be continued any more, i.e.
+		 * once it has gone without a new node for the max blinking number of frames, 
+		 * or when tracking finishes.
+		 * @param trajectory The trajectory
+		 */
+		void trajectoryFinished(Trajectory trajectory);
+	}
+
+	private TrajectorySink sink_;
+	private TreeMap<Integer, SmNode[]> pending_ = new TreeMap<Integer, SmNode[]>(); // frames ahead of nextFrame_
+	private int nextFrame_ = 0;
+	private int nFinished_ = 0;
+	private SmNode [] curNodes_;
+
+	// the active tracks in the order they were started. The index of a track is its head index.
+	private Trajectory [] activeTracks_;
+	private int nActive_;
+
+	// bonds from the heads to the nodes of the current frame, shortest first. The bonds of head i are
+	// fwdTo_[k], fwdLength_[k] for k = fwdStart_[i] ... fwdStart_[i] + fwdCount_[i] - 1
+	private int [] fwdStart_;
+	private int [] fwdCount_;
+	private int [] fwdTo_ = new int[16];
+	private double [] fwdLength_ = new double[16];
+
+	// heads bonded to node j, bwdFrom_[bwdStart_[j]] ... bwdFrom_[bwdStart_[j+1] - 1]
+	private int [] bwdStart_;
+	private int [] bwdFrom_;
+
+	private BitSet closedHeads_;  // heads that are done for the current frame
+	private BitSet trackedNodes_; // nodes of the current frame that continue a track
+
+	// membership in a subnetwork. Components are searched concurrently, but each writes only its own entries.
+	private boolean [] inHeadList_;
+	private boolean [] inTailList_;
+
 	private Trajectory wasted_;
 	private double threshold_;
 	private double threshold2_;
 	private int maxBlinking_;
 	private int curFrame_;
+	private int [] tailColumn_;
+	private int [] links_; // tail bonded to each head, or -1
+	private int [] cellStart_;
+	private int [] cellNodes_;
+	private int nCellX_, nCellY_;
+	private double cellSize_, gridX0_, gridY0_;
+	final private TrackingParameters params_;
+	final static private int NOT_OPTIMIZED = -2;
+	private int nThreads_ = GlobalPrefs.nThread_;
+	private ForkJoinPool pool_;
+
+	// components of subnetworks to be optimized in parallel
+	private class SubnetworkTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		final int [] heads;
+		final int [] compStart;
+		final int lo, hi;
+
+		SubnetworkTask(int [] heads, int [] compStart, int lo, int hi) {
+			this.heads = heads;
+			this.compStart = compStart;
+			this.lo = lo;
+			this.hi = hi;
+		}
 
-	class Bond implements Comparable<Bond> {
-		int bondTo;
-		double bondLength;
 		@Override
-		public int compareTo(Bond o) {
-			return (int) Math.signum(bondLength - o.bondLength); 
+		protected void compute() {
+			if (hi - lo <= 16) {
+				optimizeComponent(heads, compStart[lo], compStart[hi]);
+			} else {
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new SubnetworkTask(heads, compStart, lo, mid), new SubnetworkTask(heads, compStart, mid, hi));
+			}
 		}
 	}
 
 	/**
 	 * Constructor
 	 * @param dataset The dataset
+	 * @param params The tracking parameters
 	 */
-	public TrackingModule(TrajDataset dataset) {
+	public TrackingModule(TrajDataset dataset, TrackingParameters params) {
 		dataset_ = dataset;
+		params_ = params;
+	}
+
+	/**
+	 * Constructor for tracking frames as they become available, see accept() and finish()
+	 * @param params The tracking parameters
+	 * @param sink Receives the trajectories
+	 */
+	public TrackingModule(TrackingParameters params, TrajectorySink sink) {
+		params_ = params;
+		sink_ = sink;
+	}
+
+	/**
+	 * Set the number of threads used to optimize the subnetworks of a frame.
+	 * @param n Number of threads
+	 */
+	public void setNumThreads(int n) {
+		nThreads_ = Math.max(1, n);
+	}
+
+	/**
+	 * Group the heads left after the trivial bonds into independent sets, the connected components
+	 * of the heads and tails under the bonds that clusterAndOptimize() follows. A subnetwork
+	 * never extends beyond its component, so the components can be optimized separately.
+	 *
+	 * @param compStart receives the offset of each component in the returned heads
+	 * @return the heads of each component in ascending order
+	 */
+	private int [] findSubnetworks(int [][] compStart) {
+		int nHeads = nActive_;
+		int nNodes = curNodes_.length;
+		int [] parent = new int[nHeads + nNodes];
+		BitSet isTail = new BitSet(nNodes);
+		for (int i = 0; i < parent.length; i ++) {
+			parent[i] = i;
+		}
+		for (int i = closedHeads_.nextClearBit(0); i < nHeads; i = closedHeads_.nextClearBit(i + 1)) {
+			for (int k = fwdStart_[i]; k < fwdStart_[i] + fwdCount_[i]; k ++) {
+				int tail = fwdTo_[k];
+				if (!trackedNodes_.get(tail)) {
+					union(parent, i, nHeads + tail);
+					isTail.set(tail);
+				}
+			}
+		}
+		// backward bonds may still list heads whose bonds were cut down to the shortest one
+		for (int tail = isTail.nextSetBit(0); tail >= 0; tail = isTail.nextSetBit(tail + 1)) {
+			for (int k = bwdStart_[tail]; k < bwdStart_[tail + 1]; k ++) {
+				int head = bwdFrom_[k];
+				if (!closedHeads_.get(head)) {
+					union(parent, head, nHeads + tail);
+				}
+			}
+		}
+
+		// counting sort of the heads by component
+		int [] comp = new int[nHeads];
+		int [] compOfRoot = new int[nHeads + nNodes];
+		Arrays.fill(compOfRoot, -1);
+		int nComps = 0;
+		int nSeeds = 0;
+		for (int i = 0; i < nHeads; i ++) {
+			comp[i] = -1;
+			if (!closedHeads_.get(i) && fwdCount_[i] > 0) {
+				int root = find(parent, i);
+				if (compOfRoot[root] < 0) {
+					compOfRoot[root] = nComps ++;
+				}
+				comp[i] = compOfRoot[root];
+				nSeeds ++;
+			}
+		}
+		int [] start = new int[nComps + 1];
+		for (int i = 0; i < nHeads; i ++) {
+			if (comp[i] >= 0) {
+				start[comp[i] + 1] ++;
+			}
+		}
+		for (int c = 0; c < nComps; c ++) {
+			start[c + 1] += start[c];
+		}
+		int [] fill = Arrays.copyOf(start, nComps);
+		int [] heads = new int[nSeeds];
+		for (int i = 0; i < nHeads; i ++) {
+			if (comp[i] >= 0) {
+				heads[fill[comp[i]]++] = i;
+			}
+		}
+		compStart[0] = start;
+		return heads;
+	}
+
+	private static int find(int [] parent, int i) {
+		while (parent[i] != i) {
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+	private static void union(int [] parent, int a, int b) {
+		a = find(parent, a);
+		b = find(parent, b);
+		if (a != b) {
+			parent[Math.max(a, b)] = Math.min(a, b);
+		}
+	}
+
+	/**
+	 * Optimize the subnetworks of one component. As in a scan over all heads, each head not yet
+	 * part of a subnetwork seeds a new one.
+	 */
+	private void optimizeComponent(int [] heads, int from, int to) {
+		for (int k = from; k < to; k ++) {
+			if (links_[heads[k]] == NOT_OPTIMIZED) {
+				clusterAndOptimize(heads[k]);
+			}
+		}
+	}
+
+	/**
+	 * Optimize all subnetworks of the current frame and create the chosen bonds. The components
+	 * are disjoint, so they are solved concurrently, each writing only to the links_ of its own heads.
+	 * The bonds are then made in the order of the heads, independent of the scheduling.
+	 */
+	private void optimizeAllSubnetworks() {
+		int [][] compStart = new int[1][];
+		int [] heads = findSubnetworks(compStart);
+		int nComps = compStart[0].length - 1;
+		links_ = new int[nActive_];
+		Arrays.fill(links_, NOT_OPTIMIZED);
+		inHeadList_ = new boolean[nActive_];
+		inTailList_ = new boolean[curNodes_.length];
+
+		if (pool_ != null && nComps > 1) {
+			pool_.invoke(new SubnetworkTask(heads, compStart[0], 0, nComps));
+		} else {
+			optimizeComponent(heads, 0, heads.length);
+		}
+
+		for (int k = 0; k < heads.length; k ++) {
+			int trackIdx = heads[k];
+			int bondTo = links_[trackIdx];
+			if (bondTo >= 0) {
+				activeTracks_[trackIdx].add(curNodes_[bondTo]);
+				assert(trackedNodes_.get(bondTo) == false);
+				trackedNodes_.set(bondTo);
+			}
+			closedHeads_.set(trackIdx);
+		}
 	}
 
 	private void clusterAndOptimize(int seed) {
-		Vector<Integer> headList = new Vector<Integer>();
-		Vector<Integer> tailList = new Vector<Integer>();
-
-		headList.add(seed);
-		ListIterator<Integer> itHead = headList.listIterator();
-		ListIterator<Integer> itTail = tailList.listIterator();
-		itHead.next();
-
-		while ( itHead.hasPrevious()) {
-			while (itHead.hasPrevious()) {
-				int trackIdx = itHead.previous();
-				for (int j = 0; j < forwardBonds_[trackIdx].length; j ++) {
-					int tail = forwardBonds_[trackIdx][j].bondTo;
-					if ( !isTrackedParticle_[tail] && ! tailList.contains(tail)) {
-						itTail.add(tail); // surprising, this add _before_ the cursor.
+		// Heads and tails are found in rounds. Each round is scanned from its last element, and
+		// the subnetwork lists the newer rounds ahead of the older ones.
+		int [] heads = new int[8];
+		int [] tails = new int[8];
+		int [] headRounds = new int[8];
+		int [] tailRounds = new int[8];
+		int nHeads = 0, nTails = 0, nHeadRounds = 0, nTailRounds = 0;
+
+		heads[nHeads++] = seed;
+		inHeadList_[seed] = true;
+		int headRound = 0;
+
+		while (headRound < nHeads) {
+			headRounds = grow(headRounds, nHeadRounds + 1);
+			headRounds[nHeadRounds++] = headRound;
+			int tailRound = nTails;
+			for (int i = nHeads - 1; i >= headRound; i--) {
+				int trackIdx = heads[i];
+				for (int k = fwdStart_[trackIdx]; k < fwdStart_[trackIdx] + fwdCount_[trackIdx]; k ++) {
+					int tail = fwdTo_[k];
+					if (!trackedNodes_.get(tail) && !inTailList_[tail]) {
+						tails = grow(tails, nTails + 1);
+						tails[nTails++] = tail;
+						inTailList_[tail] = true;
 					}
 				}
 			}
-			//lastHeadListEnd = headList.size();	
-
-			while (itTail.hasPrevious()) {
-				int posIdx = itTail.previous();
-				for (int j = 0; j < backwardBonds_[posIdx].length; j++) {
-					int head = backwardBonds_[posIdx][j];
-					if (forwardBonds_[head] != null && ! headList.contains(head)) {
-						itHead.add(head);
+
+			tailRounds = grow(tailRounds, nTailRounds + 1);
+			tailRounds[nTailRounds++] = tailRound;
+			headRound = nHeads;
+			for (int i = nTails - 1; i >= tailRound; i--) {
+				int posIdx = tails[i];
+				for (int k = bwdStart_[posIdx]; k < bwdStart_[posIdx + 1]; k++) {
+					int head = bwdFrom_[k];
+					if (!closedHeads_.get(head) && links_[head] == NOT_OPTIMIZED && !inHeadList_[head]) {
+						heads = grow(heads, nHeads + 1);
+						heads[nHeads++] = head;
+						inHeadList_[head] = true;
 					}
 				}
 			}
-			//lastTailListEnd = tailList.size();
 		}
 
-		optimizeSubnetwork(headList, tailList);
+		int [] headList = reverseRounds(heads, nHeads, headRounds, nHeadRounds);
+		int [] tailList = reverseRounds(tails, nTails, tailRounds, nTailRounds);
+
+		if (params_.getOptimizer() == TrackingParameters.Optimizer.LAP) {
+			assignSubnetwork(headList, tailList);
+		} else {
+			optimizeSubnetwork(headList, tailList);
+		}
+	}
+
+	private static int [] grow(int [] a, int size) {
+		return size <= a.length ? a : Arrays.copyOf(a, Math.max(size, a.length * 2));
+	}
+
+	private static int [] reverseRounds(int [] a, int n, int [] rounds, int nRounds) {
+		int [] r = new int[n];
+		int p = 0;
+		for (int i = nRounds - 1; i >= 0; i--) {
+			int end = i == nRounds - 1 ? n : rounds[i + 1];
+			System.arraycopy(a, rounds[i], r, p, end - rounds[i]);
+			p += end - rounds[i];
+		}
+		return r;
+	}
+
+	/**
+	 * Resolve a subnetwork as a linear assignment problem. Each head bonds either to one of its tails
+	 * or to a dummy column of its own at the cost of threshold_, which stands for the track not
+	 * being continued in this frame. Tails left unassigned start new tracks, at no cost, so the
+	 * matching dummy rows need not be represented. The total bond length is minimized as in
+	 * optimizeSubnetwork(), but in polynomial time.
+	 */
+	private void assignSubnetwork(int [] headList, int [] tailList) {
+		int nHeads = headList.length;
+		int nTails = tailList.length;
+
+		for (int i = 0; i < nTails; i ++) {
+			tailColumn_[tailList[i]] = i;
+		}
+
+		int nPairs = nHeads;
+		for (int i = 0; i < nHeads; i ++) {
+			nPairs += fwdCount_[headList[i]];
+		}
+		int [] rowStart = new int[nHeads + 1];
+		int [] cols = new int[nPairs];
+		double [] costs = new double[nPairs];
+		int p = 0;
+		for (int i = 0; i < nHeads; i ++) {
+			rowStart[i] = p;
+			int trackIdx = headList[i];
+			for (int k = fwdStart_[trackIdx]; k < fwdStart_[trackIdx] + fwdCount_[trackIdx]; k ++) {
+				cols[p] = tailColumn_[fwdTo_[k]];
+				costs[p++] = fwdLength_[k];
+			}
+			cols[p] = nTails + i;
+			costs[p++] = threshold_;
+		}
+		rowStart[nHeads] = p;
+
+		int [] assignment = new LapSolver(nHeads, nTails + nHeads, rowStart, cols, costs).solve();
+
+		for (int i = 0; i < nHeads; i ++) {
+			links_[headList[i]] = assignment[i] < nTails ? tailList[assignment[i]] : -1;
+		}
 	}
 
-	private void optimizeSubnetwork(Vector<Integer> headList, Vector<Integer> tailList) {
+	private void optimizeSubnetwork(int [] headList, int [] tailList) {
+		int nHeads = headList.length;
 		double bestDistanceSum = Double.MAX_VALUE;
 		int curBondIdx = -1;
 		double curDistanceSum = 0;
-		Stack<Integer> stack = new Stack<Integer>();
-//		Stack<Integer> occupiedTails = new Stack<Integer>();
-		HashSet<Integer> occupiedTails = new HashSet<Integer>(headList.size());
-		Stack<HashSet<Integer>> tailStack = new Stack<HashSet<Integer>>();
-		Stack<Double> distanceStack = new Stack<Double>();
-		Stack<Integer> stack_c = null;
-		int trackIdx; 
+		int depth = 0;
+		int [] stack = new int[nHeads];
+		int [] tailStack = new int[nHeads];
+		double [] distanceStack = new double[nHeads];
+		int [] stack_c = new int[nHeads];
+		boolean [] occupiedTails = new boolean[tailList.length];
+		int trackIdx;
 		int tail;
 		double nextBondLength;
-		double [] minExtraLength = new double[headList.size()];
+		double [] minExtraLength = new double[nHeads];
+
+		if (headList.length + tailList.length > 400) {
+			IJ.log("Optimizing a very large network: " + headList.length + "," + tailList.length + ". This might take for ever.");
+		}
 
-		if (headList.size() + tailList.size() > 400) {
-			IJ.log("Optimizing a very large network: " + headList.size() + "," + tailList.size() + ". This might take for ever.");
+		for (int i = 0; i < tailList.length; i ++) {
+			tailColumn_[tailList[i]] = i;
 		}
-		
+
 		double m = 0;
-		for (int i = headList.size()-1 ; i >=0; i--) {
+		for (int i = nHeads - 1 ; i >=0; i--) {
 			minExtraLength[i] = m;
-			m += forwardBonds_[headList.get(i)][0].bondLength;
+			m += fwdLength_[fwdStart_[headList[i]]];
 		}
 
 		while (true) {
-			trackIdx = headList.get(stack.size());
+			trackIdx = headList[depth];
 
-			// try next possible bond		
-			while (curBondIdx  < forwardBonds_[trackIdx].length) { 
+			// try next possible bond
+			while (curBondIdx  < fwdCount_[trackIdx]) {
 				curBondIdx ++ ;
 
 				// test if this is a good bond
-				if (curBondIdx == forwardBonds_[trackIdx].length) { //special case, no bonding
+				if (curBondIdx == fwdCount_[trackIdx]) { //special case, no bonding
 					if (curDistanceSum + threshold_ >= bestDistanceSum) {
 						break;
 					}
-					//curDistanceSum += threshold_;
 					nextBondLength = threshold_;
 					tail = -1;
 				} else {
-					tail = forwardBonds_[trackIdx][curBondIdx].bondTo;
-					if (occupiedTails.contains(tail)) {
+					tail = tailColumn_[fwdTo_[fwdStart_[trackIdx] + curBondIdx]];
+					if (occupiedTails[tail]) {
 						continue; //next bond
 					}
 
-					nextBondLength = forwardBonds_[trackIdx][curBondIdx].bondLength;
+					nextBondLength = fwdLength_[fwdStart_[trackIdx] + curBondIdx];
 
-					if (curDistanceSum + nextBondLength + minExtraLength[stack.size()] >= bestDistanceSum) {
+					if (curDistanceSum + nextBondLength + minExtraLength[depth] >= bestDistanceSum) {
 						break; //fail
 					}
-					//curDistanceSum += bondLengths_.get(trackIdx).get(curBondIdx);
 				}
 
 				//looks ok, push to stack
-				if (stack.size() < headList.size()-1) {
-					stack.push(curBondIdx);
-					tailStack.push(new HashSet<Integer>(occupiedTails));
-					occupiedTails.add(tail);
-					distanceStack.push(curDistanceSum);
+				if (depth < nHeads - 1) {
+					stack[depth] = curBondIdx;
+					tailStack[depth] = tail;
+					distanceStack[depth] = curDistanceSum;
+					depth ++;
+					if (tail >= 0) {
+						occupiedTails[tail] = true;
+					}
 					curBondIdx = -1;
 					curDistanceSum += nextBondLength;
-					trackIdx = headList.get(stack.size());
+					trackIdx = headList[depth];
 				} else { // unless this is the last element
 					bestDistanceSum = curDistanceSum + nextBondLength;
-					stack.push(curBondIdx);
-					stack_c = (Stack<Integer>) stack.clone();
-					stack.pop();
+					System.arraycopy(stack, 0, stack_c, 0, depth);
+					stack_c[depth] = curBondIdx;
 					break;
 				}
 			}
 
-			if (stack.size() > 0) {
-				curBondIdx = stack.pop();
-				occupiedTails = tailStack.pop();
-				curDistanceSum = distanceStack.pop();
+			if (depth > 0) {
+				depth --;
+				curBondIdx = stack[depth];
+				if (tailStack[depth] >= 0) {
+					occupiedTails[tailStack[depth]] = false;
+				}
+				curDistanceSum = distanceStack[depth];
 			} else { // finished here
 				break;
 			}
 
 		} //while
 
-		// got best route. creating new bonds
-		for (int i = 0; i < stack_c.size(); i ++) {			
-			trackIdx = headList.get(i);
-			int bondIdx = stack_c.get(i);
-			if (bondIdx < forwardBonds_[trackIdx].length) {
-				int bondTo = forwardBonds_[trackIdx][bondIdx].bondTo;
-				SmNode n = nodes_[curFrame_][bondTo];
-				activeTracks_.get(trackIdx).add(n); //might be slow if tracks_ is too big
-				assert(isTrackedParticle_[bondTo] == false);
-				isTrackedParticle_[bondTo] = true;
-				backwardBonds_[bondTo] = null;
+		// got best route
+		for (int i = 0; i < nHeads; i ++) {
+			trackIdx = headList[i];
+			int bondIdx = stack_c[i];
+			if (bondIdx < fwdCount_[trackIdx]) {
+				links_[trackIdx] = fwdTo_[fwdStart_[trackIdx] + bondIdx];
+			} else {
+				links_[trackIdx] = -1;
 			}
-			forwardBonds_[trackIdx] = null;
 		}
 	}
 
 
 	private void buildAllPossibleBonds() {
-		forwardBonds_ = new Bond[activeTracks_.size()][];
-		//bondLengths_ = new double[activeTracks_.size()][];
-		backwardBonds_ = new Integer[nodes_[curFrame_].length][];
-		isTrackedParticle_ = new boolean[nodes_[curFrame_].length];
-		
-		Vector<Integer> [] backBonds = new Vector[nodes_[curFrame_].length];
-
-//		for ( int i = 0; i < activeTracks_.size(); i ++) {
-//			forwardBonds_[i] = new LinkedList<Integer>();
-//			bondLengths_[i] = new LinkedList<Double>();
-//		}
-		for ( int i = 0; i < nodes_[curFrame_].length; i ++) {
-			backBonds[i] = new Vector<Integer>();
-		}
-
-		Bond [] bonds = new Bond[nodes_[curFrame_].length];
-		//double [] bondLengths = new double[nodes_[curFrame_].length];
-		int nBonds = 0;
+		int nNodes = curNodes_.length;
+		fwdStart_ = new int[nActive_ + 1];
+		fwdCount_ = new int[nActive_];
+		bwdStart_ = new int[nNodes + 1];
+		closedHeads_ = new BitSet(nActive_);
+		trackedNodes_ = new BitSet(nNodes);
+		tailColumn_ = new int[nNodes];
+		Arrays.fill(tailColumn_, -1);
+
+		int [] candidates = new int[nNodes];
+		boolean useGrid = buildNodeGrid();
 
 		// calculated all possible bonds
-		ListIterator <Trajectory> it = activeTracks_.listIterator();
-		while( it.hasNext() ) {
-			int id = it.nextIndex();
-			SmNode trackHead = it.next().lastElement();
-			
-			nBonds = 0;
-
-			for (int j = 0; j < nodes_[curFrame_].length; j ++) {
-				if (nodes_[curFrame_][j].residue > TrackingParameters.errorThreshold_) {
-					double d = trackHead.distance2(nodes_[curFrame_][j]);
-					if (d <= threshold2_) { // don't miss the = sign
-						Bond b = new Bond();
-						b.bondLength = d;
-						b.bondTo = j;
-						bonds[nBonds++] = b;
-						backBonds[j].add(id);
-//						forwardBonds_[id].add(j);
-//						bondLengths_[id].add(d);
-//						backwardBonds_[j].add(id);
-					} 
+		int nBonds = 0;
+		for (int id = 0; id < nActive_; id ++) {
+			SmNode trackHead = activeTracks_[id].lastElement();
+			fwdStart_[id] = nBonds;
+
+			int nCandidates;
+			if (useGrid) {
+				nCandidates = findCandidates(trackHead, candidates);
+			} else {
+				nCandidates = cellNodes_.length;
+				System.arraycopy(cellNodes_, 0, candidates, 0, nCandidates);
+			}
+
+			for (int k = 0; k < nCandidates; k ++) {
+				int j = candidates[k];
+				double d = trackHead.distance2(curNodes_[j]);
+				if (d <= threshold2_) { // don't miss the = sign
+					if (nBonds == fwdTo_.length) {
+						fwdTo_ = Arrays.copyOf(fwdTo_, nBonds * 2);
+						fwdLength_ = Arrays.copyOf(fwdLength_, nBonds * 2);
+					}
+					fwdLength_[nBonds] = d;
+					fwdTo_[nBonds++] = j;
+					bwdStart_[j + 1] ++;
 				}
 			}
-			
-			forwardBonds_[id] = Arrays.copyOf(bonds, nBonds);
-			if (nBonds > 1) {
-				Arrays.sort(forwardBonds_[id]);
-				
+
+			fwdCount_[id] = nBonds - fwdStart_[id];
+			if (fwdCount_[id] > 1) {
+				sortBonds(fwdStart_[id], nBonds);
+
 				// we won't do network search if the shortest link is small enough
-				if (forwardBonds_[id][0].bondLength <= TrackingParameters.trackerLowerBound_) {
-					forwardBonds_[id] = Arrays.copyOf(forwardBonds_[id], 1);
+				if (fwdLength_[fwdStart_[id]] <= params_.getLowerBound()) {
+					fwdCount_[id] = 1;
+				}
+			}
+		}
+		fwdStart_[nActive_] = nBonds;
+
+		// create backward bonds, including those cut off above
+		for (int j = 0; j < nNodes; j ++) {
+			bwdStart_[j + 1] += bwdStart_[j];
+		}
+		bwdFrom_ = new int[nBonds];
+		int [] fill = Arrays.copyOf(bwdStart_, nNodes);
+		for (int id = 0; id < nActive_; id ++) {
+			for (int k = fwdStart_[id]; k < fwdStart_[id + 1]; k ++) {
+				bwdFrom_[fill[fwdTo_[k]]++] = id;
+			}
+		}
+	}
+
+	/**
+	 * Sort bonds from index 'from' to 'to' by length. The sort is stable, so bonds of equal
+	 * length keep the order of the node list.
+	 */
+	private void sortBonds(int from, int to) {
+		for (int i = from + 1; i < to; i ++) {
+			double len = fwdLength_[i];
+			int bondTo = fwdTo_[i];
+			int j = i - 1;
+			if (to - from > 32) {
+				// binary search for the insertion point, after any equal lengths
+				int lo = from, hi = i;
+				while (lo < hi) {
+					int mid = (lo + hi) >>> 1;
+					if (fwdLength_[mid] <= len) {
+						lo = mid + 1;
+					} else {
+						hi = mid;
+					}
+				}
+				System.arraycopy(fwdLength_, lo, fwdLength_, lo + 1, i - lo);
+				System.arraycopy(fwdTo_, lo, fwdTo_, lo + 1, i - lo);
+				j = lo - 1;
+			} else {
+				while (j >= from && fwdLength_[j] > len) {
+					fwdLength_[j + 1] = fwdLength_[j];
+					fwdTo_[j + 1] = fwdTo_[j];
+					j --;
 				}
 			}
-//			bondLengths_[id] = Arrays.copyOf(bondLengths, nBonds);
-			
+			fwdLength_[j + 1] = len;
+			fwdTo_[j + 1] = bondTo;
+		}
+	}
+
+	/**
+	 * Bucket the valid nodes of the current frame into a uniform grid. The cells are
+	 * at least as large as the maximum displacement, so all nodes within reach of a
+	 * track head lie in the 3x3 block of cells around it.
+	 *
+	 * @return false if the frame can not be gridded, in which case cellNodes_ simply
+	 * lists all valid nodes
+	 */
+	private boolean buildNodeGrid() {
+		SmNode [] nodes = curNodes_;
+		double errorThreshold = params_.getErrorThreshold();
+
+		int nValid = 0;
+		int [] valid = new int[nodes.length];
+		double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+		double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+		boolean finite = true;
+		for (int j = 0; j < nodes.length; j ++) {
+			if (nodes[j].residue > errorThreshold) {
+				valid[nValid++] = j;
+				double x = nodes[j].x, y = nodes[j].y;
+				if (Double.isNaN(x) || Double.isInfinite(x) || Double.isNaN(y) || Double.isInfinite(y)) {
+					finite = false;
+				} else {
+					minX = Math.min(minX, x); maxX = Math.max(maxX, x);
+					minY = Math.min(minY, y); maxY = Math.max(maxY, y);
+				}
+			}
+		}
+		cellNodes_ = Arrays.copyOf(valid, nValid);
+
+		if (!finite || nValid == 0 || Double.isInfinite(threshold_) || Double.isNaN(threshold_)) {
+			return false;
+		}
+
+		// slightly padded so that rounding can not push a bond beyond the neighboring cells
+		double cellSize = threshold_ > 0 ? threshold_ * (1 + 1e-6) : 1.0;
+		long maxCells = 4L * nValid + 16;
+		double nx, ny;
+		// keep the number of cells in proportion to the number of nodes
+		while (true) {
+			nx = Math.floor((maxX - minX) / cellSize) + 1;
+			ny = Math.floor((maxY - minY) / cellSize) + 1;
+			if (nx * ny <= maxCells) {
+				break;
+			}
+			cellSize *= 2;
 		}
-		
-		// create backward bons
-		for (int i = 0; i < backBonds.length; i ++) {
-			backwardBonds_[i] = new Integer[backBonds[i].size()];
-			backBonds[i].toArray(backwardBonds_[i]);
+		cellSize_ = cellSize;
+		gridX0_ = minX;
+		gridY0_ = minY;
+		nCellX_ = (int) nx;
+		nCellY_ = (int) ny;
+
+		// counting sort, which keeps the nodes within a cell in ascending order
+		int [] cellOf = new int[nValid];
+		cellStart_ = new int[nCellX_ * nCellY_ + 1];
+		for (int k = 0; k < nValid; k ++) {
+			SmNode n = nodes[cellNodes_[k]];
+			int cx = Math.min((int) ((n.x - minX) / cellSize), nCellX_ - 1);
+			int cy = Math.min((int) ((n.y - minY) / cellSize), nCellY_ - 1);
+			cellOf[k] = cy * nCellX_ + cx;
+			cellStart_[cellOf[k] + 1] ++;
 		}
+		for (int c = 0; c < nCellX_ * nCellY_; c ++) {
+			cellStart_[c + 1] += cellStart_[c];
+		}
+		int [] fill = Arrays.copyOf(cellStart_, nCellX_ * nCellY_);
+		for (int k = 0; k < nValid; k ++) {
+			valid[fill[cellOf[k]]++] = cellNodes_[k];
+		}
+		System.arraycopy(valid, 0, cellNodes_, 0, nValid);
 
+		return true;
+	}
+
+	/**
+	 * Collect the nodes in the cells neighboring a track head.
+	 *
+	 * @param head the track head
+	 * @param candidates receives the node indices in ascending order
+	 * @return the number of candidates
+	 */
+	private int findCandidates(SmNode head, int [] candidates) {
+		double fx = Math.floor((head.x - gridX0_) / cellSize_);
+		double fy = Math.floor((head.y - gridY0_) / cellSize_);
+		int x0 = (int) Math.max(0, fx - 1), x1 = (int) Math.min(nCellX_ - 1, fx + 1);
+		int y0 = (int) Math.max(0, fy - 1), y1 = (int) Math.min(nCellY_ - 1, fy + 1);
+
+		int n = 0;
+		for (int cy = y0; cy <= y1; cy ++) {
+			for (int cx = x0; cx <= x1; cx ++) {
+				int c = cy * nCellX_ + cx;
+				for (int k = cellStart_[c]; k < cellStart_[c + 1]; k ++) {
+					candidates[n++] = cellNodes_[k];
+				}
+			}
+		}
+		// bonds of equal length have to keep the order of the node list
+		Arrays.sort(candidates, 0, n);
+		return n;
 	}
 
 	private void trivialBonds() {
 		// search all trivial bonds
-		for (int i = 0; i < forwardBonds_.length; i++ ) {
-			if (forwardBonds_[i].length == 1) {
-				int bondTo = forwardBonds_[i][0].bondTo;
-				if (backwardBonds_[bondTo].length == 1) {
+		for (int i = 0; i < nActive_; i++ ) {
+			if (fwdCount_[i] == 1) {
+				int bondTo = fwdTo_[fwdStart_[i]];
+				if (bwdStart_[bondTo + 1] - bwdStart_[bondTo] == 1) {
 					// trivial bond
-					forwardBonds_[i] = null;
-					backwardBonds_[bondTo] = null;
-					SmNode n = nodes_[curFrame_][bondTo];
-					activeTracks_.get(i).add(n);
-					isTrackedParticle_[bondTo] = true;
+					closedHeads_.set(i);
+					activeTracks_[i].add(curNodes_[bondTo]);
+					trackedNodes_.set(bondTo);
 					continue;
 				}
-			} 
+			}
 
-			for (int j = 0; j < forwardBonds_[i].length; j++) {
-				forwardBonds_[i][j].bondLength = Math.sqrt(forwardBonds_[i][j].bondLength);
-//				bondLengths_[i][j]=Math.sqrt(bondLengths_[i][j]);
+			for (int k = fwdStart_[i]; k < fwdStart_[i] + fwdCount_[i]; k++) {
+				fwdLength_[k] = Math.sqrt(fwdLength_[k]);
 			}
-		
+
 		}
 	} // TrivialBonds()
 
+	private void addActiveTrack(SmNode node) {
+		if (nActive_ == activeTracks_.length) {
+			activeTracks_ = Arrays.copyOf(activeTracks_, nActive_ * 2);
+		}
+		Trajectory t = new Trajectory();
+		t.add(node);
+		activeTracks_[nActive_++] = t;
+	}
 
 	/**
 	 * Create trajectories.
 	 *
 	 * @return the trajectories
 	 */
-	public Vector<Trajectory> doTracking() {
-		threshold_ = TrackingParameters.trackerMaxDsp_;
-		threshold2_ = threshold_ * threshold_;
-		maxBlinking_ = TrackingParameters.trackerMaxBlinking_;
+	public ArrayList<Trajectory> doTracking() {
 		nodes_ = dataset_.nodes_;
+		trajectories_ = new ArrayList<Trajectory>();
+		sink_ = new TrajectorySink() {
+			@Override
+			public void trajectoryFinished(Trajectory trajectory) {
+				trajectories_.add(trajectory);
+			}
+		};
 
-		activeTracks_ = new LinkedList<Trajectory>();
-		trajectories_ = new Vector<Trajectory>();
-		wasted_ = new Trajectory();
+		for (int i = 0; i < nodes_.length; i ++) {
+			accept(i, nodes_[i]);
+		}
+		finish();
 
-		//initial track # = first frame particle #  
-		for (int i = 0; i < nodes_[0].length; i ++ ) {
-			Trajectory t;
-			t = new Trajectory();
-			if ( nodes_[0][i].residue > TrackingParameters.errorThreshold_) {
-				t.add(nodes_[0][i]);
-				activeTracks_.add(t);
-			} else {
-				wasted_.add(nodes_[0][i]);
+		nodes_ = null;
+		return trajectories_;
+
+	} //doTracking
+
+	/**
+	 * Add the particles of the next frame. Frames may be added in any order. Those ahead of the
+	 * next frame to be tracked are held back until the frames before them are in, and the sink
+	 * is called from within this method. May be called from several threads.
+	 *
+	 * @param frameIndex Index of the frame, starting from 0
+	 * @param nodes The particles of the frame
+	 */
+	public synchronized void accept(int frameIndex, SmNode [] nodes) {
+		if (frameIndex < nextFrame_ || pending_.containsKey(frameIndex)) {
+			throw new IllegalArgumentException("Frame " + frameIndex + " has already been added");
+		}
+		pending_.put(frameIndex, nodes == null ? new SmNode[0] : nodes);
+
+		SmNode [] next;
+		while ((next = pending_.remove(nextFrame_)) != null) {
+			trackFrame(next);
+		}
+	}
+
+	/**
+	 * Track the frames still held back, with missing frames taken as empty, and pass all
+	 * remaining trajectories to the sink. The nodes that were not tracked come last, as one
+	 * deleted trajectory. The module can be used for a new movie afterwards.
+	 */
+	public synchronized void finish() {
+		while (! pending_.isEmpty()) {
+			SmNode [] next = pending_.remove(nextFrame_);
+			trackFrame(next == null ? new SmNode[0] : next);
+		}
+
+		if (activeTracks_ != null) {
+			for (int i = 0; i < nActive_; i ++) {
+				sink_.trajectoryFinished(activeTracks_[i]);
+			}
+			if (wasted_.size() > 0) {
+				wasted_.deleted = true;
+				sink_.trajectoryFinished(wasted_);
 			}
 		}
 
-		curFrame_ = 1;
-		while (curFrame_ < nodes_.length) {
-			
+		activeTracks_ = null;
+		nActive_ = 0;
+		if (pool_ != null) {
+			pool_.shutdown();
+			pool_ = null;
+		}
+		wasted_ = null;
+		curNodes_ = null;
+		nextFrame_ = 0;
+		nFinished_ = 0;
+	}
+
+	private void startTracking() {
+		threshold_ = params_.getMaxDisplacement();
+		threshold2_ = threshold_ * threshold_;
+		maxBlinking_ = params_.getMaxBlinking();
+
+		activeTracks_ = new Trajectory[Math.max(16, curNodes_.length)];
+		nActive_ = 0;
+		wasted_ = new Trajectory();
+		pool_ = nThreads_ > 1 ? new ForkJoinPool(nThreads_) : null;
+	}
+
+	private void trackFrame(SmNode [] nodes) {
+		curFrame_ = nextFrame_ ++;
+		curNodes_ = nodes;
+
+		if (activeTracks_ == null) {
+			startTracking();
+		}
+
+		if (curFrame_ > 0) {
 			if (curFrame_ % 50 == 0 ) {
 				IJ.log("Frame " + curFrame_ + ", "
-						+ activeTracks_.size() + " active tracks, " 
-						+ trajectories_.size() + " stopped tracks."
-						+ nodes_[curFrame_].length + "new nodes");
+						+ nActive_ + " active tracks, "
+						+ nFinished_ + " stopped tracks."
+						+ curNodes_.length + "new nodes");
+			}
+			if (nodes_ != null) {
+				IJ.showProgress(curFrame_, nodes_.length);
 			}
-			IJ.showProgress(curFrame_, nodes_.length);
 			buildAllPossibleBonds();
 			trivialBonds();
+			optimizeAllSubnetworks();
 
-			for ( int i = 0; i < forwardBonds_.length; i ++) {
-				if (forwardBonds_[i] != null && forwardBonds_[i].length > 0) {
-					clusterAndOptimize(i);
-				}
-			}
-
-			//remove all tracks that has been lost for too long
-			//int firstPos = xytData_.getFirstOfFrame(curFrame_);
-			Iterator<Trajectory> it = activeTracks_.iterator(); 
-			while ( it.hasNext() ) {
-				Trajectory track = it.next();
+			//remove all tracks that has been lost for too long, keeping the order of the others
+			int nKept = 0;
+			for (int i = 0; i < nActive_; i ++) {
+				Trajectory track = activeTracks_[i];
 				int frame = track.lastElement().frame;
 				if (curFrame_ - frame >= maxBlinking_) {
-					it.remove();
-					trajectories_.add(track);
-				} 
+					nFinished_ ++;
+					sink_.trajectoryFinished(track);
+				} else {
+					activeTracks_[nKept++] = track;
+				}
 			}
+			Arrays.fill(activeTracks_, nKept, nActive_, null);
+			nActive_ = nKept;
+		} else {
+			trackedNodes_ = new BitSet(0);
+		}
 
-			//add new particles into the track list
-			for (int i = 0; i < nodes_[curFrame_].length; i++) {
-				if (! isTrackedParticle_[i]) {
-					assert(backwardBonds_[i] != null);
-					if (nodes_[curFrame_][i].residue > TrackingParameters.errorThreshold_) {
-						Trajectory t;
-						t = new Trajectory();
-						t.add(nodes_[curFrame_][i]);
-						activeTracks_.add(t);
-					} else {
-						wasted_.add(nodes_[curFrame_][i]);
-					}
+		//add new particles into the track list
+		for (int i = 0; i < curNodes_.length; i++) {
+			if (! trackedNodes_.get(i)) {
+				if (curNodes_[i].residue > params_.getErrorThreshold()) {
+					addActiveTrack(curNodes_[i]);
+				} else {
+					wasted_.add(curNodes_[i]);
 				}
 			}
-
-			curFrame_ ++;
-		} //while
-
-		// add all tracks to stoppedTracks list
-		Iterator<Trajectory> it = activeTracks_.iterator(); 
-		while (it.hasNext()) {
-			Trajectory track = it.next();
-			trajectories_.add(track);
-		}
-		if (wasted_ != null && wasted_.size() > 0) {
-			wasted_.deleted = true;
-			trajectories_.add(wasted_);
 		}
-		activeTracks_.clear();
-		activeTracks_ = null;
-		nodes_ = null;
-		wasted_ = null;
-		
-		return trajectories_;
-
-	} //doTracking
+	}
 }
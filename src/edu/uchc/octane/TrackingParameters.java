@@ -24,45 +24,148 @@ import ij.gui.DialogListener;
 import ij.gui.GenericDialog;
 
 /**
- * The tracking parameters dialog .
+ * Tracking parameters. The object is immutable, so each tracking run keeps the parameters it was started with.
+ * The dialog produces new parameter objects and remembers the last values in the preferences.
  */
 public class TrackingParameters {
 
+	/** Methods to resolve a subnetwork of competing bonds */
+	public enum Optimizer {EXHAUSTIVE, LAP};
+
 	final static String MAX_BLINKING_KEY = "trackerMaxBlinking";
 	final static String MAX_DISPLACEMENT_KEY = "trackerMaxDsp";
 	final static String ERROR_THRESHOLD_KEY = "errorThreshold";
 	final static String LOWER_BOUND_KEY = "lowerBound";
+	final static String OPTIMIZER_KEY = "trackerOptimizer";
 	
 	private static Preferences prefs_ = GlobalPrefs.getRoot().node(TrackingParameters.class.getName());
-
-	public static double trackerMaxDsp_ = prefs_.getDouble(MAX_DISPLACEMENT_KEY, 400);
-	public static int trackerMaxBlinking_ = prefs_.getInt(MAX_BLINKING_KEY, 0);
-	public static double errorThreshold_ = prefs_.getDouble(ERROR_THRESHOLD_KEY, -1.0);
-	public static double trackerLowerBound_ = prefs_.getDouble(LOWER_BOUND_KEY, 20);
 	
+	final private double maxDisplacement_;
+	final private int maxBlinking_;
+	final private double errorThreshold_;
+	final private double lowerBound_;
+	final private Optimizer optimizer_;
+
+	/**
+	 * Constructor
+	 * @param maxDisplacement Max displacement between frames (pixels)
+	 * @param maxBlinking Max number of frames a particle can be missing from a trajectory
+	 * @param errorThreshold Particles with residue at or below this value are not tracked
+	 * @param lowerBound Squared bond length (pixels^2) below which the shortest bond is taken without network optimization
+	 */
+	public TrackingParameters(double maxDisplacement, int maxBlinking, double errorThreshold, double lowerBound) {
+		this(maxDisplacement, maxBlinking, errorThreshold, lowerBound, Optimizer.EXHAUSTIVE);
+	}
+
+	/**
+	 * Constructor
+	 * @param maxDisplacement Max displacement between frames (pixels)
+	 * @param maxBlinking Max number of frames a particle can be missing from a trajectory
+	 * @param errorThreshold Particles with residue at or below this value are not tracked
+	 * @param lowerBound Squared bond length (pixels^2) below which the shortest bond is taken without network optimization
+	 * @param optimizer Method to resolve subnetworks of competing bonds
+	 */
+	public TrackingParameters(double maxDisplacement, int maxBlinking, double errorThreshold, double lowerBound, Optimizer optimizer) {
+		if (maxDisplacement < 0 || maxBlinking < 0) {
+			throw new IllegalArgumentException("Tracking parameters must not be negative");
+		}
+		maxDisplacement_ = maxDisplacement;
+		maxBlinking_ = maxBlinking;
+		errorThreshold_ = errorThreshold;
+		lowerBound_ = lowerBound;
+		optimizer_ = optimizer;
+	}
+
+	/**
+	 * Get the parameters last used
+	 * @return The parameters stored in the preferences
+	 */
+	static public TrackingParameters getDefault() {
+		return new TrackingParameters(
+				prefs_.getDouble(MAX_DISPLACEMENT_KEY, 400),
+				prefs_.getInt(MAX_BLINKING_KEY, 0),
+				prefs_.getDouble(ERROR_THRESHOLD_KEY, -1.0),
+				prefs_.getDouble(LOWER_BOUND_KEY, 20),
+				getDefaultOptimizer());
+	}
+
+	static private Optimizer getDefaultOptimizer() {
+		try {
+			return Optimizer.valueOf(prefs_.get(OPTIMIZER_KEY, Optimizer.EXHAUSTIVE.name()));
+		} catch (IllegalArgumentException e) {
+			return Optimizer.EXHAUSTIVE;
+		}
+	}
+
+	/**
+	 * @return Max displacement between frames (pixels)
+	 */
+	public double getMaxDisplacement() {
+		return maxDisplacement_;
+	}
+
+	/**
+	 * @return Max number of frames a particle can be missing from a trajectory
+	 */
+	public int getMaxBlinking() {
+		return maxBlinking_;
+	}
+
+	/**
+	 * @return Particles with residue at or below this value are not tracked
+	 */
+	public double getErrorThreshold() {
+		return errorThreshold_;
+	}
+
+	/**
+	 * @return Squared bond length (pixels^2) below which the shortest bond is taken without network optimization
+	 */
+	public double getLowerBound() {
+		return lowerBound_;
+	}
+
+	/**
+	 * @return Method to resolve subnetworks of competing bonds: an exhaustive search, 
+	 * or a linear assignment that takes polynomial time on dense clusters
+	 */
+	public Optimizer getOptimizer() {
+		return optimizer_;
+	}
+
 	/**
 	 * Open dialog.
+	 * @param pixelSize The pixel size (nm)
+	 * @return The new parameters, or null if the dialog was cancelled
 	 */
-	static public boolean openDialog(final double pixelSize) {
+	static public TrackingParameters openDialog(final double pixelSize) {
 	
+		final TrackingParameters defaults = getDefault();
+
 		GenericDialog dlg = new GenericDialog("Tracking Options");
 		
 		dlg.addMessage("- Tracking -");
-		dlg.addNumericField("Max Displacement (nm)", trackerMaxDsp_ * pixelSize, 1);
-		dlg.addNumericField("Max Blinking", (double)trackerMaxBlinking_, 0);
-		//dlg.addNumericField("Min Displacement (nm)", (double)trackerLowerBound_ * pixelSize, 3);
-		dlg.addNumericField("Confidence Threshold", errorThreshold_, -1);
+		dlg.addNumericField("Max Displacement (nm)", defaults.maxDisplacement_ * pixelSize, 1);
+		dlg.addNumericField("Max Blinking", (double)defaults.maxBlinking_, 0);
+		//dlg.addNumericField("Min Displacement (nm)", (double)defaults.lowerBound_ * pixelSize, 3);
+		dlg.addNumericField("Confidence Threshold", defaults.errorThreshold_, -1);
+		String [] optimizers = {"Exhaustive search", "Linear assignment"};
+		dlg.addChoice("Network Optimization", optimizers, optimizers[defaults.optimizer_.ordinal()]);
+
+		// the listener is also called when OK is pressed
+		final double [] values = {defaults.maxDisplacement_, defaults.maxBlinking_, defaults.errorThreshold_, defaults.optimizer_.ordinal()};
 
 		dlg.addDialogListener(new DialogListener() {
 
 			@Override
 			public boolean dialogItemChanged(GenericDialog d, AWTEvent e) {
 				
-				trackerMaxDsp_ = d.getNextNumber() / pixelSize;
-				trackerMaxBlinking_ = (int) d.getNextNumber();
-				errorThreshold_ = d.getNextNumber();
+				values[0] = d.getNextNumber() / pixelSize;
+				values[1] = (int) d.getNextNumber();
+				values[2] = d.getNextNumber();
+				values[3] = d.getNextChoiceIndex();
 				
-				if (trackerMaxDsp_ < 0 || trackerMaxBlinking_ < 0) {
+				if (values[0] < 0 || values[1] < 0) {
 					return false;
 				} else {
 					return true;
@@ -74,13 +177,17 @@ public class TrackingParameters {
 		dlg.showDialog();
 		
 		if (dlg.wasCanceled())
-			return false;
+			return null;
 		
-		prefs_.putInt(MAX_BLINKING_KEY,trackerMaxBlinking_);
-		prefs_.putDouble(MAX_DISPLACEMENT_KEY, trackerMaxDsp_);
-		prefs_.putDouble(ERROR_THRESHOLD_KEY , errorThreshold_);
-		prefs_.putDouble(LOWER_BOUND_KEY, trackerLowerBound_);
+		TrackingParameters params = new TrackingParameters(values[0], (int) values[1], values[2], defaults.lowerBound_, 
+				Optimizer.values()[(int) values[3]]);
+
+		prefs_.putInt(MAX_BLINKING_KEY, params.maxBlinking_);
+		prefs_.putDouble(MAX_DISPLACEMENT_KEY, params.maxDisplacement_);
+		prefs_.putDouble(ERROR_THRESHOLD_KEY , params.errorThreshold_);
+		prefs_.putDouble(LOWER_BOUND_KEY, params.lowerBound_);
+		prefs_.put(OPTIMIZER_KEY, params.optimizer_.name());
 
-		return true;
+		return params;
 	}
 }
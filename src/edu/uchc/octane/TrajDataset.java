@@ -19,20 +19,17 @@ package edu.uchc.octane;
 
 import ij.IJ;
 
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Scanner;
 import java.util.Vector;
 
@@ -41,11 +38,16 @@ import java.util.Vector;
  */
 public class TrajDataset{
 	
-	Vector<Trajectory> trajectories_;
+	ArrayList<Trajectory> trajectories_;
 	SmNode [][] nodes_; //nodes_[frame][offset]
 	double pixelSize_;
 
-	TrackingModule tm_;
+	private LocalizationTable localizations_;
+
+	// flags and notes of trajectories not created yet, for a dataset opened from a file
+	private byte [] savedFlags_ = null;
+	private HashMap<Integer, String> savedNotes_ = null;
+
 	DriftCorrectionModule dcm_;
 
 	class Bond implements Comparable<Bond> {
@@ -61,8 +63,7 @@ public class TrajDataset{
 	 * Constructor.
 	 */
 	public TrajDataset() {
-		trajectories_ = new Vector<Trajectory>();
-		tm_ = new TrackingModule(this);
+		setTrajectories(new ArrayList<Trajectory>());
 		dcm_ = new DriftCorrectionModule(this);
 		
 		pixelSize_ = GlobalPrefs.defaultPixelSize_;
@@ -87,13 +88,66 @@ public class TrajDataset{
 	}
 
 	/**
-	 * Returns a trajectory by index.
+	 * Returns a trajectory by index. For a dataset opened from a file, the trajectory
+	 * object is created on the first request. Not synchronized.
 	 *
 	 * @param i the index
 	 * @return the trajectory by index
 	 */
 	public Trajectory getTrajectoryByIndex(int i) {
-		return trajectories_.get(i);
+		Trajectory t = trajectories_.get(i);
+		if (t == null) {
+			t = new Trajectory();
+			int start = localizations_.getTrajectoryStart(i);
+			t.attach(localizations_, start, localizations_.getTrajectoryEnd(i) - start);
+			t.marked = (savedFlags_[i] & DatasetFile.FLAG_MARKED) != 0;
+			t.deleted = (savedFlags_[i] & DatasetFile.FLAG_DELETED) != 0;
+			t.note = savedNotes_.get(i);
+			trajectories_.set(i, t);
+		}
+		return t;
+	}
+
+	/**
+	 * Whether a trajectory is deleted, without creating the trajectory object.
+	 *
+	 * @param i the index
+	 * @return true if deleted
+	 */
+	public boolean isDeleted(int i) {
+		Trajectory t = trajectories_.get(i);
+		if (t == null) {
+			return (savedFlags_[i] & DatasetFile.FLAG_DELETED) != 0;
+		}
+		return t.deleted;
+	}
+
+	/**
+	 * Whether a trajectory is marked, without creating the trajectory object.
+	 *
+	 * @param i the index
+	 * @return true if marked
+	 */
+	boolean isMarked(int i) {
+		Trajectory t = trajectories_.get(i);
+		if (t == null) {
+			return (savedFlags_[i] & DatasetFile.FLAG_MARKED) != 0;
+		}
+		return t.marked;
+	}
+
+	/**
+	 * The note of a trajectory, without creating the trajectory object.
+	 *
+	 * @param i the index
+	 * @return the note or null
+	 */
+	String getNote(int i) {
+		Trajectory t = trajectories_.get(i);
+		if (t == null) {
+			return savedNotes_.get(i);
+		}
+		return t.note;
 	}
 
 	/**
@@ -105,35 +159,61 @@ public class TrajDataset{
 		return trajectories_.size();
 	}
 
+	/**
+	 * Column store of all localizations, in trajectory order.
+	 *
+	 * @return the localization table
+	 */
+	public LocalizationTable getLocalizations() {
+		return localizations_;
+	}
+
+	/**
+	 * Replace all trajectories. The nodes are copied into a new localization table
+	 * and the trajectories become views of the table.
+	 *
+	 * @param trajectories the trajectories
+	 */
+	void setTrajectories(ArrayList<Trajectory> trajectories) {
+		LocalizationTable table = LocalizationTable.fromTrajectories(trajectories);
+		for (int i = 0; i < trajectories.size(); i++) {
+			trajectories.get(i).attach(table, table.getTrajectoryStart(i));
+		}
+		trajectories_ = trajectories;
+		localizations_ = table;
+		savedFlags_ = null;
+		savedNotes_ = null;
+	}
+
+	/**
+	 * Use the trajectories of an existing table. Trajectory objects are created when requested.
+	 *
+	 * @param table the localization table
+	 * @param flags DatasetFile.FLAG_MARKED and FLAG_DELETED of each trajectory
+	 * @param notes notes by trajectory index
+	 */
+	void setTrajectories(LocalizationTable table, byte [] flags, HashMap<Integer, String> notes) {
+		trajectories_ = new ArrayList<Trajectory>(Collections.<Trajectory>nCopies(table.getNumTrajectories(), null));
+		localizations_ = table;
+		savedFlags_ = flags;
+		savedNotes_ = notes;
+	}
+
 	void rebuildNodes() {
 		if (trajectories_ == null || trajectories_.size() == 0) 
 			return;
 
-		ArrayList<ArrayList<SmNode>> framelist = new ArrayList<ArrayList<SmNode>>();
-		for (int i = 0; i < trajectories_.size(); i++) {
-			Trajectory t = trajectories_.get(i);
-			for (int j = 0; j < t.size(); j++) {
-				SmNode n = t.get(j);
-				while (n.frame > framelist.size()) {
-					framelist.add(new ArrayList<SmNode>());
-				}
-				framelist.get(n.frame-1).add(n);
-			}
-		}
-
-		nodes_ = new SmNode[framelist.size()][];
-		for (int i = 0 ; i < nodes_.length; i++) {
-			nodes_[i] = new SmNode[framelist.get(i).size()];
-			framelist.get(i).toArray(nodes_[i]);
-		}
+		nodes_ = getLocalizations().createNodesByFrame();
 	}
 
 	/**
 	 * Rebuilt trajectories.
+	 *
+	 * @param params the tracking parameters
 	 */
-	public void reTrack() {
+	public void reTrack(TrackingParameters params) {
 		rebuildNodes();
-		doTracking();
+		doTracking(params);
 	}
 
 	/**
@@ -143,17 +223,17 @@ public class TrajDataset{
 	 * @throws IOException 
 	 */
 	public void writePositionsToText(File file) throws IOException {
-		rebuildNodes();
-		BufferedWriter bw = new BufferedWriter(new FileWriter(file));
-		for (int i = 0; i < nodes_.length; i ++ ) {
-			for (int j = 0; j < nodes_[i].length; j++) {
-				SmNode s = nodes_[i][j];
-				bw.write(s.toString());
-				bw.write('\n');
-			}
-		}
-		bw.close();
-		nodes_ = null;
+		new TextExporter(getLocalizations(), GlobalPrefs.nThread_).writePositions(file);
+	}
+
+	/**
+	 * Write trajectories to text.
+	 *
+	 * @param file the file
+	 * @throws IOException
+	 */
+	public void writeTrajectoriesToText(File file) throws IOException {
+		new TextExporter(getLocalizations(), GlobalPrefs.nThread_).writeTrajectories(file, null, null);
 	}
 
 	/**
@@ -163,13 +243,7 @@ public class TrajDataset{
 	 * @throws IOException Signals that an I/O exception has occurred.
 	 */
 	public void writeTrajectoriesToText(Writer w)throws IOException {
-		for (int i = 0; i < trajectories_.size(); i ++ ) {
-			for (int j = 0; j < trajectories_.get(i).size(); j++) {
-				SmNode s = trajectories_.get(i).get(j);
-				w.append(s.toString());
-				w.append(", " + i + "\n");				
-			}
-		}
+		getLocalizations().writeTrajectories(w);
 		w.close(); 		
 	}
 
@@ -180,21 +254,12 @@ public class TrajDataset{
 	 * @throws IOException Signals that an I/O exception has occurred.
 	 */
 	public void saveDataset(File file) throws IOException {
-		ObjectOutputStream out;
-		BufferedOutputStream fs;
-		
-		fs = new BufferedOutputStream(new FileOutputStream(file));
-		out = new ObjectOutputStream(fs);
-		
-		out.writeObject(trajectories_);
-		out.writeDouble(pixelSize_);
-		
-		out.close();
-		fs.close();
+		DatasetFile.write(this, file);
 	}
 
 	/**
-	 * Load dataset from disk.
+	 * Load dataset from disk. Files saved by older versions as serialized objects are also accepted.
+	 * A dataset file is memory mapped and its localizations are read when needed.
 	 *
 	 * @param file the file
 	 * @return a new dataset
@@ -202,16 +267,36 @@ public class TrajDataset{
 	 * @throws ClassNotFoundException
 	 */
 	static public TrajDataset loadDataset(File file) throws IOException, ClassNotFoundException {
+		if (DatasetFile.isDatasetFile(file)) {
+			return DatasetFile.open(file);
+		}
+		return loadLegacyDataset(file);
+	}
+
+	/**
+	 * Load dataset saved as serialized Vector&lt;Trajectory&gt; by older versions.
+	 *
+	 * @param file the file
+	 * @return a new dataset
+	 * @throws IOException 
+	 * @throws ClassNotFoundException
+	 */
+	static TrajDataset loadLegacyDataset(File file) throws IOException, ClassNotFoundException {
 		ObjectInputStream in;
 		FileInputStream fs;
 		
 		TrajDataset dataset = new TrajDataset();
 		
 		fs = new FileInputStream(file);
-		in = new ObjectInputStream(fs);
+		in = new LegacyTrajectory.DatasetInputStream(fs);
 		
-		Vector<Trajectory> trajectories = (Vector<Trajectory>) in.readObject();
-		dataset.trajectories_ = trajectories;
+		Vector<LegacyTrajectory> saved = (Vector<LegacyTrajectory>) in.readObject();
+		ArrayList<Trajectory> trajectories = new ArrayList<Trajectory>(saved.size());
+		for (int i = 0; i < saved.size(); i++) {
+			trajectories.add(saved.get(i).toTrajectory());
+		}
+		saved = null;
+		dataset.setTrajectories(trajectories);
 
 		try {
 			in.readDouble();
@@ -232,32 +317,7 @@ public class TrajDataset{
 	 * @throws IOException
 	 */
 	static public TrajDataset importDatasetFromPositionsText(File file) throws IOException {
-		BufferedReader br;
-		String line;
-		ArrayList<ArrayList<SmNode>> nodes = new ArrayList<ArrayList<SmNode>>(); 
-		br = new BufferedReader(new FileReader(file));
-		while (null != (line = br.readLine())) {
-			if (line.startsWith("#") || line.startsWith("//")) {
-				continue;
-			}
-			if (line.trim().isEmpty()) {
-				continue;
-			}
-			SmNode node = new SmNode(line);
-			while (node.frame > nodes.size()) {
-				nodes.add(new ArrayList<SmNode>());
-			}
-			nodes.get(node.frame-1).add(node);
-		}
-		br.close();
-
-		SmNode[][] n = new SmNode[nodes.size()][];
-		for (int i = 0; i < nodes.size(); i++) {
-			n[i] = new SmNode[nodes.get(i).size()];
-			nodes.get(i).toArray(n[i]);
-		}
-
-		return createDatasetFromNodes(n);
+		return createDatasetFromNodes(new CsvReader(file, GlobalPrefs.nThread_).readPositions());
 	}
 
 	/**
@@ -269,48 +329,20 @@ public class TrajDataset{
 	 */
 	static public TrajDataset importDatasetFromText(File file) throws IOException {
 
+		CsvReader reader = new CsvReader(file, GlobalPrefs.nThread_);
 		TrajDataset dataset;
 
-		Trajectory oneTraj = new Trajectory();
-		int cur_cnt = -1;
-		String line;
-		BufferedReader br = new BufferedReader(new FileReader(file));
-
-		dataset = new TrajDataset();
-
-		while (null != (line = br.readLine())) {
-			if (line.startsWith("#") || line.startsWith("//")) {
-				continue;
-			}
-			if (line.trim().isEmpty()) {
-				continue;
-			}
-			try {
-				int c = line.lastIndexOf(',');
-				int cnt = Integer.parseInt(line.substring(c + 1).trim());
-				if (cur_cnt == cnt - 1) {
-					oneTraj = new Trajectory();
-					dataset.trajectories_.add(oneTraj);
-					cur_cnt = cnt;
-				} 
-				if (cur_cnt == cnt) {
-					SmNode node = new SmNode(line.substring(0, c)); 
-					oneTraj.add(node);
-					//dataset.nodes_.add(node);
-				} else {
-					IJ.log("TraceID not countinous. All traces will be rebuilt");
-					br.close();
-					return importDatasetFromPositionsText(file);
-				}
-			} catch (java.lang.NumberFormatException e) {
-				br.close();
-				IJ.log("No trace ID. Treating data as simple coordinates");
-				return importDatasetFromPositionsText(file);
-			}
+		try {
+			dataset = reader.readTrajectories();
+		} catch (NumberFormatException e) {
+			IJ.log("No trace ID. Treating data as simple coordinates");
+			return createDatasetFromNodes(reader.readPositions());
 		}
 
-		br.close();
-		assert (dataset.trajectories_.size() > 0);	
+		if (dataset == null) {
+			IJ.log("TraceID not countinous. All traces will be rebuilt");
+			return createDatasetFromNodes(reader.readPositions());
+		}
 
 		return dataset;
 	}
@@ -320,21 +352,45 @@ public class TrajDataset{
 	 * Creates the dataset from array of node lists.
 	 *
 	 * @param nodes the 2D array of nodes
+	 * @param params the tracking parameters
 	 * @return a new dataset
 	 */
-	static public TrajDataset createDatasetFromNodes(SmNode[][] nodes) {
+	static public TrajDataset createDatasetFromNodes(SmNode[][] nodes, TrackingParameters params) {
 
 		TrajDataset dataset;
 
 		dataset = new TrajDataset();
 		dataset.nodes_ = nodes;
-		dataset.doTracking();
+		dataset.doTracking(params);
 		
 		return dataset;		
 	}
 
-	protected void doTracking() {
-		trajectories_ = tm_.doTracking();
+	/**
+	 * Creates the dataset from trajectories that have already been tracked, e.g. by a
+	 * TrackingModule fed frame by frame.
+	 *
+	 * @param trajectories the trajectories
+	 * @return a new dataset
+	 */
+	static public TrajDataset createDatasetFromTrajectories(ArrayList<Trajectory> trajectories) {
+		TrajDataset dataset = new TrajDataset();
+		dataset.setTrajectories(trajectories);
+		return dataset;
+	}
+
+	/**
+	 * Creates the dataset from array of node lists, using the last tracking parameters.
+	 *
+	 * @param nodes the 2D array of nodes
+	 * @return a new dataset
+	 */
+	static public TrajDataset createDatasetFromNodes(SmNode[][] nodes) {
+		return createDatasetFromNodes(nodes, TrackingParameters.getDefault());
+	}
+
+	protected void doTracking(TrackingParameters params) {
+		setTrajectories(new TrackingModule(this, params).doTracking());
 	}
 
 	/**
@@ -345,9 +401,9 @@ public class TrajDataset{
 	public int getMaximumFrameNumber() {
 		int maxFrameNum = -1;
 		for (int i = 0; i < trajectories_.size(); i++) {
-			Trajectory t = trajectories_.get(i);
-			if (!t.deleted) {
-				int f = t.get(t.size()-1).frame;
+			int end = localizations_.getTrajectoryEnd(i);
+			if (!isDeleted(i) && end > localizations_.getTrajectoryStart(i)) {
+				int f = localizations_.getFrame(end - 1);
 				if (maxFrameNum < f) {
 					maxFrameNum = f;
 				}
@@ -17,17 +17,29 @@
 //
 package edu.uchc.octane;
 
-import java.util.Vector;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 /**
  * Represents a trajectory.
- * It is a vector.
+ * While a trajectory is being built (e.g. during tracking), nodes are appended to its own buffer.
+ * Once the dataset is assembled, the trajectory becomes a range of rows of the dataset's
+ * LocalizationTable and the buffer is released. Access is not synchronized.
+ *
+ * get() returns a new SmNode for a table backed trajectory. Loops over many nodes should use
+ * the primitive accessors (getX(), getFrame(), distance2(), ...) instead.
  */
-public class Trajectory extends Vector<SmNode> {
+public class Trajectory implements Iterable<SmNode> {
 
-	private static final long serialVersionUID = 8187158272341013922L;
+	private LocalizationTable table_ = null;
+	private int start_ = 0;
+	private int size_ = 0;
+	private SmNode [] nodes_ = new SmNode[4];
 
 	private double stepSize2_ = -1;
+	private int stepSizeDelay_ = -1;
 	private double maxDisplacement_ = -1;
 
 	/** Whether it is marked. */
@@ -39,8 +51,257 @@ public class Trajectory extends Vector<SmNode> {
 	/** A text note. */
 	protected String note = null;
 
-	//private int timeDelay_ = 4;
+	/**
+	 * Append a node. Only possible before the trajectory is attached to a table.
+	 *
+	 * @param node the node
+	 * @return true
+	 */
+	public boolean add(SmNode node) {
+		if (table_ != null) {
+			throw new IllegalStateException("Trajectory is read-only");
+		}
+		if (size_ == nodes_.length) {
+			nodes_ = Arrays.copyOf(nodes_, size_ * 2);
+		}
+		nodes_[size_++] = node;
+		dataChanged();
+		return true;
+	}
+
+	/**
+	 * Make the trajectory a view of table rows and release the node buffer.
+	 *
+	 * @param table the table
+	 * @param start the first row
+	 */
+	void attach(LocalizationTable table, int start) {
+		attach(table, start, size_);
+	}
+
+	/**
+	 * Make the trajectory a view of table rows, replacing any nodes added before.
+	 *
+	 * @param table the table
+	 * @param start the first row
+	 * @param size number of rows
+	 */
+	void attach(LocalizationTable table, int start, int size) {
+		table_ = table;
+		start_ = start;
+		size_ = size;
+		nodes_ = null;
+		dataChanged();
+	}
+
+	/**
+	 * @return the first table row, if attached to a table
+	 */
+	int getStart() {
+		return start_;
+	}
+
+	/**
+	 * @return number of nodes
+	 */
+	public int size() {
+		return size_;
+	}
+
+	/**
+	 * @return true if the trajectory has no nodes
+	 */
+	public boolean isEmpty() {
+		return size_ == 0;
+	}
+
+	/**
+	 * Get a node
+	 *
+	 * @param j the index
+	 * @return the node
+	 */
+	public SmNode get(int j) {
+		if (j < 0 || j >= size_) {
+			throw new ArrayIndexOutOfBoundsException(j);
+		}
+		return table_ == null ? nodes_[j] : table_.getNode(start_ + j);
+	}
+
+	/**
+	 * @return the last node
+	 */
+	public SmNode lastElement() {
+		return get(size_ - 1);
+	}
+
+	/**
+	 * @param j the index
+	 * @return x of node j
+	 */
+	public double getX(int j) {
+		return table_ == null ? nodes_[j].x : table_.getX(start_ + j);
+	}
+
+	/**
+	 * @param j the index
+	 * @return y of node j
+	 */
+	public double getY(int j) {
+		return table_ == null ? nodes_[j].y : table_.getY(start_ + j);
+	}
+
+	/**
+	 * @param j the index
+	 * @return z of node j
+	 */
+	public double getZ(int j) {
+		return table_ == null ? nodes_[j].z : table_.getZ(start_ + j);
+	}
 
+	/**
+	 * @param j the index
+	 * @return frame number of node j
+	 */
+	public int getFrame(int j) {
+		return table_ == null ? nodes_[j].frame : table_.getFrame(start_ + j);
+	}
+
+	/**
+	 * @param j the index
+	 * @return height of node j
+	 */
+	public int getHeight(int j) {
+		return table_ == null ? nodes_[j].height : table_.getHeight(start_ + j);
+	}
+
+	/**
+	 * @param j the index
+	 * @return fitting residue of node j
+	 */
+	public double getResidue(int j) {
+		return table_ == null ? nodes_[j].residue : table_.getResidue(start_ + j);
+	}
+
+	/**
+	 * Square distance between two nodes of the trajectory
+	 *
+	 * @param i first node
+	 * @param j second node
+	 * @return distance^2
+	 */
+	public double distance2(int i, int j) {
+		if (table_ == null) {
+			return nodes_[i].distance2(nodes_[j]);
+		}
+		return table_.distance2(start_ + i, start_ + j);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Iterable#iterator()
+	 */
+	@Override
+	public Iterator<SmNode> iterator() {
+		return new Iterator<SmNode>() {
+			int next_ = 0;
+
+			@Override
+			public boolean hasNext() {
+				return next_ < size_;
+			}
+
+			@Override
+			public SmNode next() {
+				if (next_ >= size_) {
+					throw new NoSuchElementException();
+				}
+				return get(next_++);
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * A list view of the nodes, for scripts written for the old Trajectory class,
+	 * which was a Vector of SmNode. The view reads the nodes of the trajectory, and its
+	 * marked and note properties read and write the trajectory's flags.
+	 *
+	 * @return the view
+	 */
+	public NodeList asList() {
+		return new NodeList();
+	}
+
+	/**
+	 * The list view returned by asList(). The nodes can not be changed through the view.
+	 */
+	public class NodeList extends AbstractList<SmNode> {
+
+		private NodeList() {
+		}
+
+		@Override
+		public SmNode get(int j) {
+			return Trajectory.this.get(j);
+		}
+
+		@Override
+		public int size() {
+			return size_;
+		}
+
+		public SmNode elementAt(int j) {
+			return get(j);
+		}
+
+		public SmNode firstElement() {
+			return get(0);
+		}
+
+		public SmNode lastElement() {
+			return get(size_ - 1);
+		}
+
+		public Trajectory getTrajectory() {
+			return Trajectory.this;
+		}
+
+		public int getLength() {
+			return Trajectory.this.getLength();
+		}
+
+		public double getAvgSquareStepSize(int delay) {
+			return Trajectory.this.getAvgSquareStepSize(delay);
+		}
+
+		public double getMaxDisplament() {
+			return Trajectory.this.getMaxDisplament();
+		}
+
+		public boolean getMarked() {
+			return marked;
+		}
+
+		public void setMarked(boolean b) {
+			marked = b;
+		}
+
+		public String getNote() {
+			return note;
+		}
+
+		public void setNote(String s) {
+			note = s;
+		}
+
+		public boolean isNoteEmpty() {
+			return Trajectory.this.isNoteEmpty();
+		}
+	}
 
 	/**
 	 * Gets the length of the trajectory.
@@ -48,7 +309,7 @@ public class Trajectory extends Vector<SmNode> {
 	 * @return the length
 	 */
 	public int getLength() {
-		return get(size() - 1).frame - get(0).frame + 1;
+		return getFrame(size_ - 1) - getFrame(0) + 1;
 	}
 
 	/**
@@ -59,24 +320,26 @@ public class Trajectory extends Vector<SmNode> {
 	public double getAvgSquareStepSize(int delay) {
 		if (size() < delay )
 			return -1;
-		if (stepSize2_ >= 0)
+		if (stepSize2_ >= 0 && stepSizeDelay_ == delay)
 			return stepSize2_;
-		stepSize2_ = 0;
+		double s = 0;
 		int cnt = 0;
 		for (int i = 0; i < size() - delay; i++) {
 			int j = i + delay;
-			while (get(j).frame - get(i).frame > delay) {
+			while (getFrame(j) - getFrame(i) > delay) {
 				j--;
 			}
-			if (get(j).frame - get(i).frame == delay) {
-				stepSize2_ += get(j).distance2(get(i));
+			if (getFrame(j) - getFrame(i) == delay) {
+				s += distance2(j, i);
 				cnt ++;
 			}
 		}
-		if (cnt > 0) 
-			stepSize2_ /= cnt;
-		else 
+		if (cnt > 0) { 
+			stepSize2_ = s / cnt;
+			stepSizeDelay_ = delay;
+		} else { 
 			return -1;
+		}
 		return stepSize2_;
 	}
 
@@ -93,7 +356,7 @@ public class Trajectory extends Vector<SmNode> {
 
 		for (int i = 0; i < size()-1; i++) {
 			for ( int j = 0; j < size(); j++) {
-				double d = get(j).distance2(get(i));
+				double d = distance2(j, i);
 				if (d > maxDisplacement_) {
 					maxDisplacement_ = d;
 				}
@@ -110,9 +373,9 @@ public class Trajectory extends Vector<SmNode> {
 	 */
 	public void dataChanged() {
 		maxDisplacement_ = -1;
+		stepSize2_ = -1;
 	}
-	
-	/**
+		/**
 	 * @return note of current trajectory
 	 */
 	public String getNote() {
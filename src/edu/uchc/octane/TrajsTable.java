@@ -21,6 +21,7 @@ import java.awt.Font;
 import java.util.Arrays;
 import javax.swing.JTable;
 import javax.swing.ListSelectionModel;
+import javax.swing.SwingUtilities;
 import javax.swing.event.TableModelEvent;
 import javax.swing.table.AbstractTableModel;
 import javax.swing.table.TableRowSorter;
@@ -38,6 +39,7 @@ public class TrajsTable extends JTable {
 	private TrajDataset data_ = null;
 	private boolean [] isVisible_;
 	private Model model_;
+	private volatile StatisticsWorker worker_ = null;
 
 	protected class Model extends AbstractTableModel {
 
@@ -60,23 +62,31 @@ public class TrajsTable extends JTable {
 			if (data_ == null) {
 				return null;
 			}
-			Trajectory traj = data_.getTrajectoryByIndex(rowIndex);
+			StatisticsWorker w = worker_;
+			boolean computed = w != null && w.data_ == data_ && rowIndex < w.nDone_;
 			switch (colIndex) {
 
 			case 0:
-				return traj.get(0).frame;
+				LocalizationTable table = data_.getLocalizations();
+				return table.getFrame(table.getTrajectoryStart(rowIndex));
 			
 			case 1:
-				return traj.getLength();
+				if (computed) {
+					return w.length_[rowIndex];
+				}
+				return data_.getTrajectoryByIndex(rowIndex).getLength();
 			
 			case 2:
-				return traj.getAvgSquareStepSize(OctaneWindowControl.msdDelay_);
+				if (computed && w.delay_ == OctaneWindowControl.msdDelay_) {
+					return w.mobility_[rowIndex];
+				}
+				return data_.getTrajectoryByIndex(rowIndex).getAvgSquareStepSize(OctaneWindowControl.msdDelay_);
 			
 			case 3:
-				return traj.marked;
+				return data_.getTrajectoryByIndex(rowIndex).marked;
 			
 			case 4:
-				return traj.note;
+				return data_.getTrajectoryByIndex(rowIndex).note;
 			}
 			return null;
 		}
@@ -133,7 +143,7 @@ public class TrajsTable extends JTable {
 			@Override
 			public boolean include(
 					javax.swing.RowFilter.Entry<? extends Model, ? extends Integer> entry) {
-				return isVisible_[entry.getIdentifier()] && !data_.getTrajectoryByIndex(entry.getIdentifier()).deleted;
+				return isVisible_[entry.getIdentifier()] && !data_.isDeleted(entry.getIdentifier());
 			}
 		});
 
@@ -153,6 +163,92 @@ public class TrajsTable extends JTable {
 		Arrays.fill(isVisible_, true);
 		clearSelection();
 		tableDataChanged();
+
+		worker_ = new StatisticsWorker(data);
+		worker_.start();
+	}
+
+	/**
+	 * Computes the lengths and mobilities of all trajectories in a background thread and
+	 * updates the table as they become available. Until then the values are computed for
+	 * the rows being displayed. It reads the localization table directly, so no trajectory
+	 * objects are created.
+	 */
+	class StatisticsWorker extends Thread {
+
+		final TrajDataset data_;
+		final int delay_;
+		final int [] length_;
+		final double [] mobility_;
+		volatile int nDone_ = 0;
+
+		StatisticsWorker(TrajDataset data) {
+			data_ = data;
+			delay_ = OctaneWindowControl.msdDelay_;
+			length_ = new int[data.getSize()];
+			mobility_ = new double[data.getSize()];
+			setName("Trajectory statistics");
+			setDaemon(true);
+			setPriority(Thread.MIN_PRIORITY);
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Thread#run()
+		 */
+		@Override
+		public void run() {
+			LocalizationTable table = data_.getLocalizations();
+			long lastUpdate = System.currentTimeMillis();
+			int lastRow = 0;
+			for (int i = 0; i < length_.length; i++) {
+				if (worker_ != this) {
+					return;
+				}
+				int start = table.getTrajectoryStart(i);
+				int size = table.getTrajectoryEnd(i) - start;
+				if (size > 0) {
+					length_[i] = table.getFrame(start + size - 1) - table.getFrame(start) + 1;
+					mobility_[i] = avgSquareStepSize(table, start, size);
+				} else {
+					mobility_[i] = -1;
+				}
+				nDone_ = i + 1;
+
+				if (i == length_.length - 1 || System.currentTimeMillis() - lastUpdate > 500) {
+					final int first = lastRow;
+					final int last = i;
+					SwingUtilities.invokeLater(new Runnable() {
+						@Override
+						public void run() {
+							if (worker_ == StatisticsWorker.this && model_ != null) {
+								model_.fireTableRowsUpdated(first, last);
+							}
+						}
+					});
+					lastRow = i + 1;
+					lastUpdate = System.currentTimeMillis();
+				}
+			}
+		}
+
+		/**
+		 * Same as Trajectory.getAvgSquareStepSize(), for the rows of a trajectory in the table.
+		 */
+		private double avgSquareStepSize(LocalizationTable table, int start, int size) {
+			double s = 0;
+			int cnt = 0;
+			for (int i = start; i < start + size - delay_; i++) {
+				int j = i + delay_;
+				while (table.getFrame(j) - table.getFrame(i) > delay_) {
+					j--;
+				}
+				if (table.getFrame(j) - table.getFrame(i) == delay_) {
+					s += table.distance2(j, i);
+					cnt ++;
+				}
+			}
+			return cnt > 0 ? s / cnt : -1;
+		}
 	}
 
 	/**
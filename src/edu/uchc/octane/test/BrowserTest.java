@@ -38,10 +38,11 @@ public class BrowserTest {
 			if (dlg.wasOKed()) {
 			
 				SmNode [][] nodes = dlg.processAllFrames();
+				TrackingParameters trackingParams = null;
 				
-				if ( TrackingParameters.openDialog(pixelSize) ) { //wasOKed ?
+				if (nodes != null && (trackingParams = TrackingParameters.openDialog(pixelSize)) != null ) { //wasOKed ?
 
-					TrajDataset data = TrajDataset.createDatasetFromNodes(nodes);
+					TrajDataset data = TrajDataset.createDatasetFromNodes(nodes, trackingParams);
 					OctaneWindowControl ctlr = new OctaneWindowControl(imp);
 					ctlr.setup(data);
 				}
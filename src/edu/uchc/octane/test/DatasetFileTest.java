@@ -0,0 +1,248 @@
+package edu.uchc.octane.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Vector;
+
+import edu.uchc.octane.DatasetFile;
+import edu.uchc.octane.SmNode;
+import edu.uchc.octane.TrackingParameters;
+import edu.uchc.octane.TrajDataset;
+import edu.uchc.octane.Trajectory;
+
+public class DatasetFileTest {
+
+	final static int nFrames = 40;
+	final static int nParticles = 30;
+
+	static int nFailed = 0;
+
+	/**
+	 * Same serialized form as the Trajectory class of older versions
+	 */
+	static class OldTrajectory extends Vector<SmNode> {
+		private static final long serialVersionUID = 8187158272341013922L;
+
+		private double stepSize2_ = -1;
+		private double maxDisplacement_ = -1;
+		boolean marked = false;
+		boolean deleted = false;
+		String note = null;
+	}
+
+	static void check(boolean ok, String what) {
+		if (! ok) {
+			System.out.println("FAILED: " + what);
+			nFailed ++;
+		}
+	}
+
+	static SmNode [][] randomNodes(Random rnd) {
+		SmNode [][] nodes = new SmNode[nFrames][];
+		double [] x = new double[nParticles];
+		double [] y = new double[nParticles];
+		int [] first = new int[nParticles];
+		int [] last = new int[nParticles];
+		for (int p = 0; p < nParticles; p++) {
+			x[p] = 10 + 20 * (p % 6);
+			y[p] = 10 + 20 * (p / 6);
+			first[p] = rnd.nextInt(nFrames);
+			last[p] = first[p] + rnd.nextInt(nFrames - first[p]);
+		}
+		for (int f = 0; f < nFrames; f++) {
+			Vector<SmNode> frame = new Vector<SmNode>();
+			for (int p = 0; p < nParticles; p++) {
+				x[p] += (rnd.nextInt(9) - 4) * 0.0625;
+				y[p] += (rnd.nextInt(9) - 4) * 0.0625;
+				if (f >= first[p] && f <= last[p]) {
+					// values exactly representable as float, since z and residue are saved as float
+					frame.add(new SmNode(x[p], y[p], rnd.nextInt(16) * 0.25, f + 1, 100 + rnd.nextInt(1000), rnd.nextInt(64) * 0.125));
+				}
+			}
+			nodes[f] = frame.toArray(new SmNode[frame.size()]);
+		}
+		return nodes;
+	}
+
+	static String positions(TrajDataset dataset) throws IOException {
+		StringWriter w = new StringWriter();
+		dataset.writeTrajectoriesToText(w);
+		return w.toString();
+	}
+
+	static void compare(TrajDataset expected, TrajDataset actual, String what) throws IOException {
+		check(expected.getSize() == actual.getSize(), what + ": number of trajectories");
+		if (expected.getSize() != actual.getSize()) {
+			return;
+		}
+		check(positions(expected).equals(positions(actual)), what + ": localizations");
+		check(expected.getPixelSize() == actual.getPixelSize(), what + ": pixel size");
+		for (int i = 0; i < expected.getSize(); i++) {
+			Trajectory.NodeList t0 = expected.getTrajectoryByIndex(i).asList();
+			Trajectory.NodeList t1 = actual.getTrajectoryByIndex(i).asList();
+			check(t0.getMarked() == t1.getMarked(), what + ": mark of trajectory " + i);
+			check(expected.isDeleted(i) == actual.isDeleted(i), what + ": deletion of trajectory " + i);
+			String n0 = t0.getNote();
+			String n1 = t1.getNote();
+			check(n0 == null ? n1 == null : n0.equals(n1), what + ": note of trajectory " + i);
+		}
+		check(Arrays.equals(expected.getDriftX(), actual.getDriftX()), what + ": drift x");
+		check(Arrays.equals(expected.getDriftY(), actual.getDriftY()), what + ": drift y");
+		check(Arrays.equals(expected.getDriftZ(), actual.getDriftZ()), what + ": drift z");
+	}
+
+	static void setFlags(TrajDataset dataset, int seed) {
+		for (int i = 0; i < dataset.getSize(); i++) {
+			Trajectory.NodeList t = dataset.getTrajectoryByIndex(i).asList();
+			t.setMarked((i + seed) % 3 == 0);
+			if ((i + seed) % 4 == 0) {
+				t.setNote("note " + i + " \u00b5m, \u00e9t\u00e9");
+			} else if ((i + seed) % 4 == 1) {
+				t.setNote("");
+			} else {
+				t.setNote(null);
+			}
+		}
+	}
+
+	static void testRoundTrip(File dir, Random rnd) throws Exception {
+		TrajDataset dataset = TrajDataset.createDatasetFromNodes(randomNodes(rnd), new TrackingParameters(1.0, 0, -1, 0.01));
+		dataset.setPixelSize(106.5);
+		setFlags(dataset, 0);
+
+		File drift = new File(dir, "drift.txt");
+		Writer w = new FileWriter(drift);
+		for (int f = 0; f < dataset.getMaximumFrameNumber(); f++) {
+			w.write((0.015625 * f) + ", " + (-0.03125 * f) + ", " + (0.0078125 * f) + "\n");
+		}
+		w.close();
+		dataset.importDriftData(drift);
+
+		File file = new File(dir, "a.dataset");
+		dataset.saveDataset(file);
+		check(DatasetFile.isDatasetFile(file), "saved file format");
+		TrajDataset opened = TrajDataset.loadDataset(file);
+		compare(dataset, opened, "save-open");
+
+		// save the mapped dataset to another file, then to the file it is mapped from
+		File copy = new File(dir, "b.dataset");
+		opened.saveDataset(copy);
+		compare(dataset, TrajDataset.loadDataset(copy), "open-resave");
+
+		setFlags(opened, 1);
+		setFlags(dataset, 1);
+		opened.saveDataset(file);
+		compare(dataset, opened, "dataset after saving over its own file");
+		compare(dataset, TrajDataset.loadDataset(file), "resave over the opened file");
+	}
+
+	static byte [] legacyBytes(Vector<OldTrajectory> trajectories) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(trajectories);
+		out.close();
+
+		// rename the class to the old Trajectory class
+		byte [] oldName = OldTrajectory.class.getName().getBytes("UTF-8");
+		byte [] newName = Trajectory.class.getName().getBytes("UTF-8");
+		byte [] b = bytes.toByteArray();
+		ByteArrayOutputStream renamed = new ByteArrayOutputStream();
+		for (int i = 0; i < b.length; i++) {
+			if (i + 2 + oldName.length <= b.length && b[i] == 0 && b[i + 1] == oldName.length
+					&& Arrays.equals(Arrays.copyOfRange(b, i + 2, i + 2 + oldName.length), oldName)) {
+				renamed.write(0);
+				renamed.write(newName.length);
+				renamed.write(newName);
+				i += 1 + oldName.length;
+			} else {
+				renamed.write(b[i]);
+			}
+		}
+		return renamed.toByteArray();
+	}
+
+	static void testLegacy(File dir, Random rnd) throws Exception {
+		TrajDataset expected = TrajDataset.createDatasetFromNodes(randomNodes(rnd), new TrackingParameters(1.0, 0, -1, 0.01));
+		Vector<OldTrajectory> saved = new Vector<OldTrajectory>();
+		for (int i = 0; i < expected.getSize(); i++) {
+			OldTrajectory old = new OldTrajectory();
+			old.addAll(expected.getTrajectoryByIndex(i).asList());
+			old.marked = i % 3 == 0;
+			old.deleted = i % 5 == 0;
+			old.note = i % 4 == 0 ? "legacy " + i : null;
+			saved.add(old);
+		}
+
+		File file = new File(dir, "c.dataset");
+		Files.write(file.toPath(), legacyBytes(saved));
+		check(! DatasetFile.isDatasetFile(file), "legacy file format");
+
+		TrajDataset legacy = TrajDataset.loadDataset(file);
+		check(legacy.getSize() == saved.size(), "legacy: number of trajectories");
+		check(positions(expected).equals(positions(legacy)), "legacy: localizations");
+		for (int i = 0; i < saved.size() && i < legacy.getSize(); i++) {
+			Trajectory.NodeList t = legacy.getTrajectoryByIndex(i).asList();
+			check(t.getMarked() == saved.get(i).marked, "legacy: mark of trajectory " + i);
+			check(legacy.isDeleted(i) == saved.get(i).deleted, "legacy: deletion of trajectory " + i);
+			String note = saved.get(i).note;
+			check(note == null ? t.getNote() == null : note.equals(t.getNote()), "legacy: note of trajectory " + i);
+		}
+
+		check(DatasetFile.migrate(file), "migration of the legacy file");
+		check(new File(dir, "c.dataset.b1").exists(), "backup of the legacy file");
+		check(DatasetFile.isDatasetFile(file), "migrated file format");
+		check(! DatasetFile.migrate(file), "migration of a migrated file");
+		TrajDataset migrated = TrajDataset.loadDataset(file);
+		compare(legacy, migrated, "migrate-open");
+
+		File copy = new File(dir, "d.dataset");
+		migrated.saveDataset(copy);
+		compare(legacy, TrajDataset.loadDataset(copy), "migrate-open-resave");
+	}
+
+	static void testCorruptedHeader(File dir) throws Exception {
+		byte [] b = Files.readAllBytes(new File(dir, "a.dataset").toPath());
+		// number of localizations, trajectories and drift frames
+		int [] offsets = {16, 20, 24};
+		for (int offset : offsets) {
+			byte [] bad = b.clone();
+			ByteBuffer.wrap(bad).order(ByteOrder.LITTLE_ENDIAN).putInt(offset, -1);
+			File file = new File(dir, "bad.dataset");
+			Files.write(file.toPath(), bad);
+			try {
+				DatasetFile.open(file);
+				check(false, "negative header count at " + offset + " accepted");
+			} catch (IOException e) {
+				check(e.getMessage().startsWith("Dataset file is corrupted"), "error for a negative header count at " + offset + ": " + e.getMessage());
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		File dir = Files.createTempDirectory("octane").toFile();
+		Random rnd = new Random(1);
+
+		testRoundTrip(dir, rnd);
+		testLegacy(dir, rnd);
+		testCorruptedHeader(dir);
+
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+
+		System.out.println(nFailed == 0 ? "All passed" : nFailed + " checks failed");
+		System.exit(nFailed == 0 ? 0 : 1);
+	}
+}
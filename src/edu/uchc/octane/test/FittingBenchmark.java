@@ -0,0 +1,60 @@
+package edu.uchc.octane.test;
+
+import edu.uchc.octane.GaussianFit2D;
+import edu.uchc.octane.GaussianFitAstigmatism;
+import edu.uchc.octane.GaussianFitBase;
+
+import ij.process.ShortProcessor;
+
+public class FittingBenchmark {
+
+	final static int nWarmup = 20000;
+	final static int nRepeats = 50000;
+	final static double sigma = 1.2;
+	final static int intensity = 400;
+	final static int background = 50;
+
+	static double timeFits(GaussianFitBase module, int size) {
+
+		ShortProcessor ip = TestDataGenerator.astigmaticGaussianImage(
+				size, 0.3, -0.2, 2 * sigma * sigma, 3 * sigma * sigma, intensity, background);
+		TestDataGenerator.addShotNoise(ip, 1);
+
+		module.setWindowSize(size);
+		module.setImageData(ip);
+		module.setPreprocessBackground(false);
+
+		for (int i = 0; i < nWarmup; i++) {
+			module.setInitialCoordinates(size, size);
+			module.fit();
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < nRepeats; i++) {
+			module.setInitialCoordinates(size, size);
+			module.fit();
+		}
+		long duration = System.nanoTime() - start;
+
+		return duration / 1000.0 / nRepeats;
+	}
+
+	public static void main(String[] args) {
+
+		for (int size = 3; size <= 5; size ++) {
+
+			GaussianFit2D m2d = new GaussianFit2D();
+			m2d.setFloatingSigma(true);
+			m2d.setPreferredSigmaValue(sigma);
+			m2d.setFittingEngine(GaussianFitBase.FittingEngine.LEVENBERG_MARQUARDT);
+
+			GaussianFitAstigmatism m3d = new GaussianFitAstigmatism();
+			m3d.setPreferredSigmaValue(sigma);
+			m3d.setFittingEngine(GaussianFitBase.FittingEngine.LEVENBERG_MARQUARDT);
+
+			int w = 2 * size + 1;
+			System.out.format("%dx%d window - 2D: %6.2f us/fit\tAstigmatism: %6.2f us/fit%n", 
+					w, w, timeFits(m2d, size), timeFits(m3d, size));
+		}
+	}
+}
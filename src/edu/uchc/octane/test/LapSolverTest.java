@@ -0,0 +1,183 @@
+package edu.uchc.octane.test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import edu.uchc.octane.LapSolver;
+import edu.uchc.octane.SmNode;
+import edu.uchc.octane.TrackingParameters;
+import edu.uchc.octane.TrajDataset;
+
+public class LapSolverTest {
+
+	final static int nProblems = 20000;
+
+	static int nFailed = 0;
+
+	static void check(boolean ok, String what) {
+		if (! ok) {
+			if (nFailed < 20) {
+				System.out.println("FAILED: " + what);
+			}
+			nFailed ++;
+		}
+	}
+
+	/**
+	 * Minimal total cost by trying every assignment, like the EXHAUSTIVE optimizer
+	 */
+	static double exhaustive(int row, int nRows, int [] rowStart, int [] cols, double [] costs, boolean [] used, double sum, double best) {
+		if (sum >= best) {
+			return best;
+		}
+		if (row == nRows) {
+			return sum;
+		}
+		for (int k = rowStart[row]; k < rowStart[row + 1]; k++) {
+			if (! used[cols[k]]) {
+				used[cols[k]] = true;
+				best = exhaustive(row + 1, nRows, rowStart, cols, costs, used, sum + costs[k], best);
+				used[cols[k]] = false;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * A subnetwork as built by the tracking: nHeads rows, nTails tail columns, and a dummy column
+	 * for each row at the cost of the threshold.
+	 */
+	static void testSubnetwork(Random rnd, int kind) {
+		int nHeads = 1 + rnd.nextInt(7);
+		int nTails = kind == 1 ? 0 : rnd.nextInt(8);
+		double threshold = 1 + rnd.nextDouble();
+		double pBond = kind == 2 ? 0 : 0.5;
+
+		int [] rowStart = new int[nHeads + 1];
+		int [] cols = new int[nHeads * (nTails + 1)];
+		double [] costs = new double[cols.length];
+		int p = 0;
+		for (int i = 0; i < nHeads; i++) {
+			rowStart[i] = p;
+			for (int j = 0; j < nTails; j++) {
+				if (rnd.nextDouble() < pBond) {
+					cols[p] = j;
+					if (kind == 3) {
+						// ties
+						costs[p++] = rnd.nextInt(3) * 0.5 * threshold;
+					} else if (kind == 4) {
+						// bonds longer than the threshold, so that no real bond is worth taking
+						costs[p++] = threshold * (1 + rnd.nextDouble());
+					} else {
+						costs[p++] = rnd.nextDouble() * threshold;
+					}
+				}
+			}
+			cols[p] = nTails + i;
+			costs[p++] = threshold;
+		}
+		rowStart[nHeads] = p;
+
+		int [] assignment = new LapSolver(nHeads, nTails + nHeads, rowStart, cols, costs).solve();
+
+		boolean [] used = new boolean[nTails + nHeads];
+		double sum = 0;
+		int nDummy = 0;
+		for (int i = 0; i < nHeads; i++) {
+			int c = assignment[i];
+			check(! used[c], "column " + c + " assigned twice");
+			used[c] = true;
+			boolean allowed = false;
+			for (int k = rowStart[i]; k < rowStart[i + 1]; k++) {
+				if (cols[k] == c) {
+					sum += costs[k];
+					allowed = true;
+				}
+			}
+			check(allowed, "row " + i + " assigned to column " + c + " without a bond");
+			if (c >= nTails) {
+				nDummy ++;
+			}
+		}
+		double best = exhaustive(0, nHeads, rowStart, cols, costs, new boolean[nTails + nHeads], 0, Double.MAX_VALUE);
+		check(Math.abs(sum - best) <= 1e-9 * nHeads, "kind " + kind + ": total cost " + sum + ", exhaustive " + best);
+		if (kind == 1 || kind == 2 || kind == 4) {
+			check(nDummy == nHeads, "kind " + kind + ": " + (nHeads - nDummy) + " rows assigned to real columns");
+		}
+	}
+
+	static void testInfeasible() {
+		// two rows and a single column
+		try {
+			new LapSolver(2, 1, new int[] {0, 1, 2}, new int[] {0, 0}, new double[] {1, 2}).solve();
+			check(false, "infeasible problem solved");
+		} catch (IllegalStateException e) {
+		}
+		// a row without any column
+		try {
+			new LapSolver(2, 2, new int[] {0, 1, 1}, new int[] {0}, new double[] {1}).solve();
+			check(false, "row without columns assigned");
+		} catch (IllegalStateException e) {
+		}
+	}
+
+	/**
+	 * Random walks. Every jumpEvery frames all particles jump further than maxDisplacement,
+	 * so that no bond is possible.
+	 */
+	static SmNode [][] randomWalks(Random rnd, int nFrames, int nWalkers, double size, double step, double pBlink, int jumpEvery, double jump) {
+		double [] x = new double[nWalkers];
+		double [] y = new double[nWalkers];
+		for (int i = 0; i < nWalkers; i++) {
+			x[i] = rnd.nextDouble() * size;
+			y[i] = rnd.nextDouble() * size;
+		}
+		SmNode [][] nodes = new SmNode[nFrames][];
+		for (int f = 0; f < nFrames; f++) {
+			ArrayList<SmNode> frame = new ArrayList<SmNode>();
+			boolean jumps = jumpEvery > 0 && f % jumpEvery == jumpEvery - 1;
+			for (int i = 0; i < nWalkers; i++) {
+				x[i] += jumps ? jump : rnd.nextGaussian() * step;
+				y[i] += rnd.nextGaussian() * step;
+				if (rnd.nextDouble() >= pBlink) {
+					frame.add(new SmNode(x[i], y[i], 0, f + 1, 100 + rnd.nextInt(1000), rnd.nextDouble()));
+				}
+			}
+			Collections.shuffle(frame, rnd);
+			nodes[f] = frame.toArray(new SmNode[frame.size()]);
+		}
+		return nodes;
+	}
+
+	static String track(SmNode [][] nodes, double maxDisplacement, int maxBlinking, TrackingParameters.Optimizer optimizer) throws IOException {
+		TrackingParameters params = new TrackingParameters(maxDisplacement, maxBlinking, -1, 0, optimizer);
+		StringWriter w = new StringWriter();
+		TrajDataset.createDatasetFromNodes(nodes, params).writeTrajectoriesToText(w);
+		return w.toString();
+	}
+
+	static void testTracking(String name, SmNode [][] nodes, double maxDisplacement, int maxBlinking) throws IOException {
+		String exhaustive = track(nodes, maxDisplacement, maxBlinking, TrackingParameters.Optimizer.EXHAUSTIVE);
+		String lap = track(nodes, maxDisplacement, maxBlinking, TrackingParameters.Optimizer.LAP);
+		check(exhaustive.equals(lap), name + ": LAP and EXHAUSTIVE tracking differ");
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		Random rnd = new Random(1);
+		for (int i = 0; i < nProblems; i++) {
+			testSubnetwork(rnd, i % 5);
+		}
+		testInfeasible();
+
+		testTracking("sparse", randomWalks(rnd, 100, 200, 256, 0.5, 0.1, 0, 0), 2.0, 2);
+		testTracking("dense", randomWalks(rnd, 50, 400, 128, 0.7, 0.2, 0, 0), 2.0, 3);
+		testTracking("jumps", randomWalks(rnd, 50, 200, 128, 0.5, 0.1, 5, 10), 2.0, 0);
+
+		System.out.println(nFailed == 0 ? "All passed" : nFailed + " checks failed");
+		System.exit(nFailed == 0 ? 0 : 1);
+	}
+}
@@ -0,0 +1,183 @@
+package edu.uchc.octane.test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import edu.uchc.octane.CsvReader;
+import edu.uchc.octane.TextExporter;
+
+public class NumberFormatTest {
+
+	final static int nRandom = 1000000;
+
+	static int nFailed = 0;
+	static int nShorter = 0;
+
+	static final Charset ASCII = Charset.forName("ISO-8859-1");
+
+	static final String [] parseCases = {
+		"0", "-0", "+0", "0.0", "-0.0", "00012", "1", "-1", "+1", ".5", "5.", "-.5",
+		"0.1", "0.2", "0.3", "1e0", "1E5", "1e-5", "1.5e+3", "  2.5\t", " -7 ",
+		"123456789012345678", "1234567890123456789", "12345678901234567890123",
+		"0.000000000000000000000000001234", "123456789012345678e-10",
+		"9007199254740992", "9007199254740993", "9007199254740994", "9007199254740995",
+		"1.7976931348623157e308", "1.7976931348623158e308", "1.8e308", "1e309",
+		"4.9e-324", "2.4703282292062327e-324", "2.4703282292062328e-324", "1e-400",
+		"2.2250738585072014E-308", "2.2250738585072011E-308", "1e22", "1e23", "8.41e21",
+		"NaN", "-NaN", "Infinity", "-Infinity", "+Infinity", "1d", "2.5f", "0x1p3",
+		"", " ", "-", "+", ".", "e5", "1e", "1e+", "--1", "1..2", "1.2.3", "abc", "1 2", "1,5"
+	};
+
+	static void check(boolean ok, String what) {
+		if (! ok) {
+			if (nFailed < 20) {
+				System.out.println("FAILED: " + what);
+			}
+			nFailed ++;
+		}
+	}
+
+	static void testParse(String s) {
+		byte [] b = (" " + s + ",").getBytes(ASCII);
+		ByteBuffer buf = ByteBuffer.wrap(b);
+		String expected;
+		try {
+			expected = Long.toHexString(Double.doubleToLongBits(Double.parseDouble(s)));
+		} catch (NumberFormatException e) {
+			expected = "NumberFormatException";
+		}
+		String actual;
+		try {
+			actual = Long.toHexString(Double.doubleToLongBits(CsvReader.parseDouble(buf, 1, b.length - 1)));
+		} catch (NumberFormatException e) {
+			actual = "NumberFormatException";
+		}
+		check(expected.equals(actual), "parseDouble(\"" + s + "\") " + actual + ", expected " + expected);
+	}
+
+	static int significantDigits(String s) {
+		int n = 0;
+		int first = -1;
+		int last = -1;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == 'E') {
+				break;
+			}
+			if (c >= '1' && c <= '9') {
+				if (first < 0) {
+					first = n;
+				}
+				last = n;
+			}
+			if (c >= '0' && c <= '9') {
+				n ++;
+			}
+		}
+		return first < 0 ? 1 : last - first + 1;
+	}
+
+	/**
+	 * The result must be the same as Double.toString(), or have fewer digits and read back as the same value
+	 */
+	static void testFormatDouble(double v) {
+		byte [] b = new byte[32];
+		String s = new String(b, 0, TextExporter.formatDouble(v, b, 0), ASCII);
+		String expected = Double.toString(v);
+		if (! s.equals(expected)) {
+			boolean shorter = Double.doubleToLongBits(Double.parseDouble(s)) == Double.doubleToLongBits(v)
+					&& significantDigits(s) < significantDigits(expected);
+			check(shorter, "formatDouble(" + expected + ") " + s);
+			if (shorter) {
+				nShorter ++;
+			}
+		}
+		testParse(s);
+	}
+
+	static void testFormatFloat(float v) {
+		byte [] b = new byte[32];
+		String s = new String(b, 0, TextExporter.formatFloat(v, b, 0), ASCII);
+		String expected = Float.toString(v);
+		if (! s.equals(expected)) {
+			boolean shorter = Float.floatToIntBits(Float.parseFloat(s)) == Float.floatToIntBits(v)
+					&& significantDigits(s) < significantDigits(expected);
+			check(shorter, "formatFloat(" + expected + ") " + s);
+			if (shorter) {
+				nShorter ++;
+			}
+		}
+	}
+
+	static String randomDecimal(Random rnd) {
+		StringBuilder sb = new StringBuilder();
+		if (rnd.nextInt(4) == 0) {
+			sb.append(rnd.nextBoolean() ? '-' : '+');
+		}
+		int nDigits = 1 + rnd.nextInt(25);
+		int point = rnd.nextInt(nDigits + 2) - 1;
+		for (int i = 0; i < nDigits; i++) {
+			if (i == point) {
+				sb.append('.');
+			}
+			sb.append((char) ('0' + rnd.nextInt(10)));
+		}
+		if (rnd.nextInt(3) == 0) {
+			sb.append(rnd.nextBoolean() ? 'e' : 'E');
+			sb.append(rnd.nextInt(40) - 20);
+		}
+		return sb.toString();
+	}
+
+	public static void main(String[] args) {
+
+		double [] edgeDoubles = {
+			0.0, -0.0, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+			Double.MIN_VALUE, Double.MIN_NORMAL, Double.MAX_VALUE, 1.0, -1.0, 0.1, 0.2, 0.3,
+			0.001, Math.nextDown(0.001), Math.nextUp(0.001), 1e7, Math.nextDown(1e7), 9999999.999999998,
+			1.0 / 3, 2.0 / 3, 100.0, 1234.5678, 0.5, 0.25, 0.125, 1024.0, 4096.0, 5e-324, 1e23, 2e-3
+		};
+		for (double v : edgeDoubles) {
+			testFormatDouble(v);
+			testFormatFloat((float) v);
+		}
+		for (int k = -10; k <= 23; k++) {
+			// powers of two, where the rounding interval below the value is half as wide
+			testFormatDouble(Math.scalb(1.0, k));
+			testFormatDouble(Math.nextUp(Math.scalb(1.0, k)));
+			testFormatDouble(Math.nextDown(Math.scalb(1.0, k)));
+			testFormatFloat(Math.scalb(1.0f, k));
+			testFormatFloat(Math.nextUp(Math.scalb(1.0f, k)));
+			testFormatFloat(Math.nextDown(Math.scalb(1.0f, k)));
+		}
+		for (int k = -4; k <= 8; k++) {
+			// next to powers of ten, where the number of digits changes
+			double p = Double.parseDouble("1e" + k);
+			testFormatDouble(Math.nextDown(p));
+			testFormatDouble(Math.nextUp(p));
+			testFormatFloat(Math.nextDown((float) p));
+			testFormatFloat(Math.nextUp((float) p));
+		}
+		for (String s : parseCases) {
+			testParse(s);
+		}
+
+		Random rnd = new Random(1);
+		for (int i = 0; i < nRandom; i++) {
+			// any bit pattern, values in the plain range of toString(), and short decimals like pixel coordinates
+			testFormatDouble(Double.longBitsToDouble(rnd.nextLong()));
+			testFormatDouble(Math.pow(10, rnd.nextDouble() * 10 - 3) * (rnd.nextBoolean() ? 1 : -1));
+			testFormatDouble(rnd.nextInt(100000000) / 1000.0);
+			testFormatFloat(Float.intBitsToFloat(rnd.nextInt()));
+			testFormatFloat((float) (Math.pow(10, rnd.nextDouble() * 10 - 3) * (rnd.nextBoolean() ? 1 : -1)));
+			testFormatFloat(rnd.nextInt(1000000) / 100.0f);
+			testParse(randomDecimal(rnd));
+			testParse(Double.toString(Double.longBitsToDouble(rnd.nextLong())));
+		}
+
+		System.out.println(nShorter + " values formatted with fewer digits than Double.toString() or Float.toString()");
+		System.out.println(nFailed == 0 ? "All passed" : nFailed + " checks failed");
+		System.exit(nFailed == 0 ? 0 : 1);
+	}
+}
@@ -18,8 +18,6 @@ public class PalmTest {
 		File file = new File(args[0]+".dataset");
 		TrajDataset dataset = TrajDataset.loadDataset(file);
 		
-		Palm palmModule = new Palm(dataset);
-		
 		int[] selected = new int[dataset.getSize()];
 		
 		for (int i = 0; i < selected.length; i++) {
@@ -27,8 +25,11 @@ public class PalmTest {
 			selected[i] = i;
 		}
 			
-		if (PalmParameters.openDialog(dataset, true)) {
+		PalmParameters params = PalmParameters.openDialog(dataset, true, false);
+
+		if (params != null) {
 			
+			Palm palmModule = new Palm(dataset, params);
 			palmModule.constructPalm(imp, selected);
 		
 		}		